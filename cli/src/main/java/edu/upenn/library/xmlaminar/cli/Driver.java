@@ -16,7 +16,9 @@
 
 package edu.upenn.library.xmlaminar.cli;
 
+import edu.upenn.library.xmlaminar.ConcurrentSymbolTable;
 import edu.upenn.library.xmlaminar.SAXProperties;
+import edu.upenn.library.xmlaminar.VirtualThreadExecutorService;
 import edu.upenn.library.xmlaminar.dbxml.DataSourceFactory;
 import java.io.BufferedReader;
 import java.io.File;
@@ -63,6 +65,12 @@ public class Driver {
     public static final String CONFIG_NAMESPACE_URI = "http://library.upenn.edu/xmlaminar/config";
     private static final Logger logger = LoggerFactory.getLogger(Driver.class);
     public static final String LOAD_EXTERNAL_COMMAND_FACTORIES_INI = "load-external-command-factories.ini";
+
+    /**
+     * Leading option (following "--plugins", if present) that runs the
+     * pipeline's blocking tasks on virtual threads, where supported.
+     */
+    public static final String VIRTUAL_THREADS_ARG = "--virtual-threads";
     
     static {
         try {
@@ -248,6 +256,8 @@ public class Driver {
         } else {
             System.err.println("For help with a specific command: " + LS 
                     + "\t--command --help"+LS 
+                    +"to run blocking pipeline stages on virtual threads (where supported), precede commands with:"+LS
+                    +"\t"+VIRTUAL_THREADS_ARG+LS
                     +"available commands: "+LS
                     +"\t"+CommandFactory.getAvailableCommandFactories().keySet());
             return null;
@@ -283,6 +293,13 @@ public class Driver {
             } catch (SAXNotSupportedException ex) {
                 logger.trace("ignoring " + ex);
             }
+            try {
+                xmlReader.setProperty(SAXProperties.SYMBOL_TABLE_PROPERTY_NAME, new ConcurrentSymbolTable());
+            } catch (SAXNotRecognizedException ex) {
+                logger.trace("ignoring " + ex);
+            } catch (SAXNotSupportedException ex) {
+                logger.trace("ignoring " + ex);
+            }
             return xmlReader;
         }
     }
@@ -344,6 +361,10 @@ public class Driver {
     public static void main(String[] args) throws IOException, TransformerConfigurationException {
         initLog4j();
         args = parsePlugins(args);
+        boolean virtualThreads = args.length > 0 && VIRTUAL_THREADS_ARG.equals(args[0]);
+        if (virtualThreads) {
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         Map<String, CommandFactory> cfs = CommandFactory.getAvailableCommandFactories();
         Iterable<Map.Entry<CommandFactory, String[]>> commands = buildCommandList(args, cfs);
         Iterator<Map.Entry<CommandFactory, String[]>> iter = commands.iterator();
@@ -352,7 +373,7 @@ public class Driver {
             ExecutorService executor = null;
             try {
                 XMLReader xmlReader = source.getXMLReader();
-                executor = Executors.newCachedThreadPool();
+                executor = virtualThreads ? new VirtualThreadExecutorService() : Executors.newCachedThreadPool();
                 try {
                     xmlReader.setProperty(SAXProperties.EXECUTOR_SERVICE_PROPERTY_NAME, executor);
                 } catch (SAXNotRecognizedException ex) {
@@ -364,6 +385,13 @@ public class Driver {
                     executor = null;
                     logger.trace("ignoring " + ex);
                 }
+                try {
+                    xmlReader.setProperty(SAXProperties.SYMBOL_TABLE_PROPERTY_NAME, new ConcurrentSymbolTable());
+                } catch (SAXNotRecognizedException ex) {
+                    logger.trace("ignoring " + ex);
+                } catch (SAXNotSupportedException ex) {
+                    logger.trace("ignoring " + ex);
+                }
                 xmlReader.parse(source.getInputSource());
             } catch (SAXException ex) {
                 throw new RuntimeException(ex);
@@ -38,6 +38,9 @@ public class Flags {
     public static final List<String> FILES_FROM_ARG = unmodifiableList(asList("files-from"));
     public static final List<String> FROM0_ARG = unmodifiableList(asList("0", "from0"));
     public static final List<String> INPUT_DELIMITER_ARG = unmodifiableList(asList("d", "input-delimiter"));
+    public static final List<String> PARSE_AHEAD_ARG = unmodifiableList(asList("parse-ahead"));
+    public static final List<String> PARSE_UNORDERED_ARG = unmodifiableList(asList("parse-unordered"));
+    public static final List<String> RANGE_BYTES_ARG = unmodifiableList(asList("range-bytes"));
     
     /*
     OUTPUT OPTIONS
@@ -46,18 +49,37 @@ public class Flags {
     public static final List<String> SUFFIX_LENGTH_ARG = unmodifiableList(asList("l", "suffix-length"));
     public static final List<String> OUTPUT_EXTENSION_ARG = unmodifiableList(asList("output-extension"));
     public static final List<String> GZIP_OUTPUT_ARG = unmodifiableList(asList("z", "gzip"));
+    public static final List<String> GZIP_LEVEL_ARG = unmodifiableList(asList("gzip-level"));
+    public static final List<String> GZIP_THREADS_ARG = unmodifiableList(asList("gzip-threads"));
+    public static final List<String> WRITE_THREADS_ARG = unmodifiableList(asList("write-threads"));
+    public static final List<String> WRITE_AHEAD_ARG = unmodifiableList(asList("write-ahead"));
+    public static final List<String> FSYNC_ARG = unmodifiableList(asList("fsync"));
 
     /*
     SPECIAL OPTIONS
     */
     public static final List<String> DEPTH_ARG = unmodifiableList(asList("r", "split-depth"));
     public static final List<String> SIZE_ARG = unmodifiableList(asList("n", "chunk-size"));
+    public static final List<String> CHUNK_EVENTS_ARG = unmodifiableList(asList("chunk-events"));
+    public static final List<String> CHUNK_BYTES_ARG = unmodifiableList(asList("chunk-bytes"));
+    public static final List<String> CHUNK_LATENCY_ARG = unmodifiableList(asList("chunk-latency"));
+    public static final List<String> SPLIT_BATCH_ARG = unmodifiableList(asList("split-batch"));
     public static final List<String> XSL_FILE_ARG = unmodifiableList(asList("x", "xsl"));
     public static final List<String> RECORD_ID_XPATH_ARG = unmodifiableList(asList("record-xpath"));
     public static final List<String> SUBDIVIDE_ARG = unmodifiableList(asList("s", "subdivide-on-failure"));
     public static final List<String> OUTPUT_BASE_NAME_ARG = unmodifiableList(asList("b", "output-basename"));
     public static final List<String> JOIN_ALL_ARG = unmodifiableList(asList("a", "all"));
     public static final List<String> NO_INDENT_ARG = unmodifiableList(asList("no-indent"));
+    public static final List<String> BUFFER_TYPE_ARG = unmodifiableList(asList("buffer-type"));
+    public static final List<String> SPILL_THRESHOLD_ARG = unmodifiableList(asList("spill-threshold"));
+    public static final List<String> COALESCE_CHARACTERS_ARG = unmodifiableList(asList("coalesce-characters"));
+    public static final List<String> TREE_INPUT_ARG = unmodifiableList(asList("tree-input"));
+    public static final List<String> PER_RECORD_ARG = unmodifiableList(asList("per-record"));
+    public static final List<String> QUEUE_DEPTH_ARG = unmodifiableList(asList("queue-depth"));
+    public static final List<String> PARALLELISM_ARG = unmodifiableList(asList("parallelism"));
+    public static final List<String> WORK_STEALING_ARG = unmodifiableList(asList("work-stealing"));
+    public static final List<String> REORDER_BYTES_ARG = unmodifiableList(asList("reorder-bytes"));
+    public static final List<String> UNORDERED_ARG = unmodifiableList(asList("unordered"));
 
     /*
     SQL OPTIONS
@@ -16,6 +16,7 @@
 
 package edu.upenn.library.xmlaminar.cli;
 
+import edu.upenn.library.xmlaminar.parallel.ByteRangeSplitter;
 import edu.upenn.library.xmlaminar.parallel.QueueSourceXMLFilter;
 import static edu.upenn.library.xmlaminar.cli.CommandFactory.registerCommandFactory;
 import java.io.BufferedInputStream;
@@ -90,6 +91,12 @@ public class InputCommandFactory extends CommandFactory {
         protected String delim;
         protected OptionSpec nullDelimitedSpec;
         protected OptionSpec<String> inputDelimiterSpec;
+        protected int parseAhead;
+        protected OptionSpec<Integer> parseAheadSpec;
+        protected boolean parseUnordered;
+        protected OptionSpec parseUnorderedSpec;
+        protected long rangeBytes;
+        protected OptionSpec<Long> rangeBytesSpec;
 
         protected OptionSpec verboseSpec;
         protected OptionSpec helpSpec;
@@ -114,6 +121,15 @@ public class InputCommandFactory extends CommandFactory {
             nullDelimitedSpec = parser.acceptsAll(Flags.FROM0_ARG, "indirect input file null-delimited");
             inputDelimiterSpec = parser.acceptsAll(Flags.INPUT_DELIMITER_ARG, "directly specify input delimiter")
                     .withRequiredArg().ofType(String.class).defaultsTo(System.lineSeparator());
+            parseAheadSpec = parser.acceptsAll(Flags.PARSE_AHEAD_ARG, "number of indirect input files (or byte ranges; see --"
+                    + Flags.RANGE_BYTES_ARG.get(0) + ") to parse ahead, in parallel, for the first command")
+                    .withRequiredArg().ofType(Integer.class).defaultsTo(0);
+            parseUnorderedSpec = parser.acceptsAll(Flags.PARSE_UNORDERED_ARG, "with --" + Flags.PARSE_AHEAD_ARG.get(0)
+                    + ", pass indirect input files downstream in order of parse completion");
+            rangeBytesSpec = parser.acceptsAll(Flags.RANGE_BYTES_ARG, "split input file(s) at record boundaries (depth 1) into byte ranges "
+                    + "of approximately this size, parsed in parallel (see --" + Flags.PARSE_AHEAD_ARG.get(0) + "); ranges are "
+                    + "aligned to split chunk size (--" + Flags.SIZE_ARG.get(1) + "), but otherwise each range is a separate document")
+                    .withRequiredArg().ofType(Long.class).defaultsTo(0L);
             verboseSpec = parser.acceptsAll(Flags.VERBOSE_ARG, "be more verbose");
             helpSpec = parser.acceptsAll(Flags.HELP_ARG, "show help").forHelp();
         }
@@ -126,6 +142,33 @@ public class InputCommandFactory extends CommandFactory {
             return delim;
         }
 
+        /**
+         * Configures parallel parsing of indirect input, as specified.
+         */
+        public void configureReadAhead(QueueSourceXMLFilter qsxf) {
+            qsxf.setReadAhead(parseAhead);
+            qsxf.setReadAheadOrdered(!parseUnordered);
+        }
+
+        /**
+         * Configures splitting of input files into byte ranges (parsed in
+         * parallel), if so specified.
+         *
+         * @param recordAlignment each range (except the last) contains a
+         * multiple of this number of records, so that fixed-size chunks are
+         * not cut short at range boundaries
+         */
+        public void configureByteRanges(QueueSourceXMLFilter qsxf, int recordDepth, int recordAlignment) {
+            if (rangeBytes <= 0) {
+                return;
+            } else if (recordDepth != 1) {
+                throw new IllegalArgumentException("--" + Flags.RANGE_BYTES_ARG.get(0) + " requires record depth 1");
+            }
+            qsxf.setIteratorWrapper(new ByteRangeSplitter(rangeBytes, recordAlignment));
+            qsxf.setReadAhead(parseAhead > 0 ? parseAhead : Runtime.getRuntime().availableProcessors());
+            qsxf.setReadAheadOrdered(!parseUnordered);
+        }
+
         @Override
         public void printHelpOn(OutputStream out) {
             try {
@@ -231,6 +274,15 @@ public class InputCommandFactory extends CommandFactory {
             if (inputFile != null) {
                 input = conditionallyConfigureInputSource(input, new InputSource(), inputFile);
             }
+            parseAhead = options.valueOf(parseAheadSpec);
+            if (parseAhead < 0) {
+                throw new IllegalArgumentException("--" + Flags.PARSE_AHEAD_ARG.get(0) + " must be non-negative");
+            }
+            parseUnordered = options.has(parseUnorderedSpec);
+            rangeBytes = options.valueOf(rangeBytesSpec);
+            if (rangeBytes < 0) {
+                throw new IllegalArgumentException("--" + Flags.RANGE_BYTES_ARG.get(0) + " must be non-negative");
+            }
             return true;
         }
 
@@ -106,6 +106,7 @@ public class JoinCommand implements Command<InputCommandFactory.InputCommand> {
         JoiningXMLFilter joiner = new JoiningXMLFilter(!joinAll);
         if (first && inputBase.filesFrom != null) {
             joiner.setInputType(QueueSourceXMLFilter.InputType.indirect);
+            inputBase.configureReadAhead(joiner);
             if (inputBase.delim != null) {
                 joiner.setDelimiterPattern(Pattern.compile(inputBase.delim, Pattern.LITERAL));
             }
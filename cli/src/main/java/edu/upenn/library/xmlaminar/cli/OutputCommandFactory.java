@@ -17,10 +17,12 @@
 package edu.upenn.library.xmlaminar.cli;
 
 import edu.upenn.library.xmlaminar.parallel.JoiningXMLFilter;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import edu.upenn.library.xmlaminar.parallel.SerializingXMLFilter;
 import edu.upenn.library.xmlaminar.parallel.callback.BaseRelativeFileCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.BaseRelativeIncrementingFileCalback;
 import edu.upenn.library.xmlaminar.parallel.callback.IncrementingFileCallback;
+import edu.upenn.library.xmlaminar.parallel.callback.IncrementingFileCallback.FsyncPolicy;
 import edu.upenn.library.xmlaminar.parallel.callback.OutputCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.StaticFileCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.StdoutCallback;
@@ -88,6 +90,15 @@ class OutputCommandFactory extends CommandFactory {
         protected OptionSpec noIndentSpec;
         protected boolean gzipOutput;
         protected OptionSpec gzipOutputSpec;
+        protected ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
+        protected OptionSpec<Integer> gzipLevelSpec;
+        protected OptionSpec<Integer> gzipThreadsSpec;
+        protected int writeThreads;
+        protected OptionSpec<Integer> writeThreadsSpec;
+        protected int writeAhead;
+        protected OptionSpec<Integer> writeAheadSpec;
+        protected FsyncPolicy fsyncPolicy;
+        protected OptionSpec<FsyncPolicy> fsyncPolicySpec;
 
         protected OptionSpec verboseSpec;
         protected OptionSpec helpSpec;
@@ -115,6 +126,16 @@ class OutputCommandFactory extends CommandFactory {
                     .withRequiredArg().ofType(String.class);
             noIndentSpec = parser.acceptsAll(Flags.NO_INDENT_ARG, "prevent default indenting of output");
             gzipOutputSpec = parser.acceptsAll(Flags.GZIP_OUTPUT_ARG, "gzip output");
+            gzipLevelSpec = parser.acceptsAll(Flags.GZIP_LEVEL_ARG, "gzip compression level (0-9; -1 = default)")
+                    .withRequiredArg().ofType(Integer.class).defaultsTo(ParallelGZIPOutputStream.Settings.DEFAULT.getLevel());
+            gzipThreadsSpec = parser.acceptsAll(Flags.GZIP_THREADS_ARG, "number of blocks of gzip output compressed concurrently")
+                    .withRequiredArg().ofType(Integer.class).defaultsTo(ParallelGZIPOutputStream.Settings.DEFAULT.getThreads());
+            writeThreadsSpec = parser.acceptsAll(Flags.WRITE_THREADS_ARG, "number of threads serializing and writing "
+                    + "incrementing output files asynchronously (0 = synchronous)").withRequiredArg().ofType(Integer.class).defaultsTo(0);
+            writeAheadSpec = parser.acceptsAll(Flags.WRITE_AHEAD_ARG, "maximum number of buffered documents awaiting asynchronous write "
+                    + "(default 2 x write-threads)").withRequiredArg().ofType(Integer.class);
+            fsyncPolicySpec = parser.acceptsAll(Flags.FSYNC_ARG, "when to force incrementing output files to storage (none, file, finish)")
+                    .withRequiredArg().ofType(FsyncPolicy.class).defaultsTo(FsyncPolicy.none);
 
             verboseSpec = parser.acceptsAll(Flags.VERBOSE_ARG, "be more verbose");
             helpSpec = parser.acceptsAll(Flags.HELP_ARG, "show help").forHelp();
@@ -135,7 +156,16 @@ class OutputCommandFactory extends CommandFactory {
             }
             noIndent = options.has(noIndentSpec);
             gzipOutput = options.has(gzipOutputSpec);
+            if (gzipOutput) {
+                gzipSettings = new ParallelGZIPOutputStream.Settings(options.valueOf(gzipLevelSpec), options.valueOf(gzipThreadsSpec));
+            }
             suffixLength = options.valueOf(suffixLengthSpec);
+            writeThreads = options.valueOf(writeThreadsSpec);
+            if (writeThreads < 0) {
+                throw new IllegalArgumentException("--" + Flags.WRITE_THREADS_ARG.get(0) + " must be non-negative");
+            }
+            writeAhead = options.has(writeAheadSpec) ? options.valueOf(writeAheadSpec) : writeThreads * 2;
+            fsyncPolicy = options.valueOf(fsyncPolicySpec);
             outputExtension = options.valueOf(outputExtensionSpec);
             if (options.has(baseFileSpec)) {
                 baseName = options.valueOf(baseFileSpec);
@@ -189,7 +219,10 @@ class OutputCommandFactory extends CommandFactory {
             }
             String inBaseSystemId = inputBase.input.getSystemId();
             File inBaseFile = inBaseSystemId == null ? null : new File(inBaseSystemId);
-            ret = new OutputXMLFilter(inBaseFile, output, baseName, suffixLength, outputExtension, noIndent, gzipOutput);
+            OutputXMLFilter outputFilter = new OutputXMLFilter(inBaseFile, output, baseName, suffixLength, outputExtension, noIndent, gzipOutput);
+            outputFilter.setAsyncOutput(writeThreads, writeAhead, fsyncPolicy);
+            outputFilter.setGzipSettings(gzipSettings);
+            ret = outputFilter;
             return ret;
         }
 
@@ -240,6 +273,25 @@ class OutputCommandFactory extends CommandFactory {
             this.gzipOutput = gzipOutput;
         }
 
+        private int writeThreads = 0;
+        private int writeAhead = 0;
+        private FsyncPolicy fsyncPolicy = FsyncPolicy.none;
+        private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
+
+        /**
+         * Configures incrementing file output; see
+         * {@link IncrementingFileCallback#setAsync(int, int)}.
+         */
+        public void setAsyncOutput(int writeThreads, int writeAhead, FsyncPolicy fsyncPolicy) {
+            this.writeThreads = writeThreads;
+            this.writeAhead = writeAhead;
+            this.fsyncPolicy = fsyncPolicy;
+        }
+
+        public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+            this.gzipSettings = gzipSettings;
+        }
+
         @Override
         public void parse(String systemId) throws SAXException, IOException {
             if (setupParse(null)) {
@@ -285,22 +337,37 @@ class OutputCommandFactory extends CommandFactory {
                     } else {
                         resolvedBase = baseName;
                     }
-                    callbackParent.setOutputCallback(new IncrementingFileCallback(0,
-                            t, suffixLength, resolvedBase, outputExtension, outputFilter, gzipOutput));
+                    IncrementingFileCallback ifc = new IncrementingFileCallback(0,
+                            t, suffixLength, resolvedBase, outputExtension, outputFilter, gzipOutput);
+                    ifc.setAsync(writeThreads, writeAhead);
+                    ifc.setFsyncPolicy(fsyncPolicy);
+                    ifc.setGzipSettings(gzipSettings);
+                    callbackParent.setOutputCallback(ifc);
                 } else if ("-".equals(output.getPath())) {
-                    callbackParent.setOutputCallback(new StdoutCallback(t, outputFilter, gzipOutput));
+                    StdoutCallback sc = new StdoutCallback(t, outputFilter, gzipOutput);
+                    sc.setGzipSettings(gzipSettings);
+                    callbackParent.setOutputCallback(sc);
                 } else if (!output.isDirectory()) {
-                    callbackParent.setOutputCallback(new StaticFileCallback(t, output, outputFilter, gzipOutput));
+                    StaticFileCallback sfc = new StaticFileCallback(t, output, outputFilter, gzipOutput);
+                    sfc.setGzipSettings(gzipSettings);
+                    callbackParent.setOutputCallback(sfc);
                 } else {
                     if (groupBySystemId(parent)) {
-                        callbackParent.setOutputCallback(new BaseRelativeFileCallback(inputBase, output, t, gzipOutput));
+                        BaseRelativeFileCallback brfc = new BaseRelativeFileCallback(inputBase, output, t, gzipOutput);
+                        brfc.setGzipSettings(gzipSettings);
+                        callbackParent.setOutputCallback(brfc);
                     } else {
-                        callbackParent.setOutputCallback(new BaseRelativeIncrementingFileCalback(inputBase, output, t, outputExtension, outputExtension != null, suffixLength, outputFilter, gzipOutput));
+                        BaseRelativeIncrementingFileCalback brifc = new BaseRelativeIncrementingFileCalback(inputBase, output, t, outputExtension, outputExtension != null, suffixLength, outputFilter, gzipOutput);
+                        brifc.setAsync(writeThreads, writeAhead);
+                        brifc.setFsyncPolicy(fsyncPolicy);
+                        brifc.setGzipSettings(gzipSettings);
+                        callbackParent.setOutputCallback(brifc);
                     }
                 }
                 return true;
             } else {
                 SerializingXMLFilter serializer = new SerializingXMLFilter(output, gzipOutput);
+                serializer.setGzipSettings(gzipSettings);
                 serializer.setParent(noIndent ? parent : new OutputTransformerConfigurer(parent, Collections.singletonMap("indent", "yes")));
                 serializer.parse(inSource);
                 return false;
@@ -16,6 +16,7 @@
 
 package edu.upenn.library.xmlaminar.cli;
 
+import edu.upenn.library.xmlaminar.ContentHandlerBufferType;
 import edu.upenn.library.xmlaminar.parallel.QueueSourceXMLFilter;
 import edu.upenn.library.xmlaminar.parallel.TXMLFilter;
 import java.io.File;
@@ -68,6 +69,26 @@ class ProcessCommandFactory extends CommandFactory {
         private final OptionSpec<String> recordIdXPathSpec;
         private boolean subdivide;
         private final OptionSpec subdivideSpec;
+        private ContentHandlerBufferType bufferType;
+        private final OptionSpec<ContentHandlerBufferType> bufferTypeSpec;
+        private long spillThreshold;
+        private final OptionSpec<Long> spillThresholdSpec;
+        private boolean coalesceCharacters;
+        private final OptionSpec coalesceCharactersSpec;
+        private boolean treeInput;
+        private final OptionSpec treeInputSpec;
+        private boolean recordwise;
+        private final OptionSpec recordwiseSpec;
+        private int queueDepth;
+        private final OptionSpec<Integer> queueDepthSpec;
+        private int parallelism;
+        private final OptionSpec<Integer> parallelismSpec;
+        private boolean workStealing;
+        private final OptionSpec workStealingSpec;
+        private long reorderBytes;
+        private final OptionSpec<Long> reorderBytesSpec;
+        private boolean unordered;
+        private final OptionSpec unorderedSpec;
         private final OptionSpec verboseSpec;
         private final OptionSpec helpSpec;
 
@@ -86,6 +107,23 @@ class ProcessCommandFactory extends CommandFactory {
             xslSpec = parser.acceptsAll(Flags.XSL_FILE_ARG, "xsl file defining processing templates").withRequiredArg().ofType(File.class);
             recordIdXPathSpec = parser.acceptsAll(Flags.RECORD_ID_XPATH_ARG, "xpath specifying record id location").withRequiredArg().ofType(String.class);
             subdivideSpec = parser.acceptsAll(Flags.SUBDIVIDE_ARG, "define behavior on processing failure");
+            bufferTypeSpec = parser.acceptsAll(Flags.BUFFER_TYPE_ARG, "event buffer implementation for processing chunks")
+                    .withRequiredArg().ofType(ContentHandlerBufferType.class).defaultsTo(ContentHandlerBufferType.DEFAULT);
+            spillThresholdSpec = parser.acceptsAll(Flags.SPILL_THRESHOLD_ARG, "bytes of buffered events per chunk to hold in memory before spilling to disk (0 = never; requires compact buffer-type)")
+                    .withRequiredArg().ofType(Long.class).defaultsTo(0L);
+            coalesceCharactersSpec = parser.acceptsAll(Flags.COALESCE_CHARACTERS_ARG, "merge adjacent character events in chunk buffers (requires unbounded buffer-type)");
+            treeInputSpec = parser.acceptsAll(Flags.TREE_INPUT_ARG, "build each chunk's input tree directly as events arrive, "
+                    + "rather than buffering events for replay at transform time");
+            recordwiseSpec = parser.acceptsAll(Flags.PER_RECORD_ARG, "transform each record separately, "
+                    + "dropping individual failing records rather than failing (or subdividing) chunks");
+            queueDepthSpec = parser.acceptsAll(Flags.QUEUE_DEPTH_ARG, "maximum number of chunks in flight")
+                    .withRequiredArg().ofType(Integer.class).defaultsTo(TXMLFilter.DEFAULT_QUEUE_DEPTH);
+            parallelismSpec = parser.acceptsAll(Flags.PARALLELISM_ARG, "maximum number of chunks transformed concurrently")
+                    .withRequiredArg().ofType(Integer.class).defaultsTo(TXMLFilter.DEFAULT_PARALLELISM);
+            workStealingSpec = parser.acceptsAll(Flags.WORK_STEALING_ARG, "schedule chunk transformation on a work-stealing pool");
+            reorderBytesSpec = parser.acceptsAll(Flags.REORDER_BYTES_ARG, "bytes of completed output to hold awaiting in-order output before pausing intake (0 = bounded only by queue-depth)")
+                    .withRequiredArg().ofType(Long.class).defaultsTo(0L);
+            unorderedSpec = parser.acceptsAll(Flags.UNORDERED_ARG, "output chunks in order of completion rather than of input");
             verboseSpec = parser.acceptsAll(Flags.VERBOSE_ARG, "be more verbose");
             helpSpec = parser.acceptsAll(Flags.HELP_ARG, "show help").forHelp();
         }
@@ -99,6 +137,28 @@ class ProcessCommandFactory extends CommandFactory {
             xsl = options.valueOf(xslSpec);
             recordIdXPath = options.valueOf(recordIdXPathSpec);
             subdivide = options.has(subdivideSpec);
+            bufferType = options.valueOf(bufferTypeSpec);
+            spillThreshold = options.valueOf(spillThresholdSpec);
+            if (spillThreshold != 0 && bufferType != ContentHandlerBufferType.compact) {
+                throw new IllegalArgumentException("--" + Flags.SPILL_THRESHOLD_ARG.get(0) + " requires --" + Flags.BUFFER_TYPE_ARG.get(0) + " " + ContentHandlerBufferType.compact);
+            }
+            coalesceCharacters = options.has(coalesceCharactersSpec);
+            treeInput = options.has(treeInputSpec);
+            recordwise = options.has(recordwiseSpec);
+            queueDepth = options.valueOf(queueDepthSpec);
+            parallelism = options.valueOf(parallelismSpec);
+            if (queueDepth < 1 || parallelism < 1) {
+                throw new IllegalArgumentException("--" + Flags.QUEUE_DEPTH_ARG.get(0) + " and --" + Flags.PARALLELISM_ARG.get(0) + " must be positive");
+            }
+            workStealing = options.has(workStealingSpec);
+            reorderBytes = options.valueOf(reorderBytesSpec);
+            if (reorderBytes < 0) {
+                throw new IllegalArgumentException("--" + Flags.REORDER_BYTES_ARG.get(0) + " must be non-negative");
+            }
+            unordered = options.has(unorderedSpec);
+            if (coalesceCharacters && bufferType != ContentHandlerBufferType.unbounded) {
+                throw new IllegalArgumentException("--" + Flags.COALESCE_CHARACTERS_ARG.get(0) + " requires --" + Flags.BUFFER_TYPE_ARG.get(0) + " " + ContentHandlerBufferType.unbounded);
+            }
             return true;
         }
         
@@ -114,16 +174,28 @@ class ProcessCommandFactory extends CommandFactory {
             }
             CommandFactory.conditionalInit(first, inputBase, EXPECT_INPUT);
             try {
-                txf = new TXMLFilter(new StreamSource(xsl), recordIdXPath, subdivide, recordDepth);
+                txf = new TXMLFilter(new StreamSource(xsl), recordIdXPath, subdivide, recordDepth, bufferType, queueDepth);
             } catch (TransformerConfigurationException ex) {
                 throw new RuntimeException(ex);
             }
+            txf.setSpillThreshold(spillThreshold);
+            txf.setCoalesceCharacters(coalesceCharacters);
+            txf.setTreeInput(treeInput);
+            txf.setRecordwise(recordwise);
+            txf.setParallelism(parallelism);
+            txf.setWorkStealing(workStealing);
+            txf.setMaxReorderBytes(reorderBytes);
+            txf.setOrderedOutput(!unordered);
             if (first && inputBase.filesFrom != null) {
                 txf.setInputType(QueueSourceXMLFilter.InputType.indirect);
+                inputBase.configureReadAhead(txf);
                 if (inputBase.delim != null) {
                     txf.setDelimiterPattern(Pattern.compile(inputBase.delim, Pattern.LITERAL));
                 }
             }
+            if (first) {
+                inputBase.configureByteRanges(txf, recordDepth, 1);
+            }
             return txf;
         }
 
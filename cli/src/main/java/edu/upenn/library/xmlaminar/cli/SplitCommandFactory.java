@@ -16,6 +16,7 @@
 
 package edu.upenn.library.xmlaminar.cli;
 
+import edu.upenn.library.xmlaminar.parallel.AdaptiveChunkSizer;
 import edu.upenn.library.xmlaminar.parallel.LevelSplittingXMLFilter;
 import edu.upenn.library.xmlaminar.parallel.QueueSourceXMLFilter;
 import java.io.File;
@@ -60,6 +61,12 @@ class SplitCommandFactory extends CommandFactory {
         private final OptionSpec<Integer> chunkSizeSpec;
         private int recordDepth;
         private final OptionSpec<Integer> recordDepthSpec;
+        private AdaptiveChunkSizer chunkSizer;
+        private final OptionSpec<Long> chunkEventsSpec;
+        private final OptionSpec<Long> chunkBytesSpec;
+        private final OptionSpec<Long> chunkLatencySpec;
+        private int batchSize;
+        private final OptionSpec<Integer> batchSizeSpec;
 
         private final OptionSpec verboseSpec;
         private final OptionSpec helpSpec;
@@ -80,6 +87,14 @@ class SplitCommandFactory extends CommandFactory {
             chunkSizeSpec = parser.acceptsAll(Flags.SIZE_ARG, "size (in records) of output files (for split) "
                     + "or processing chunks (for process)").withRequiredArg().ofType(Integer.class)
                     .defaultsTo(100);
+            chunkEventsSpec = parser.acceptsAll(Flags.CHUNK_EVENTS_ARG, "adaptive sizing: (initial) target number of SAX events per chunk")
+                    .withRequiredArg().ofType(Long.class).defaultsTo(AdaptiveChunkSizer.DEFAULT_TARGET_EVENTS);
+            chunkBytesSpec = parser.acceptsAll(Flags.CHUNK_BYTES_ARG, "adaptive sizing: maximum (estimated) bytes of buffered events per chunk")
+                    .withRequiredArg().ofType(Long.class).defaultsTo(0L);
+            chunkLatencySpec = parser.acceptsAll(Flags.CHUNK_LATENCY_ARG, "adaptive sizing: target processing time (millis) per chunk, "
+                    + "adjusting chunk size based on feedback from process command").withRequiredArg().ofType(Long.class).defaultsTo(0L);
+            batchSizeSpec = parser.acceptsAll(Flags.SPLIT_BATCH_ARG, "number of split documents to buffer for asynchronous hand-off "
+                    + "to the next command (0 = synchronous hand-off)").withRequiredArg().ofType(Integer.class).defaultsTo(0);
             verboseSpec = parser.acceptsAll(Flags.VERBOSE_ARG, "be more verbose");
             helpSpec = parser.acceptsAll(Flags.HELP_ARG, "show help").forHelp();
         }
@@ -91,6 +106,16 @@ class SplitCommandFactory extends CommandFactory {
             }
             recordDepth = options.valueOf(recordDepthSpec);
             chunkSize = options.valueOf(chunkSizeSpec);
+            if (options.has(chunkEventsSpec) || options.has(chunkBytesSpec) || options.has(chunkLatencySpec)) {
+                chunkSizer = new AdaptiveChunkSizer(options.valueOf(chunkEventsSpec), options.valueOf(chunkBytesSpec), options.valueOf(chunkLatencySpec));
+                if (!options.has(chunkSizeSpec)) {
+                    chunkSize = Integer.MAX_VALUE;
+                }
+            }
+            batchSize = options.valueOf(batchSizeSpec);
+            if (batchSize < 0) {
+                throw new IllegalArgumentException("--" + Flags.SPLIT_BATCH_ARG.get(0) + " must be non-negative");
+            }
             return true;
         }
         
@@ -103,12 +128,18 @@ class SplitCommandFactory extends CommandFactory {
             }
             CommandFactory.conditionalInit(first, inputBase, EXPECT_INPUT);
             LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter(recordDepth, chunkSize);
+            splitter.setChunkSizer(chunkSizer);
+            splitter.setBatchSize(batchSize);
             if (first && inputBase.filesFrom != null) {
                 splitter.setInputType(QueueSourceXMLFilter.InputType.indirect);
+                inputBase.configureReadAhead(splitter);
                 if (inputBase.delim != null) {
                     splitter.setDelimiterPattern(Pattern.compile(inputBase.delim, Pattern.LITERAL));
                 }
             }
+            if (first) {
+                inputBase.configureByteRanges(splitter, recordDepth, chunkSizer == null ? chunkSize : 1);
+            }
             return splitter;
         }
 
@@ -27,8 +27,10 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import javax.xml.parsers.ParserConfigurationException;
@@ -44,6 +46,8 @@ import org.slf4j.LoggerFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.AttributesImpl;
 
@@ -93,6 +97,30 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     private int charHead = 0;
     private int charTail = 0;
 
+    /*
+     * Single-producer/single-consumer (lock-free) mode: the ring is coordinated
+     * by published/consumed sequence counters (written with ordered stores)
+     * rather than by the lock and writable[] flags, and waiting spins, then
+     * yields, then parks briefly. Chars are written into an arena that is
+     * replaced (rather than drained) when full; each char event records the
+     * arena it was written to.
+     */
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 10;
+    private static final long PARK_NANOS = 50000;
+    private final boolean lockFree;
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong consumed = new AtomicLong(0);
+    private final AtomicLong charsConsumed = new AtomicLong(0);
+    private long producedCount = 0;
+    private long consumedCount = 0;
+    private long charsProduced = 0;
+    private long charsConsumedCount = 0;
+    private long arenaStart = 0;
+    private final char[][] charArenaArgs;
+    private volatile Thread producerWaiter;
+    private volatile Thread consumerWaiter;
+
     private static final Logger logger = LoggerFactory.getLogger(BoundedXMLFilterBuffer.class);
 
     public static void main(String[] args) throws FileNotFoundException, TransformerConfigurationException, ParserConfigurationException, SAXException, TransformerException, IOException {
@@ -112,20 +140,23 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     }
 
     public BoundedXMLFilterBuffer() {
-        bufferSize = DEFAULT_BUFFER_SIZE;
-        threshold = (int) (bufferSize * 0.5);
-        events = new SaxEventType[bufferSize];
-        writable = new boolean[bufferSize];
-        argIndex1 = new int[bufferSize];
-        argIndex2 = new int[bufferSize];
-        stringArgBuffer = new String[bufferSize * MAX_STRING_ARGS_PER_EVENT];
-        attsArgBuffer = new Attributes[bufferSize];
-        intArgBuffer = new int[bufferSize * MAX_INT_ARGS_PER_EVENT];
-        charArgBuffer = new char[bufferSize * CHAR_BUFFER_INIT_FACTOR];
+        this(DEFAULT_BUFFER_SIZE);
     }
 
     public BoundedXMLFilterBuffer(int bufferSize) {
+        this(bufferSize, false);
+    }
+
+    /**
+     * @param bufferSize
+     * @param lockFree if true, coordinate the (single) producer and (single)
+     * consumer via sequence counters rather than a lock, and grow the char
+     * arena without waiting for the consumer to drain the buffer.
+     */
+    public BoundedXMLFilterBuffer(int bufferSize, boolean lockFree) {
         this.bufferSize = bufferSize;
+        this.lockFree = lockFree;
+        charArenaArgs = lockFree ? new char[bufferSize][] : null;
         threshold = (int) (bufferSize * 0.5);
         events = new SaxEventType[bufferSize];
         writable = new boolean[bufferSize];
@@ -138,6 +169,7 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     }
 
     public void clear() {
+        pendingCharsLength = 0;
         head = 0;
         tail = 0;
         Arrays.fill(writable, false);
@@ -152,6 +184,80 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
         notifyEmpty = false;
         outputNotifyThresholdCount = 0;
         inputNotifyThresholdCount = 0;
+        if (lockFree) {
+            published.set(0);
+            consumed.set(0);
+            charsConsumed.set(0);
+            producedCount = 0;
+            consumedCount = 0;
+            charsProduced = 0;
+            charsConsumedCount = 0;
+            arenaStart = 0;
+            Arrays.fill(charArenaArgs, null);
+        }
+    }
+
+    public boolean isLockFree() {
+        return lockFree;
+    }
+
+    /*
+     * Events already published to the ring may be consumed at any time, so
+     * adjacent characters events are instead coalesced on the producer side,
+     * into a pending run that is buffered as a single event before the next
+     * non-characters event.
+     */
+    private boolean coalesceCharacters = false;
+    private char[] pendingChars;
+    private int pendingCharsLength = 0;
+
+    public boolean isCoalesceCharacters() {
+        return coalesceCharacters;
+    }
+
+    /**
+     * If true, adjacent characters() events are merged into a single event
+     * before being buffered.
+     * @param coalesce
+     */
+    public void setCoalesceCharacters(boolean coalesce) {
+        if (coalesce && pendingChars == null) {
+            pendingChars = new char[bufferSize * CHAR_BUFFER_INIT_FACTOR];
+        }
+        this.coalesceCharacters = coalesce;
+    }
+
+    private void flushPendingChars() {
+        int length = pendingCharsLength;
+        pendingCharsLength = 0;
+        blockForSpace();
+        bufferCharArgs(pendingChars, 0, length);
+        events[tail] = SaxEventType.characters;
+        eventAdded();
+    }
+
+    private SymbolTable symbolTable;
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * If set, names are canonicalized against the specified table as they are
+     * buffered.
+     * @param symbolTable may be null
+     */
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (symbolTable != null && SAXFeatures.STRING_INTERNING.equals(name)) {
+            return true;
+        } else {
+            return super.getFeature(name);
+        }
     }
 
     private void growCharArgBuffer() {
@@ -185,7 +291,14 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
      * Buffering
      */
     private void blockForSpace() {
-        if (writable[tail]) {
+        if (pendingCharsLength > 0) {
+            flushPendingChars();
+        }
+        if (lockFree) {
+            if (producedCount - consumed.get() >= bufferSize) {
+                awaitSpace();
+            }
+        } else if (writable[tail]) {
             notifyInput = true;
             try {
                 lock.lock();
@@ -203,7 +316,63 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
         }
     }
 
+    private void awaitSpace() {
+        int tries = 0;
+        while (producedCount - consumed.get() >= bufferSize) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                producerWaiter = Thread.currentThread();
+                if (producedCount - consumed.get() >= bufferSize) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                producerWaiter = null;
+            }
+            checkInterrupted();
+        }
+    }
+
+    private void awaitInput() {
+        int tries = 0;
+        while (consumedCount == published.get()) {
+            if (tries < SPIN_TRIES) {
+                tries++;
+            } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                tries++;
+                Thread.yield();
+            } else {
+                consumerWaiter = Thread.currentThread();
+                if (consumedCount == published.get()) {
+                    LockSupport.parkNanos(this, PARK_NANOS);
+                }
+                consumerWaiter = null;
+            }
+            checkInterrupted();
+        }
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.interrupted()) {
+            throw new RuntimeException(new InterruptedException());
+        }
+    }
+
+    private static void unpark(Thread waiter) {
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
     private void eventAdded() {
+        if (lockFree) {
+            tail = incrementMod(tail, bufferSize);
+            published.lazySet(++producedCount);
+            unpark(consumerWaiter);
+            return;
+        }
         writable[tail] = true;
         if (notifyOutput) {
             if (!useOutputNotifyThreshold || ++outputNotifyThresholdCount > threshold) {
@@ -258,6 +427,10 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void startPrefixMapping(String prefix, String uri) throws SAXException {
         blockForSpace();
+        if (symbolTable != null) {
+            prefix = symbolTable.canonicalize(prefix);
+            uri = symbolTable.canonicalize(uri);
+        }
         bufferStringArgs(prefix, uri);
         events[tail] = SaxEventType.startPrefixMapping;
         eventAdded();
@@ -266,6 +439,9 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void endPrefixMapping(String prefix) throws SAXException {
         blockForSpace();
+        if (symbolTable != null) {
+            prefix = symbolTable.canonicalize(prefix);
+        }
         bufferStringArgs(prefix);
         events[tail] = SaxEventType.endPrefixMapping;
         eventAdded();
@@ -290,9 +466,14 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
         blockForSpace();
+        if (symbolTable != null) {
+            uri = symbolTable.canonicalize(uri);
+            localName = symbolTable.canonicalize(localName);
+            qName = symbolTable.canonicalize(qName);
+        }
         bufferStringArgs(uri, localName, qName);
         argIndex2[tail] = attsTail;
-        attsArgBuffer[attsTail] = new AttributesImpl(atts);
+        attsArgBuffer[attsTail] = symbolTable == null ? new AttributesImpl(atts) : symbolTable.canonicalize(atts);
         attsTail = incrementMod(attsTail, attsArgBuffer.length);
         events[tail] = SaxEventType.startElement;
         eventAdded();
@@ -301,6 +482,11 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         blockForSpace();
+        if (symbolTable != null) {
+            uri = symbolTable.canonicalize(uri);
+            localName = symbolTable.canonicalize(localName);
+            qName = symbolTable.canonicalize(qName);
+        }
         bufferStringArgs(uri, localName, qName);
         events[tail] = SaxEventType.endElement;
         eventAdded();
@@ -342,6 +528,16 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
+        if (coalesceCharacters) {
+            if (pendingChars.length - pendingCharsLength < length) {
+                char[] tmp = pendingChars;
+                pendingChars = new char[Math.max(tmp.length * 2, pendingCharsLength + length)];
+                System.arraycopy(tmp, 0, pendingChars, 0, pendingCharsLength);
+            }
+            System.arraycopy(ch, start, pendingChars, pendingCharsLength, length);
+            pendingCharsLength += length;
+            return;
+        }
         blockForSpace();
         bufferCharArgs(ch, start, length);
         events[tail] = SaxEventType.characters;
@@ -366,8 +562,12 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
 
     private void bufferCharArgs(char[] ch, int start, int length) {
         argIndex1[tail] = intTail;
-        int charSizeSnapshot = charSize.get();
-        while (charArgBuffer.length - charSizeSnapshot < length - 1) {
+        if (lockFree) {
+            bufferCharArgsLockFree(ch, start, length);
+            return;
+        }
+        int charSizeSnapshot;
+        while (charArgBuffer.length - (charSizeSnapshot = charSize.get()) < length) {
             growCharArgBuffer();
         }
         int charHeadSnapshot = charHead;
@@ -391,6 +591,33 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
         charSize.addAndGet(length);
     }
 
+    private void bufferCharArgsLockFree(char[] ch, int start, int length) {
+        long inUse = charsProduced - Math.max(charsConsumed.get(), arenaStart);
+        if (charArgBuffer.length - inUse < length) {
+            int newLength = Math.max(charArgBuffer.length * 2, length);
+            if (logger.isInfoEnabled()) {
+                logger.info("replacing charArgBuffer with new arena of size: " + newLength);
+            }
+            charArgBuffer = new char[newLength];
+            charTail = 0;
+            arenaStart = charsProduced;
+        }
+        if (charArgBuffer.length - charTail < length) {
+            firstChunkSize = charArgBuffer.length - charTail;
+            System.arraycopy(ch, start, charArgBuffer, charTail, firstChunkSize);
+            System.arraycopy(ch, start + firstChunkSize, charArgBuffer, 0, length - firstChunkSize);
+        } else {
+            System.arraycopy(ch, start, charArgBuffer, charTail, length);
+        }
+        charArenaArgs[tail] = charArgBuffer;
+        intArgBuffer[intTail] = charTail;
+        intTail = incrementMod(intTail, intArgBuffer.length);
+        charTail = simpleMod(charTail + length, charArgBuffer.length);
+        intArgBuffer[intTail] = length;
+        intTail = incrementMod(intTail, intArgBuffer.length);
+        charsProduced += length;
+    }
+
     @Override
     public void processingInstruction(String target, String data) throws SAXException {
         blockForSpace();
@@ -526,7 +753,11 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
 
         public void parse() {
             while (parsing) {
-                if (!writable[head]) {
+                if (lockFree) {
+                    if (consumedCount == published.get()) {
+                        awaitInput();
+                    }
+                } else if (!writable[head]) {
                     notifyOutput = true;
                     try {
                         lock.lock();
@@ -623,11 +854,26 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
             case comment:
                 executeCharArgs(type, index);
                 break;
+            case processingInstruction:
+                index1 = argIndex1[index];
+                index2 = incrementMod(index1, stringArgBuffer.length);
+                super.processingInstruction(stringArgBuffer[index1], stringArgBuffer[index2]);
+                break;
+            case skippedEntity:
+                index1 = argIndex1[index];
+                super.skippedEntity(stringArgBuffer[index1]);
+                break;
         }
         eventExecuted();
     }
 
     private void eventExecuted() {
+        if (lockFree) {
+            head = incrementMod(head, bufferSize);
+            consumed.lazySet(++consumedCount);
+            unpark(producerWaiter);
+            return;
+        }
         writable[head] = false;
         if (notifyInput) {
             if (!useInputNotifyThreshold || ++inputNotifyThresholdCount > threshold) {
@@ -646,6 +892,13 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
     private int executeFirstChunkSize;
 
     private void executeCharArgs(SaxEventType type, int index) throws SAXException {
+        char[] charArgBuffer;
+        if (lockFree) {
+            charArgBuffer = charArenaArgs[index];
+            charArenaArgs[index] = null;
+        } else {
+            charArgBuffer = this.charArgBuffer;
+        }
         index1 = argIndex1[index];
         index2 = incrementMod(index1, intArgBuffer.length);
         if (intArgBuffer[index2] > charArgBuffer.length - intArgBuffer[index1]) {
@@ -660,8 +913,11 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
                     super.ignorableWhitespace(charArgBuffer, 0, intArgBuffer[index2] - executeFirstChunkSize);
                     break;
                 case comment:
-                    super.comment(charArgBuffer, intArgBuffer[index1], executeFirstChunkSize);
-                    super.comment(charArgBuffer, 0, intArgBuffer[index2] - executeFirstChunkSize);
+                    // a comment must be reported in a single call
+                    char[] comment = new char[intArgBuffer[index2]];
+                    System.arraycopy(charArgBuffer, intArgBuffer[index1], comment, 0, executeFirstChunkSize);
+                    System.arraycopy(charArgBuffer, 0, comment, executeFirstChunkSize, comment.length - executeFirstChunkSize);
+                    super.comment(comment, 0, comment.length);
                     break;
             }
         } else {
@@ -677,8 +933,13 @@ public class BoundedXMLFilterBuffer extends XMLFilterLexicalHandlerImpl {
                     break;
             }
         }
-        charHead = simpleMod(charHead + intArgBuffer[index2], charArgBuffer.length);
-        charSize.addAndGet(-intArgBuffer[index2]);
+        if (lockFree) {
+            charsConsumedCount += intArgBuffer[index2];
+            charsConsumed.lazySet(charsConsumedCount);
+        } else {
+            charHead = simpleMod(charHead + intArgBuffer[index2], charArgBuffer.length);
+            charSize.addAndGet(-intArgBuffer[index2]);
+        }
     }
 
 }
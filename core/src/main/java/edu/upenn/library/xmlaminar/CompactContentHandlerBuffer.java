@@ -0,0 +1,710 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Drop-in alternative to {@link UnboundedContentHandlerBuffer} that encodes events
+ * into a single growable byte arena (opcode byte followed by varint arguments) and
+ * a single growable char arena. Names (uri, localName, qName, prefix, attribute
+ * names and types, etc.) are stored as references into a per-buffer name pool,
+ * so a buffered chunk holds a handful of arrays rather than an object reference
+ * (and an AttributesImpl) per event.
+ * If a {@link SymbolTable} is set, pooled names are canonical instances from
+ * that table.
+ * <p>
+ * If a spill threshold is set, then rather than growing the arenas beyond the
+ * threshold, the encoded events buffered so far are appended (as a segment) to
+ * a temp file, and the arenas are reused. On replay, spilled segments are
+ * read back (into a reusable heap buffer) and replayed in order, followed by
+ * the in-memory events. The temp file is truncated (rather than deleted) on
+ * {@link #clear()}, so that a buffer reuses a single file; it is deleted on
+ * {@link #trim()}.
+ * Segments are split at event boundaries, so events in a segment only
+ * reference chars in the same segment.
+ *
+ * @author michael
+ */
+public class CompactContentHandlerBuffer extends ContentHandlerBuffer {
+
+    public static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int CHAR_BUFFER_INIT_FACTOR = 2;
+    private static final int MAX_VARINT_BYTES = 5;
+    private static final int INITIAL_NAME_POOL_SIZE = 64;
+    private static final int MAX_RETAINED_NAME_POOL_SIZE = 4096;
+    private static final SaxEventType[] EVENT_TYPES = SaxEventType.values();
+
+    private byte[] ops;
+    private int opsTail = 0;
+
+    private char[] chars;
+    private int charTail = 0;
+
+    private int size = 0;
+
+    private long spillThreshold = 0;
+    private File spillFile;
+    private FileChannel spillChannel;
+    private long spillFileLength = 0;
+    private final List<SpillSegment> spillSegments = new ArrayList<SpillSegment>();
+    private ByteBuffer spillWriteBuffer;
+    private ByteBuffer spillReadBuffer;
+    private static final int SPILL_WRITE_BUFFER_SIZE = 65536;
+
+    /*
+     * name id 0 is reserved for null
+     */
+    private String[] names = new String[INITIAL_NAME_POOL_SIZE];
+    private final Map<String, Integer> nameIds = new HashMap<String, Integer>();
+    private int nameCount = 1;
+
+    public CompactContentHandlerBuffer() {
+        this(INITIAL_BUFFER_SIZE);
+    }
+
+    private final int initialBufferSize;
+
+    public CompactContentHandlerBuffer(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+        ops = new byte[initialBufferSize];
+        chars = new char[initialBufferSize * CHAR_BUFFER_INIT_FACTOR];
+    }
+
+    /**
+     * @param opsSpace non-zero only at the start of an event, where it is safe
+     * to spill
+     */
+    private void checkSpace(int opsSpace, int charSpace) {
+        if (spillThreshold > 0 && opsSpace > 0 && opsTail > 0) {
+            int newOpsLength = opsTail + opsSpace > ops.length ? Math.max(ops.length * 2, opsTail + opsSpace) : ops.length;
+            int newCharsLength = charTail + charSpace > chars.length ? Math.max(chars.length * 2, charTail + charSpace) : chars.length;
+            if ((newOpsLength != ops.length || newCharsLength != chars.length)
+                    && newOpsLength + (newCharsLength * 2L) > spillThreshold) {
+                spill();
+            }
+        }
+        if (opsTail + opsSpace > ops.length) {
+            byte[] tmp = ops;
+            ops = new byte[Math.max(tmp.length * 2, opsTail + opsSpace)];
+            System.arraycopy(tmp, 0, ops, 0, opsTail);
+        }
+        if (charSpace > 0 && charTail + charSpace > chars.length) {
+            char[] tmp = chars;
+            chars = new char[Math.max(tmp.length * 2, charTail + charSpace)];
+            System.arraycopy(tmp, 0, chars, 0, charTail);
+        }
+    }
+
+    private void writeEvent(SaxEventType type) {
+        ops[opsTail++] = (byte) type.ordinal();
+        size++;
+    }
+
+    private void writeInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            ops[opsTail++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        ops[opsTail++] = (byte) value;
+    }
+
+    private void writeName(String name) {
+        if (name == null) {
+            writeInt(0);
+            return;
+        }
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            if (nameCount == names.length) {
+                String[] tmp = names;
+                names = new String[tmp.length * 2];
+                System.arraycopy(tmp, 0, names, 0, nameCount);
+            }
+            id = nameCount;
+            names[nameCount++] = symbolTable == null ? name : symbolTable.canonicalize(name);
+            nameIds.put(name, id);
+        }
+        writeInt(id);
+    }
+
+    /**
+     * Text is written as (length + 1), with 0 representing null; chars are
+     * appended to the char arena, and are consumed sequentially on replay.
+     */
+    private void writeText(String text) {
+        if (text == null) {
+            writeInt(0);
+        } else {
+            int length = text.length();
+            checkSpace(0, length);
+            text.getChars(0, length, chars, charTail);
+            charTail += length;
+            writeInt(length + 1);
+        }
+    }
+
+    private void writeChars(SaxEventType type, char[] ch, int start, int length) {
+        checkSpace(1 + MAX_VARINT_BYTES, length);
+        writeEvent(type);
+        writeInt(length);
+        System.arraycopy(ch, start, chars, charTail, length);
+        charTail += length;
+    }
+
+    private void writeNoArgs(SaxEventType type) {
+        checkSpace(1, 0);
+        writeEvent(type);
+    }
+
+    private void writeNames(SaxEventType type, String one) {
+        checkSpace(1 + MAX_VARINT_BYTES, 0);
+        writeEvent(type);
+        writeName(one);
+    }
+
+    private void writeNames(SaxEventType type, String one, String two) {
+        checkSpace(1 + MAX_VARINT_BYTES * 2, 0);
+        writeEvent(type);
+        writeName(one);
+        writeName(two);
+    }
+
+    private void writeNames(SaxEventType type, String one, String two, String three) {
+        checkSpace(1 + MAX_VARINT_BYTES * 3, 0);
+        writeEvent(type);
+        writeName(one);
+        writeName(two);
+        writeName(three);
+    }
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param bytes approximate ceiling on heap retained by the arenas, beyond
+     * which buffered events are spilled to a temp file; 0 disables spilling.
+     */
+    @Override
+    public void setSpillThreshold(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("negative spill threshold: " + bytes);
+        }
+        this.spillThreshold = bytes;
+    }
+
+    /**
+     * @return number of bytes of encoded events currently spilled to disk
+     */
+    public long getSpilledSize() {
+        return spillFileLength;
+    }
+
+    private void spill() {
+        try {
+            if (spillChannel == null) {
+                spillFile = File.createTempFile("xmlaminar-", ".spill");
+                spillFile.deleteOnExit();
+                spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+                spillWriteBuffer = ByteBuffer.allocate(SPILL_WRITE_BUFFER_SIZE);
+            }
+            SpillSegment segment = new SpillSegment(spillFileLength, opsTail, charTail);
+            writeFully(ByteBuffer.wrap(ops, 0, opsTail));
+            for (int offset = 0; offset < charTail;) {
+                int length = Math.min(charTail - offset, SPILL_WRITE_BUFFER_SIZE / 2);
+                spillWriteBuffer.clear();
+                spillWriteBuffer.asCharBuffer().put(chars, offset, length);
+                spillWriteBuffer.limit(length * 2);
+                writeFully(spillWriteBuffer);
+                offset += length;
+            }
+            spillSegments.add(segment);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+        opsTail = 0;
+        charTail = 0;
+    }
+
+    private void writeFully(ByteBuffer bb) throws IOException {
+        while (bb.hasRemaining()) {
+            spillFileLength += spillChannel.write(bb, spillFileLength);
+        }
+    }
+
+    private void clearSpill() {
+        spillSegments.clear();
+        if (spillFileLength > 0) {
+            spillFileLength = 0;
+            try {
+                spillChannel.truncate(0);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+    }
+
+    private void closeSpill() {
+        if (spillChannel != null) {
+            spillSegments.clear();
+            spillFileLength = 0;
+            try {
+                spillChannel.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            } finally {
+                spillChannel = null;
+                spillWriteBuffer = null;
+                spillReadBuffer = null;
+                spillFile.delete();
+                spillFile = null;
+            }
+        }
+    }
+
+    /**
+     * @return the spill file, if any; exposed for tests
+     */
+    File getSpillFile() {
+        return spillFile;
+    }
+
+    /**
+     * Location of a spilled segment: ops bytes, followed by chars (2 bytes each).
+     */
+    private class SpillSegment {
+
+        private final long offset;
+        private final int opsLength;
+        private final int charsLength;
+
+        private SpillSegment(long offset, int opsLength, int charsLength) {
+            this.offset = offset;
+            this.opsLength = opsLength;
+            this.charsLength = charsLength;
+        }
+
+        /**
+         * Reads this segment into the (shared) spill read buffer, which is
+         * valid until the next call to read().
+         */
+        private ByteBuffer read() throws IOException {
+            int length = opsLength + (charsLength * 2);
+            if (spillReadBuffer == null || spillReadBuffer.capacity() < length) {
+                spillReadBuffer = ByteBuffer.allocate(Math.max(length, SPILL_WRITE_BUFFER_SIZE));
+            }
+            ByteBuffer ret = spillReadBuffer;
+            ret.clear();
+            ret.limit(length);
+            while (ret.hasRemaining()) {
+                if (spillChannel.read(ret, offset + ret.position()) < 0) {
+                    throw new EOFException("truncated spill segment at " + offset);
+                }
+            }
+            ret.flip();
+            return ret;
+        }
+    }
+
+    /*
+     * Buffering
+     */
+    @Override
+    public void startDocument() throws SAXException {
+        writeNoArgs(SaxEventType.startDocument);
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        writeNoArgs(SaxEventType.endDocument);
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        writeNames(SaxEventType.startPrefixMapping, prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        writeNames(SaxEventType.endPrefixMapping, prefix);
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        int attsLength = atts.getLength();
+        checkSpace(1 + MAX_VARINT_BYTES * (4 + (attsLength * 5)), 0);
+        writeEvent(SaxEventType.startElement);
+        writeName(uri);
+        writeName(localName);
+        writeName(qName);
+        writeInt(attsLength);
+        for (int i = 0; i < attsLength; i++) {
+            writeName(atts.getURI(i));
+            writeName(atts.getLocalName(i));
+            writeName(atts.getQName(i));
+            writeName(atts.getType(i));
+            writeText(atts.getValue(i));
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        writeNames(SaxEventType.endElement, uri, localName, qName);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        writeChars(SaxEventType.characters, ch, start, length);
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        writeChars(SaxEventType.ignorableWhitespace, ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        checkSpace(1 + MAX_VARINT_BYTES * 2, 0);
+        writeEvent(SaxEventType.processingInstruction);
+        writeName(target);
+        writeText(data);
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        writeNames(SaxEventType.skippedEntity, name);
+    }
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        checkSpace(1 + MAX_VARINT_BYTES * 3, 0);
+        writeEvent(SaxEventType.startDTD);
+        writeName(name);
+        writeText(publicId);
+        writeText(systemId);
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        writeNoArgs(SaxEventType.endDTD);
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+        writeNames(SaxEventType.startEntity, name);
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+        writeNames(SaxEventType.endEntity, name);
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+        writeNoArgs(SaxEventType.startCDATA);
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+        writeNoArgs(SaxEventType.endCDATA);
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        writeChars(SaxEventType.comment, ch, start, length);
+    }
+
+    /*
+     * Execution
+     */
+    private final Replay replay = new Replay();
+
+    @Override
+    public int play(ContentHandler ch, LexicalHandler lh) throws SAXException {
+        int level = 0;
+        for (SpillSegment segment : spillSegments) {
+            ByteBuffer in;
+            try {
+                in = segment.read();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            ByteBuffer segmentOps = in.duplicate();
+            segmentOps.limit(segment.opsLength);
+            in.position(segment.opsLength);
+            level += replay.play(ch, lh, segmentOps, in.slice().asCharBuffer());
+        }
+        return level + replay.play(ch, lh, ByteBuffer.wrap(ops, 0, opsTail), CharBuffer.wrap(chars, 0, charTail));
+    }
+
+    @Override
+    public void setSymbolTable(SymbolTable symbolTable) {
+        if (symbolTable != this.symbolTable) {
+            super.setSymbolTable(symbolTable);
+            if (symbolTable != null) {
+                for (int i = 1; i < nameCount; i++) {
+                    names[i] = symbolTable.canonicalize(names[i]);
+                }
+            }
+        }
+    }
+
+    private void resetNamePool() {
+        names = new String[INITIAL_NAME_POOL_SIZE];
+        nameIds.clear();
+        nameCount = 1;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        opsTail = 0;
+        charTail = 0;
+        size = 0;
+        clearSpill();
+        if (nameCount > MAX_RETAINED_NAME_POOL_SIZE) {
+            resetNamePool();
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public long getRetainedSize() {
+        return ops.length + (chars.length * 2L) + (names.length * 8L);
+    }
+
+    @Override
+    public long getUsedSize() {
+        return opsTail + (charTail * 2L) + (nameCount * 8L);
+    }
+
+    @Override
+    public void trim() {
+        if (size > 0) {
+            throw new IllegalStateException("cannot trim non-empty buffer");
+        }
+        ops = new byte[initialBufferSize];
+        chars = new char[initialBufferSize * CHAR_BUFFER_INIT_FACTOR];
+        resetNamePool();
+        closeSpill();
+    }
+
+    /**
+     * Holds decoding state for a single pass over the buffered events. Chars
+     * are passed to handlers directly from heap arenas, and via a reusable
+     * scratch array from spilled segments.
+     */
+    private class Replay {
+
+        private ByteBuffer opsIn;
+        private CharBuffer charsIn;
+        private char[] scratch = new char[0];
+        private final AttributesImpl atts = new AttributesImpl();
+
+        private int readInt() {
+            int b = opsIn.get();
+            int value = b & 0x7F;
+            int shift = 7;
+            while ((b & 0x80) != 0) {
+                b = opsIn.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            }
+            return value;
+        }
+
+        private String readName() {
+            return names[readInt()];
+        }
+
+        private String readText() {
+            int length = readInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            char[] ch = readChars(length);
+            return new String(ch, charsOffset, length);
+        }
+
+        private int charsOffset;
+
+        /**
+         * @return array containing the next <code>length</code> chars, starting
+         * at <code>charsOffset</code>.
+         */
+        private char[] readChars(int length) {
+            int position = charsIn.position();
+            charsIn.position(position + length);
+            if (charsIn.hasArray()) {
+                charsOffset = charsIn.arrayOffset() + position;
+                return charsIn.array();
+            } else {
+                if (scratch.length < length) {
+                    scratch = new char[Math.max(scratch.length * 2, length)];
+                }
+                charsIn.position(position);
+                charsIn.get(scratch, 0, length);
+                charsOffset = 0;
+                return scratch;
+            }
+        }
+
+        private int play(ContentHandler ch, LexicalHandler lh, ByteBuffer opsIn, CharBuffer charsIn) throws SAXException {
+            this.opsIn = opsIn;
+            this.charsIn = charsIn;
+            int level = 0;
+            int length;
+            char[] chars;
+            while (opsIn.hasRemaining()) {
+                switch (EVENT_TYPES[opsIn.get()]) {
+                    case startDocument:
+                        ch.startDocument();
+                        break;
+                    case endDocument:
+                        ch.endDocument();
+                        break;
+                    case startPrefixMapping:
+                        ch.startPrefixMapping(readName(), readName());
+                        break;
+                    case endPrefixMapping:
+                        ch.endPrefixMapping(readName());
+                        break;
+                    case startElement:
+                        String uri = readName();
+                        String localName = readName();
+                        String qName = readName();
+                        atts.clear();
+                        for (int i = readInt(); i > 0; i--) {
+                            atts.addAttribute(readName(), readName(), readName(), readName(), readText());
+                        }
+                        ch.startElement(uri, localName, qName, atts);
+                        level++;
+                        break;
+                    case endElement:
+                        ch.endElement(readName(), readName(), readName());
+                        level--;
+                        break;
+                    case characters:
+                        length = readInt();
+                        chars = readChars(length);
+                        ch.characters(chars, charsOffset, length);
+                        break;
+                    case ignorableWhitespace:
+                        length = readInt();
+                        chars = readChars(length);
+                        ch.ignorableWhitespace(chars, charsOffset, length);
+                        break;
+                    case processingInstruction:
+                        ch.processingInstruction(readName(), readText());
+                        break;
+                    case skippedEntity:
+                        ch.skippedEntity(readName());
+                        break;
+                    case startDTD:
+                        lh.startDTD(readName(), readText(), readText());
+                        break;
+                    case endDTD:
+                        lh.endDTD();
+                        break;
+                    case startEntity:
+                        lh.startEntity(readName());
+                        break;
+                    case endEntity:
+                        lh.endEntity(readName());
+                        break;
+                    case startCDATA:
+                        lh.startCDATA();
+                        break;
+                    case endCDATA:
+                        lh.endCDATA();
+                        break;
+                    case comment:
+                        length = readInt();
+                        chars = readChars(length);
+                        lh.comment(chars, charsOffset, length);
+                        break;
+                }
+            }
+            this.opsIn = null;
+            this.charsIn = null;
+            return level;
+        }
+    }
+
+    /**
+     * Rough before/after heap comparison: buffers the specified file into
+     * <code>copies</code> instances of each buffer implementation and reports
+     * heap retained by each set.
+     */
+    public static void main(String[] args) throws Exception {
+        File input = new File(args[0]);
+        int copies = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        System.out.println("unbounded: " + retainedHeap(input, copies, false) + " bytes");
+        System.out.println("compact:   " + retainedHeap(input, copies, true) + " bytes");
+    }
+
+    private static long retainedHeap(File input, int copies, boolean compact) throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        long before = usedHeap();
+        List<ContentHandlerBuffer> retained = new ArrayList<ContentHandlerBuffer>(copies);
+        for (int i = 0; i < copies; i++) {
+            ContentHandlerBuffer buffer = compact ? new CompactContentHandlerBuffer() : new UnboundedContentHandlerBuffer();
+            reader.setContentHandler(buffer);
+            reader.setProperty(LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+            reader.parse(input.toURI().toString());
+            retained.add(buffer);
+        }
+        long after = usedHeap();
+        if (retained.size() != copies) {
+            throw new AssertionError();
+        }
+        return (after - before) / copies;
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * SymbolTable whose read path (lookup of an existing name or id) is lock-free;
+ * additions are serialized, and publish a (copy-on-grow) symbol array before
+ * the id becomes visible through the map. Once the table reaches its maximum
+ * size, new names are no longer assigned ids, and are canonicalized by
+ * {@link String#intern()} alone.
+ *
+ * @author michael
+ */
+public class ConcurrentSymbolTable extends SymbolTable {
+
+    public static final int DEFAULT_MAX_SIZE = 1 << 16;
+    private static final int INITIAL_SIZE = 64;
+
+    private final int maxSize;
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+    private volatile String[] symbols = new String[INITIAL_SIZE];
+    private int size = 0;
+
+    public ConcurrentSymbolTable() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public ConcurrentSymbolTable(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public int getId(String symbol) {
+        Integer id = ids.get(symbol);
+        return id != null ? id : add(symbol);
+    }
+
+    private synchronized int add(String symbol) {
+        Integer id = ids.get(symbol);
+        if (id != null) {
+            return id;
+        } else if (size >= maxSize) {
+            return -1;
+        }
+        String[] tmp = symbols;
+        if (size == tmp.length) {
+            tmp = Arrays.copyOf(tmp, tmp.length * 2);
+        }
+        String canonical = symbol.intern();
+        tmp[size] = canonical;
+        symbols = tmp;
+        ids.put(canonical, size);
+        return size++;
+    }
+
+    @Override
+    public String getSymbol(int id) {
+        return symbols[id];
+    }
+
+    @Override
+    public String canonicalize(String symbol) {
+        if (symbol == null) {
+            return null;
+        }
+        int id = getId(symbol);
+        return id < 0 ? symbol.intern() : symbols[id];
+    }
+
+    @Override
+    public synchronized int size() {
+        return size;
+    }
+
+}
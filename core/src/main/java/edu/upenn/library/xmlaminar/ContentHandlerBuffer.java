@@ -0,0 +1,228 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.IOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Common base for buffers that record SAX events as a ContentHandler/LexicalHandler
+ * and replay them, either explicitly via {@link #flush(ContentHandler, LexicalHandler)}
+ * or as an XMLReader whose parse() methods ignore their input.
+ *
+ * @author michael
+ */
+public abstract class ContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentHandlerBuffer.class);
+
+    private volatile XMLReader unmodifiableParent;
+
+    private boolean parentModifiable = false;
+
+    public void setParentModifiable(boolean modifiable) {
+        this.parentModifiable = modifiable;
+    }
+
+    public XMLReader getUnmodifiableParent() {
+        return unmodifiableParent;
+    }
+
+    public void setUnmodifiableParent(XMLReader parent) {
+        unmodifiableParent = parent;
+        parentModifiable = false;
+    }
+
+    @Override
+    public void setParent(XMLReader parent) {
+        if (parentModifiable) {
+            super.setParent(parent);
+        } else {
+            unmodifiableParent = parent;
+        }
+    }
+
+    protected SymbolTable symbolTable;
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * If set, names are canonicalized against the specified table as they are
+     * buffered, so replayed names are interned regardless of whether the
+     * upstream parser interns them.
+     * @param symbolTable may be null
+     */
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (symbolTable != null && SAXFeatures.STRING_INTERNING.equals(name)) {
+            return true;
+        } else if (!parentModifiable) {
+            return unmodifiableParent.getFeature(name);
+        } else {
+            return super.getFeature(name);
+        }
+    }
+
+    @Override
+    public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (!parentModifiable) {
+            if (unmodifiableParent.getFeature(name) != value) {
+                throw new SAXNotSupportedException(unmodifiableParent + " is unmodifiable, and does not support setting feature "+name+" to "+value+".");
+            }
+        } else {
+            super.setFeature(name, value);
+        }
+    }
+
+    /*
+     * Execution
+     */
+
+    private boolean parsing = false;
+
+    @Override
+    public void parse(InputSource input) throws SAXException, IOException {
+        parseIgnoringInput();
+    }
+
+    @Override
+    public void parse(String systemId) throws SAXException, IOException {
+        parseIgnoringInput();
+    }
+
+    protected boolean stringIntern = false;
+
+    private void parseIgnoringInput() throws SAXException {
+        if (parsing) {
+            throw new IllegalStateException();
+        }
+        parsing = true;
+        stringIntern = getFeature(SAXFeatures.STRING_INTERNING);
+        play(getContentHandler(), (LexicalHandler)getProperty(LEXICAL_HANDLER_PROPERTY_KEY));
+        if (flushOnParse) {
+            clear();
+        }
+        parsing = false;
+    }
+
+    private boolean flushOnParse = false;
+
+    public boolean isFlushOnParse() {
+        return flushOnParse;
+    }
+
+    public void setFlushOnParse(boolean flush) {
+        this.flushOnParse = flush;
+    }
+
+    /**
+     * Replays buffered events to the specified handlers, leaving buffer contents intact.
+     * @param ch
+     * @param lh may be null if no lexical events were buffered
+     * @return the net change in element depth over the replayed events
+     * @throws SAXException
+     */
+    public abstract int play(ContentHandler ch, LexicalHandler lh) throws SAXException;
+
+    public int flush(ContentHandler ch, LexicalHandler lh) throws SAXException {
+        int level = play(ch, lh);
+        clear();
+        return level;
+    }
+
+    public void clear() {
+        parsing = false;
+        flushOnParse = false;
+    }
+
+    /**
+     * Sets the approximate number of bytes of buffered events to hold on the
+     * heap before spilling to disk; 0 disables spilling.
+     * @param bytes
+     * @throws UnsupportedOperationException if a non-zero threshold is
+     * specified for an implementation that does not support spilling
+     */
+    public void setSpillThreshold(long bytes) {
+        if (bytes != 0) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support spilling");
+        }
+    }
+
+    /**
+     * If true, adjacent characters() events are merged as they are buffered
+     * into a single event over a contiguous run of chars.
+     * @param coalesce
+     * @throws UnsupportedOperationException if coalescing is requested of an
+     * implementation that does not support it
+     */
+    public void setCoalesceCharacters(boolean coalesce) {
+        if (coalesce) {
+            throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support coalescing characters");
+        }
+    }
+
+    /**
+     * @return the number of buffered events
+     */
+    public abstract int size();
+
+    /**
+     * @return approximate number of bytes retained by backing arrays
+     */
+    public abstract long getRetainedSize();
+
+    /**
+     * @return approximate number of bytes of backing arrays in use by
+     * currently buffered events
+     */
+    public abstract long getUsedSize();
+
+    /**
+     * Releases backing arrays, reverting to initial capacity. May only be
+     * called on an empty buffer.
+     */
+    public abstract void trim();
+
+    /*
+     * bookkeeping for ContentHandlerBufferPool
+     */
+    int underWatermarkCount = 0;
+    long pooledSize = 0;
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("ignoring setDocumentLocator(" + locator + ")");
+        }
+    }
+
+}
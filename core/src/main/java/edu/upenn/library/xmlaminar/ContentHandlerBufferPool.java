@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of ContentHandlerBuffers, bucketed into size classes by retained
+ * capacity (powers of two). {@link #acquire()} returns a buffer from the
+ * largest non-empty class, so that a buffer grown by an outlier input is
+ * reused rather than left idle; {@link #release(ContentHandlerBuffer)} trims
+ * a buffer back to its initial capacity once it has been used
+ * <code>trimAfter</code> consecutive times below <code>trimWatermark</code>
+ * of its capacity. Each class holds at most <code>maxPerClass</code>
+ * buffers, and total pooled capacity is capped at
+ * <code>maxRetainedBytes</code>; buffers beyond these limits are discarded.
+ *
+ * @author michael
+ */
+public class ContentHandlerBufferPool {
+
+    public static final int DEFAULT_MAX_PER_CLASS = 4;
+    public static final int DEFAULT_TRIM_AFTER = 8;
+    public static final double DEFAULT_TRIM_WATERMARK = 0.25;
+    private static final int SIZE_CLASSES = Long.SIZE;
+
+    private final ContentHandlerBufferType type;
+    private final int maxPerClass;
+    private final int trimAfter;
+    private final double trimWatermark;
+    private final long maxRetainedBytes;
+    private final List<Queue<ContentHandlerBuffer>> classes = new ArrayList<Queue<ContentHandlerBuffer>>(SIZE_CLASSES);
+    private final AtomicInteger[] classSizes = new AtomicInteger[SIZE_CLASSES];
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong trims = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    public ContentHandlerBufferPool(ContentHandlerBufferType type) {
+        this(type, DEFAULT_MAX_PER_CLASS, DEFAULT_TRIM_AFTER, DEFAULT_TRIM_WATERMARK, Long.MAX_VALUE);
+    }
+
+    public ContentHandlerBufferPool(ContentHandlerBufferType type, int maxPerClass, int trimAfter, double trimWatermark, long maxRetainedBytes) {
+        this.type = type;
+        this.maxPerClass = maxPerClass;
+        this.trimAfter = trimAfter;
+        this.trimWatermark = trimWatermark;
+        this.maxRetainedBytes = maxRetainedBytes;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            classes.add(new ConcurrentLinkedQueue<ContentHandlerBuffer>());
+            classSizes[i] = new AtomicInteger(0);
+        }
+    }
+
+    public ContentHandlerBufferType getType() {
+        return type;
+    }
+
+    private static int sizeClass(long retainedSize) {
+        return SIZE_CLASSES - 1 - Long.numberOfLeadingZeros(Math.max(retainedSize, 1));
+    }
+
+    public ContentHandlerBuffer acquire() {
+        for (int i = SIZE_CLASSES - 1; i >= 0; i--) {
+            ContentHandlerBuffer buffer = classes.get(i).poll();
+            if (buffer != null) {
+                classSizes[i].decrementAndGet();
+                retainedBytes.addAndGet(-buffer.pooledSize);
+                hits.incrementAndGet();
+                return buffer;
+            }
+        }
+        misses.incrementAndGet();
+        return type.newInstance();
+    }
+
+    /**
+     * Clears the specified buffer and returns it to the pool (trimming or
+     * discarding it as necessary). The caller must not use the buffer
+     * after it has been released.
+     */
+    public void release(ContentHandlerBuffer buffer) {
+        long retained = buffer.getRetainedSize();
+        long used = buffer.getUsedSize();
+        buffer.clear();
+        if (used < retained * trimWatermark) {
+            if (++buffer.underWatermarkCount >= trimAfter) {
+                retained = trim(buffer);
+            }
+        } else {
+            buffer.underWatermarkCount = 0;
+        }
+        if (retainedBytes.get() + retained > maxRetainedBytes) {
+            retained = trim(buffer);
+            if (retainedBytes.get() + retained > maxRetainedBytes) {
+                discards.incrementAndGet();
+                return;
+            }
+        }
+        int sizeClass = sizeClass(retained);
+        if (classSizes[sizeClass].incrementAndGet() > maxPerClass) {
+            classSizes[sizeClass].decrementAndGet();
+            discards.incrementAndGet();
+            return;
+        }
+        buffer.pooledSize = retained;
+        retainedBytes.addAndGet(retained);
+        classes.get(sizeClass).offer(buffer);
+    }
+
+    private long trim(ContentHandlerBuffer buffer) {
+        long before = buffer.getRetainedSize();
+        buffer.trim();
+        buffer.underWatermarkCount = 0;
+        long after = buffer.getRetainedSize();
+        if (after < before) {
+            trims.incrementAndGet();
+        }
+        return after;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getTrims() {
+        return trims.get();
+    }
+
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    /**
+     * @return approximate number of bytes retained by buffers currently in the pool
+     */
+    public long getRetainedBytes() {
+        return retainedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return type + " buffer pool: hits=" + hits + ", misses=" + misses + ", trims=" + trims
+                + ", discards=" + discards + ", retainedBytes=" + retainedBytes;
+    }
+
+}
@@ -31,7 +31,6 @@ import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
-import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import org.xml.sax.Attributes;
@@ -47,6 +46,10 @@ public class DumpingXMLFilter extends XMLFilterImpl {
 
     private boolean dump = false;
     private File df;
+    /**
+     * Dump output is serialized directly (see {@link UTF8TransformerHandler}),
+     * with output identical to that of the Saxon identity TransformerHandler.
+     */
     protected final TransformerHandler dfHandler;
     private OutputStream dfOut;
     public static final String TRANSFORMER_FACTORY_CLASS = "net.sf.saxon.TransformerFactoryImpl";
@@ -64,13 +67,8 @@ public class DumpingXMLFilter extends XMLFilterImpl {
     }
 
     public DumpingXMLFilter() {
-        SAXTransformerFactory stf = (SAXTransformerFactory) TransformerFactory.newInstance(TRANSFORMER_FACTORY_CLASS, null);
-        try {
-            dfHandler = stf.newTransformerHandler();
-            dfHandler.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
-        } catch (TransformerConfigurationException ex) {
-            throw new RuntimeException(ex);
-        }
+        dfHandler = new UTF8TransformerHandler();
+        dfHandler.getTransformer().setOutputProperty(OutputKeys.INDENT, "yes");
     }
     
     public File getDumpFile() {
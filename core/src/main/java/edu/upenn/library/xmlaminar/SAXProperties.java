@@ -23,4 +23,5 @@ package edu.upenn.library.xmlaminar;
 public class SAXProperties {
     public static final String EXECUTOR_SERVICE_PROPERTY_NAME = "http://concurrent.util.java/ExecutorService";
     public static final String DATA_SOURCE_FACTORY_PROPERTY_NAME = "http://dbxml.xmlaminar.library.upenn.edu/DataSourceFactory";
+    public static final String SYMBOL_TABLE_PROPERTY_NAME = "http://xmlaminar.library.upenn.edu/SymbolTable";
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Maps XML names (namespace URIs, local names, qNames, prefixes) to small int
+ * ids and canonical String instances. A single instance is intended to be
+ * shared by all buffers in a pipeline (see
+ * {@link SAXProperties#SYMBOL_TABLE_PROPERTY_NAME}), so implementations must
+ * be safe for concurrent use. Canonical instances must be interned, so that
+ * names replayed from a buffer may be compared by identity against each other
+ * and against String literals.
+ *
+ * @author michael
+ */
+public abstract class SymbolTable {
+
+    /**
+     * @param symbol non-null name
+     * @return the id for the specified name, or -1 if the name could not be
+     * added to the table
+     */
+    public abstract int getId(String symbol);
+
+    /**
+     * @param id an id previously returned by {@link #getId(String)}
+     * @return the canonical instance for the specified id
+     */
+    public abstract String getSymbol(int id);
+
+    /**
+     * @param symbol name, may be null
+     * @return the canonical (interned) instance of the specified name, or null
+     */
+    public abstract String canonicalize(String symbol);
+
+    /**
+     * @return the number of names in the table
+     */
+    public abstract int size();
+
+    /**
+     * @return a copy of the specified attributes, with names canonicalized
+     */
+    public AttributesImpl canonicalize(Attributes atts) {
+        return canonicalize(atts, new AttributesImpl());
+    }
+
+    /**
+     * @param atts attributes to copy
+     * @param dest cleared, then populated with the specified attributes
+     * @return <code>dest</code>, with names canonicalized
+     */
+    public AttributesImpl canonicalize(Attributes atts, AttributesImpl dest) {
+        dest.clear();
+        int length = atts.getLength();
+        for (int i = 0; i < length; i++) {
+            dest.addAttribute(canonicalize(atts.getURI(i)), canonicalize(atts.getLocalName(i)),
+                    canonicalize(atts.getQName(i)), atts.getType(i), atts.getValue(i));
+        }
+        return dest;
+    }
+
+}
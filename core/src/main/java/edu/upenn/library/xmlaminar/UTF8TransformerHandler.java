@@ -0,0 +1,163 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Result;
+import javax.xml.transform.Source;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Identity {@link TransformerHandler} backed by {@link UTF8XMLSerializer}, for
+ * use where a TransformerHandler is expected. The result must be a
+ * {@link StreamResult} with an OutputStream, and output properties must be
+ * supported by UTF8XMLSerializer; the Transformer returned by
+ * {@link #getTransformer()} only manages output properties, and cannot be
+ * used to transform.
+ *
+ * @author michael
+ */
+public class UTF8TransformerHandler extends UTF8XMLSerializer implements TransformerHandler {
+
+    private String systemId;
+    private final OutputPropertiesTransformer transformer = new OutputPropertiesTransformer();
+
+    @Override
+    public void setResult(Result result) throws IllegalArgumentException {
+        if (!(result instanceof StreamResult) || ((StreamResult) result).getOutputStream() == null) {
+            throw new IllegalArgumentException("result must be a StreamResult with an OutputStream: " + result);
+        }
+        setOutputStream(((StreamResult) result).getOutputStream());
+    }
+
+    @Override
+    public void setSystemId(String systemID) {
+        this.systemId = systemID;
+    }
+
+    @Override
+    public String getSystemId() {
+        return systemId;
+    }
+
+    @Override
+    public Transformer getTransformer() {
+        return transformer;
+    }
+
+    private final class OutputPropertiesTransformer extends Transformer {
+
+        private final Properties outputProperties = new Properties();
+        private final Map<String, Object> parameters = new HashMap<String, Object>();
+        private URIResolver resolver;
+        private ErrorListener errorListener;
+
+        @Override
+        public void transform(Source xmlSource, Result outputTarget) throws TransformerException {
+            throw new TransformerException("output properties only; use " + UTF8TransformerHandler.class.getSimpleName() + " as a TransformerHandler");
+        }
+
+        private void apply(Properties props) {
+            if (!supports(props)) {
+                throw new IllegalArgumentException("unsupported output properties: " + props);
+            }
+            outputProperties.clear();
+            outputProperties.putAll(props);
+            UTF8TransformerHandler.this.setOutputProperties(outputProperties);
+        }
+
+        @Override
+        public void setOutputProperties(Properties oformat) {
+            Properties props = new Properties();
+            if (oformat != null) {
+                props.putAll(oformat);
+            }
+            apply(props);
+        }
+
+        @Override
+        public Properties getOutputProperties() {
+            Properties ret = new Properties();
+            ret.putAll(outputProperties);
+            return ret;
+        }
+
+        @Override
+        public void setOutputProperty(String name, String value) throws IllegalArgumentException {
+            Properties props = getOutputProperties();
+            props.setProperty(name, value);
+            apply(props);
+        }
+
+        @Override
+        public String getOutputProperty(String name) throws IllegalArgumentException {
+            return outputProperties.getProperty(name);
+        }
+
+        @Override
+        public void setParameter(String name, Object value) {
+            parameters.put(name, value);
+        }
+
+        @Override
+        public Object getParameter(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public void clearParameters() {
+            parameters.clear();
+        }
+
+        @Override
+        public void setURIResolver(URIResolver resolver) {
+            this.resolver = resolver;
+        }
+
+        @Override
+        public URIResolver getURIResolver() {
+            return resolver;
+        }
+
+        @Override
+        public void setErrorListener(ErrorListener listener) throws IllegalArgumentException {
+            this.errorListener = listener;
+        }
+
+        @Override
+        public ErrorListener getErrorListener() {
+            return errorListener;
+        }
+
+        @Override
+        public void reset() {
+            parameters.clear();
+            resolver = null;
+            errorListener = null;
+            apply(new Properties());
+        }
+
+    }
+
+}
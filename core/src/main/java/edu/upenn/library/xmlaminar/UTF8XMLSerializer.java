@@ -0,0 +1,772 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import javax.xml.XMLConstants;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Serializes SAX events directly to UTF-8 encoded XML, for use in place of
+ * an identity Transformer where no transformation is required. Output
+ * (escaping, empty-element tags, namespace declarations, and indentation)
+ * follows the Saxon XML serializer, so that the two are interchangeable.
+ * <p>
+ * Output is encoded into a reusable byte buffer, flushed to the underlying
+ * stream when full and at endDocument; an instance may be reused for
+ * successive documents, but is not thread-safe. CDATA section boundaries
+ * and DTD events are not preserved. If no output stream is set, events are
+ * discarded.
+ *
+ * @author michael
+ */
+public class UTF8XMLSerializer implements ContentHandler, LexicalHandler, DTDHandler {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int INDENT_SPACES = 3;
+    private static final int LINE_LENGTH = 80;
+    private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[][] TEXT_ESCAPES = new byte[0xA0][];
+    private static final byte[][] ATTRIBUTE_ESCAPES = new byte[0xA0][];
+
+    static {
+        for (int c = 1; c < 0x20; c++) {
+            TEXT_ESCAPES[c] = ATTRIBUTE_ESCAPES[c] = ascii("&#x" + Integer.toHexString(c) + ';');
+        }
+        TEXT_ESCAPES['\t'] = TEXT_ESCAPES['\n'] = null;
+        for (int c = 0x7F; c < 0xA0; c++) {
+            TEXT_ESCAPES[c] = ATTRIBUTE_ESCAPES[c] = ascii("&#x" + Integer.toHexString(c) + ';');
+        }
+        TEXT_ESCAPES['&'] = ATTRIBUTE_ESCAPES['&'] = ascii("&amp;");
+        TEXT_ESCAPES['<'] = ATTRIBUTE_ESCAPES['<'] = ascii("&lt;");
+        TEXT_ESCAPES['>'] = ATTRIBUTE_ESCAPES['>'] = ascii("&gt;");
+        TEXT_ESCAPES['\r'] = ATTRIBUTE_ESCAPES['\r'] = ascii("&#xD;");
+        ATTRIBUTE_ESCAPES['"'] = ascii("&#34;");
+        ATTRIBUTE_ESCAPES['\n'] = ascii("&#xA;");
+        ATTRIBUTE_ESCAPES['\t'] = ascii("&#x9;");
+    }
+
+    private static final byte[] LINE_SEPARATOR_ESCAPE = ascii("&#x2028;");
+
+    private static final String IDENTITY_TRANSFORMER_CLASS = "net.sf.saxon.IdentityTransformer";
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return true if t is an identity transformer whose output (with its
+     * current output properties) may be produced by this serializer instead.
+     */
+    public static boolean canReplace(Transformer t) {
+        return t != null && IDENTITY_TRANSFORMER_CLASS.equals(t.getClass().getName())
+                && supports(t.getOutputProperties());
+    }
+
+    /**
+     * @return true if output with the specified properties (as returned by
+     * Transformer.getOutputProperties()) can be produced by this serializer.
+     */
+    public static boolean supports(Properties outputProperties) {
+        for (String key : outputProperties.stringPropertyNames()) {
+            String value = outputProperties.getProperty(key).trim();
+            switch (key) {
+                case OutputKeys.METHOD:
+                    if (!"xml".equals(value)) {
+                        return false;
+                    }
+                    break;
+                case OutputKeys.ENCODING:
+                    if (!"UTF-8".equalsIgnoreCase(value) && !"UTF8".equalsIgnoreCase(value)) {
+                        return false;
+                    }
+                    break;
+                case OutputKeys.VERSION:
+                    if (!"1.0".equals(value)) {
+                        return false;
+                    }
+                    break;
+                case OutputKeys.INDENT:
+                case OutputKeys.OMIT_XML_DECLARATION:
+                    if (!"yes".equals(value) && !"no".equals(value)) {
+                        return false;
+                    }
+                    break;
+                case OutputKeys.CDATA_SECTION_ELEMENTS:
+                    if (!value.isEmpty()) {
+                        return false;
+                    }
+                    break;
+                case OutputKeys.MEDIA_TYPE:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos = 0;
+    private char[] scratch = new char[256];
+    private String[] attNames = new String[16];
+
+    private boolean indent = false;
+    private boolean omitXmlDeclaration = false;
+
+    /*
+     * namespace bindings in scope (pairs of prefix, uri); bindingMarks[d] is
+     * the size of the binding stack at the start of element depth d.
+     */
+    private String[] bindings = new String[32];
+    private int bindingsSize = 0;
+    private int[] bindingMarks = new int[16];
+    private String[] pendingMappings = new String[16];
+    private int pendingMappingsSize = 0;
+
+    private boolean started;
+    private boolean openStartTag;
+    private boolean inDTD;
+    private int depth;
+
+    /*
+     * indentation state, as for Saxon XMLIndenter
+     */
+    private int level;
+    private boolean sameline;
+    private boolean afterStartTag;
+    private boolean afterEndTag;
+    private boolean allWhite;
+    private int line;
+    private int column;
+    private int suppressedAtLevel;
+
+    public UTF8XMLSerializer() {
+        this(null);
+    }
+
+    public UTF8XMLSerializer(OutputStream out) {
+        this.out = out;
+    }
+
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * @param out destination of subsequent output; not closed by this
+     * serializer
+     */
+    public void setOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    public boolean isIndent() {
+        return indent;
+    }
+
+    public void setIndent(boolean indent) {
+        this.indent = indent;
+    }
+
+    public boolean isOmitXmlDeclaration() {
+        return omitXmlDeclaration;
+    }
+
+    public void setOmitXmlDeclaration(boolean omitXmlDeclaration) {
+        this.omitXmlDeclaration = omitXmlDeclaration;
+    }
+
+    /**
+     * Configures this serializer from output properties for which
+     * {@link #supports(Properties)} returns true.
+     */
+    public void setOutputProperties(Properties outputProperties) {
+        indent = "yes".equals(trim(outputProperties.getProperty(OutputKeys.INDENT)));
+        omitXmlDeclaration = "yes".equals(trim(outputProperties.getProperty(OutputKeys.OMIT_XML_DECLARATION)));
+    }
+
+    private static String trim(String s) {
+        return s == null ? null : s.trim();
+    }
+
+    /*
+     * Output
+     */
+
+    private void flushBuffer() throws SAXException {
+        if (out != null && pos > 0) {
+            try {
+                out.write(buf, 0, pos);
+            } catch (IOException ex) {
+                throw new SAXException(ex);
+            }
+        }
+        pos = 0;
+    }
+
+    private void ensure(int length) throws SAXException {
+        if (pos + length > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void writeByte(int b) throws SAXException {
+        if (pos == buf.length) {
+            flushBuffer();
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private void writeBytes(byte[] bytes) throws SAXException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeRaw(String s) throws SAXException {
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                writeCodePoint(Character.toCodePoint(c, s.charAt(++i)));
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeRaw(char[] ch, int start, int length) throws SAXException {
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            char c = ch[i];
+            if (c < 0x80) {
+                writeByte(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(ch[i + 1])) {
+                writeCodePoint(Character.toCodePoint(c, ch[++i]));
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeCodePoint(int cp) throws SAXException {
+        ensure(4);
+        if (cp < 0x80) {
+            buf[pos++] = (byte) cp;
+        } else if (cp < 0x800) {
+            buf[pos++] = (byte) (0xC0 | (cp >> 6));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (cp < 0x10000) {
+            buf[pos++] = (byte) (0xE0 | (cp >> 12));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        } else {
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+        }
+    }
+
+    /**
+     * Writes escaped character data (text or attribute value).
+     */
+    private void writeEscaped(char[] ch, int start, int length, byte[][] escapes) throws SAXException {
+        int end = start + length;
+        byte[] b = buf;
+        for (int i = start; i < end; i++) {
+            char c = ch[i];
+            if (pos > b.length - 8) {
+                flushBuffer();
+            }
+            if (c < 0xA0) {
+                byte[] escape = escapes[c];
+                if (escape != null) {
+                    writeBytes(escape);
+                } else {
+                    b[pos++] = (byte) c;
+                }
+            } else if (c == 0x2028) {
+                writeBytes(LINE_SEPARATOR_ESCAPE);
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(ch[i + 1])) {
+                writeCodePoint(Character.toCodePoint(c, ch[++i]));
+            } else {
+                writeCodePoint(c);
+            }
+        }
+    }
+
+    private void writeEscaped(String s, byte[][] escapes) throws SAXException {
+        int length = s.length();
+        if (length > scratch.length) {
+            scratch = new char[Math.max(length, scratch.length * 2)];
+        }
+        s.getChars(0, length, scratch, 0);
+        writeEscaped(scratch, 0, length, escapes);
+    }
+
+    private void closeStartTag() throws SAXException {
+        if (openStartTag) {
+            writeByte('>');
+            openStartTag = false;
+        }
+    }
+
+    private void openDocument() throws SAXException {
+        if (!started) {
+            started = true;
+            if (!omitXmlDeclaration) {
+                writeBytes(XML_DECLARATION);
+            }
+        }
+    }
+
+    /*
+     * Indentation
+     */
+
+    private void indent() throws SAXException {
+        if (suppressedAtLevel >= 0) {
+            return;
+        }
+        int spaces = level * INDENT_SPACES;
+        closeStartTag();
+        if (line > 0) {
+            // continuing a line of (whitespace) text
+            spaces -= column;
+            if (spaces <= 0) {
+                return;
+            }
+            spaces++;
+        } else {
+            writeByte('\n');
+        }
+        for (int i = 0; i < spaces; i++) {
+            writeByte(' ');
+        }
+        sameline = false;
+    }
+
+    private void trackCharacters(char[] ch, int start, int length) {
+        int end = start + length;
+        for (int i = start; i < end; i++) {
+            char c = ch[i];
+            if (c == '\n') {
+                sameline = false;
+                line++;
+                column = 0;
+            }
+            if (!Character.isWhitespace(c)) {
+                allWhite = false;
+            }
+            column++;
+        }
+        if (!allWhite) {
+            afterStartTag = false;
+            afterEndTag = false;
+        }
+    }
+
+    /*
+     * Namespaces
+     */
+
+    private String lookup(String prefix) {
+        for (int i = bindingsSize - 2; i >= 0; i -= 2) {
+            if (bindings[i].equals(prefix)) {
+                return bindings[i + 1];
+            }
+        }
+        if (prefix.isEmpty()) {
+            return "";
+        } else if (XMLConstants.XML_NS_PREFIX.equals(prefix)) {
+            return XMLConstants.XML_NS_URI;
+        } else {
+            return null;
+        }
+    }
+
+    private String lookupPrefix(String uri) {
+        for (int i = bindingsSize - 1; i > 0; i -= 2) {
+            if (bindings[i].equals(uri) && bindings[i - 1].length() > 0 && uri.equals(lookup(bindings[i - 1]))) {
+                return bindings[i - 1];
+            }
+        }
+        return XMLConstants.XML_NS_URI.equals(uri) ? XMLConstants.XML_NS_PREFIX : null;
+    }
+
+    private boolean bind(String prefix, String uri) {
+        if (uri.equals(lookup(prefix))) {
+            return false;
+        }
+        if (bindingsSize + 2 > bindings.length) {
+            bindings = Arrays.copyOf(bindings, bindings.length * 2);
+        }
+        bindings[bindingsSize++] = prefix;
+        bindings[bindingsSize++] = uri;
+        return true;
+    }
+
+    private static String prefixOf(String qName) {
+        int i = qName.indexOf(':');
+        return i < 0 ? "" : qName.substring(0, i);
+    }
+
+    private String elementName(String uri, String localName, String qName) {
+        if (qName != null && !qName.isEmpty()) {
+            return qName;
+        } else if (uri.isEmpty() || uri.equals(lookup(""))) {
+            return localName;
+        } else {
+            String prefix = lookupPrefix(uri);
+            return prefix == null ? localName : prefix + ':' + localName;
+        }
+    }
+
+    private String attributeName(Attributes atts, int i) {
+        String qName = atts.getQName(i);
+        if (qName != null && !qName.isEmpty()) {
+            return qName;
+        }
+        String uri = atts.getURI(i);
+        if (uri.isEmpty()) {
+            return atts.getLocalName(i);
+        }
+        String prefix = lookupPrefix(uri);
+        if (prefix == null) {
+            prefix = "ns" + bindingsSize;
+            bind(prefix, uri);
+        }
+        return prefix + ':' + atts.getLocalName(i);
+    }
+
+    private static boolean isNamespaceDeclaration(String qName) {
+        return qName.startsWith("xmlns") && (qName.length() == 5 || qName.charAt(5) == ':');
+    }
+
+    /*
+     * ContentHandler
+     */
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+        pos = 0;
+        bindingsSize = 0;
+        pendingMappingsSize = 0;
+        started = false;
+        openStartTag = false;
+        inDTD = false;
+        depth = 0;
+        level = 0;
+        sameline = false;
+        afterStartTag = false;
+        afterEndTag = !omitXmlDeclaration;
+        allWhite = true;
+        line = 0;
+        column = 0;
+        suppressedAtLevel = -1;
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+        if (indent && afterEndTag) {
+            closeStartTag();
+            writeByte('\n');
+        }
+        flushBuffer();
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException ex) {
+                throw new SAXException(ex);
+            }
+        }
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (pendingMappingsSize + 2 > pendingMappings.length) {
+            pendingMappings = Arrays.copyOf(pendingMappings, pendingMappings.length * 2);
+        }
+        pendingMappings[pendingMappingsSize++] = prefix == null ? "" : prefix;
+        pendingMappings[pendingMappingsSize++] = uri == null ? "" : uri;
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        openDocument();
+        if (indent && (afterStartTag || afterEndTag)) {
+            indent();
+        }
+        closeStartTag();
+        if (depth + 1 >= bindingMarks.length) {
+            bindingMarks = Arrays.copyOf(bindingMarks, bindingMarks.length * 2);
+        }
+        bindingMarks[depth++] = bindingsSize;
+        String name = elementName(uri, localName, qName);
+        int declarationsStart = bindingsSize;
+        for (int i = 0; i < pendingMappingsSize; i += 2) {
+            bind(pendingMappings[i], pendingMappings[i + 1]);
+        }
+        pendingMappingsSize = 0;
+        bind(prefixOf(name), uri == null ? "" : uri);
+        int attCount = atts.getLength();
+        if (attCount > attNames.length) {
+            attNames = new String[Math.max(attCount, attNames.length * 2)];
+        }
+        for (int i = 0; i < attCount; i++) {
+            String attQName = atts.getQName(i);
+            if (attQName != null && isNamespaceDeclaration(attQName)) {
+                attNames[i] = null;
+                continue;
+            }
+            attNames[i] = attributeName(atts, i);
+            String attPrefix = prefixOf(attNames[i]);
+            if (!attPrefix.isEmpty()) {
+                bind(attPrefix, atts.getURI(i));
+            }
+        }
+        level++;
+        sameline = true;
+        afterStartTag = true;
+        afterEndTag = false;
+        allWhite = true;
+        line = 0;
+
+        String attributeSeparator = null;
+        if (indent && suppressedAtLevel < 0) {
+            int length = 0;
+            for (int i = declarationsStart; i < bindingsSize; i += 2) {
+                String prefix = bindings[i];
+                length += prefix.isEmpty() ? 9 + bindings[i + 1].length() : prefix.length() + 10 + bindings[i + 1].length();
+            }
+            for (int i = 0; i < attCount; i++) {
+                if (attNames[i] != null) {
+                    String attPrefix = prefixOf(attNames[i]);
+                    length += atts.getLocalName(i).length() + atts.getValue(i).length() + 4 + (attPrefix.isEmpty() ? 4 : attPrefix.length() + 5);
+                }
+            }
+            if (length > LINE_LENGTH) {
+                char[] separator = new char[(level - 1) * INDENT_SPACES + name.length() + 3];
+                Arrays.fill(separator, ' ');
+                separator[0] = '\n';
+                attributeSeparator = new String(separator);
+            }
+        }
+
+        writeByte('<');
+        writeRaw(name);
+        boolean first = true;
+        for (int i = declarationsStart; i < bindingsSize; i += 2) {
+            writeSeparator(first, attributeSeparator);
+            first = false;
+            String prefix = bindings[i];
+            if (prefix.isEmpty()) {
+                writeRaw("xmlns=\"");
+            } else {
+                writeRaw("xmlns:");
+                writeRaw(prefix);
+                writeRaw("=\"");
+            }
+            writeEscaped(bindings[i + 1], ATTRIBUTE_ESCAPES);
+            writeByte('"');
+        }
+        for (int i = 0; i < attCount; i++) {
+            if (attNames[i] == null) {
+                continue;
+            }
+            writeSeparator(first, attributeSeparator);
+            first = false;
+            writeRaw(attNames[i]);
+            writeRaw("=\"");
+            String value = atts.getValue(i);
+            writeEscaped(value, ATTRIBUTE_ESCAPES);
+            writeByte('"');
+            if (suppressedAtLevel < 0 && "preserve".equals(value) && "space".equals(atts.getLocalName(i))
+                    && XMLConstants.XML_NS_URI.equals(atts.getURI(i))) {
+                suppressedAtLevel = level;
+            }
+        }
+        openStartTag = true;
+    }
+
+    private void writeSeparator(boolean first, String attributeSeparator) throws SAXException {
+        if (first || attributeSeparator == null) {
+            writeByte(' ');
+        } else {
+            writeRaw(attributeSeparator);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        level--;
+        if (indent && afterEndTag && !sameline) {
+            indent();
+        }
+        if (openStartTag) {
+            writeByte('/');
+            writeByte('>');
+            openStartTag = false;
+        } else {
+            writeByte('<');
+            writeByte('/');
+            writeRaw(elementName(uri, localName, qName));
+            writeByte('>');
+        }
+        bindingsSize = bindingMarks[--depth];
+        sameline = false;
+        afterEndTag = true;
+        afterStartTag = false;
+        allWhite = true;
+        line = 0;
+        if (level == suppressedAtLevel - 1) {
+            suppressedAtLevel = -1;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (length == 0) {
+            return;
+        }
+        openDocument();
+        closeStartTag();
+        writeEscaped(ch, start, length, TEXT_ESCAPES);
+        if (indent) {
+            trackCharacters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (inDTD) {
+            return;
+        }
+        openDocument();
+        if (indent && afterEndTag) {
+            indent();
+        }
+        closeStartTag();
+        writeByte('<');
+        writeByte('?');
+        writeRaw(target);
+        if (data != null && !data.isEmpty()) {
+            writeByte(' ');
+            writeRaw(data);
+        }
+        writeByte('?');
+        writeByte('>');
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+    }
+
+    /*
+     * LexicalHandler
+     */
+
+    @Override
+    public void startDTD(String name, String publicId, String systemId) throws SAXException {
+        inDTD = true;
+    }
+
+    @Override
+    public void endDTD() throws SAXException {
+        inDTD = false;
+    }
+
+    @Override
+    public void startEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void endEntity(String name) throws SAXException {
+    }
+
+    @Override
+    public void startCDATA() throws SAXException {
+    }
+
+    @Override
+    public void endCDATA() throws SAXException {
+    }
+
+    @Override
+    public void comment(char[] ch, int start, int length) throws SAXException {
+        if (inDTD) {
+            return;
+        }
+        openDocument();
+        if (indent && afterEndTag) {
+            indent();
+        }
+        closeStartTag();
+        writeByte('<');
+        writeByte('!');
+        writeByte('-');
+        writeByte('-');
+        writeRaw(ch, start, length);
+        writeByte('-');
+        writeByte('-');
+        writeByte('>');
+    }
+
+    /*
+     * DTDHandler
+     */
+
+    @Override
+    public void notationDecl(String name, String publicId, String systemId) throws SAXException {
+    }
+
+    @Override
+    public void unparsedEntityDecl(String name, String publicId, String systemId, String notationName) throws SAXException {
+    }
+
+}
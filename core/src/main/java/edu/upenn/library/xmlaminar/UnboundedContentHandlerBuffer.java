@@ -16,29 +16,33 @@
 
 package edu.upenn.library.xmlaminar;
 
-import java.io.IOException;
+import java.io.File;
 import java.io.PrintStream;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.lang.management.ManagementFactory;
+import javax.xml.parsers.SAXParserFactory;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
-import org.xml.sax.InputSource;
-import org.xml.sax.Locator;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
 import org.xml.sax.ext.LexicalHandler;
-import org.xml.sax.helpers.AttributesImpl;
 
 /**
+ * Attributes are flattened into the buffer's arenas: attribute names (uri,
+ * localName, qName) follow the element names in the string arena, attribute
+ * types and values are held in a separate string arena, and the offset and
+ * count of each element's attributes are held in the int arena. On replay,
+ * attributes are presented through a single reusable, read-only
+ * {@link Attributes} view, which is only valid for the duration of the
+ * startElement call.
  *
  * @author michael
  */
-public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
+public class UnboundedContentHandlerBuffer extends ContentHandlerBuffer {
 
     private static final int STRING_ARGS_INIT_FACTOR = 3;
     private static final int INT_ARGS_INIT_FACTOR = 2;
+    private static final int ATTS_ARGS_INIT_FACTOR = 2;
     private static final int CHAR_BUFFER_INIT_FACTOR = 6;
     public static final int INITIAL_BUFFER_SIZE = 1024;
 
@@ -50,73 +54,135 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
     private String[] stringArgBuffer;
     private int stringTail = 0;
 
-    private AttributesImpl[] attsArgBuffer;
+    private String[] attsArgBuffer;
     private int attsTail = 0;
 
+    private final BufferedAttributes attsView = new BufferedAttributes();
+
     private int[] intArgBuffer;
     private int intTail = 0;
 
     private char[] charArgBuffer;
     private int charTail = 0;
 
-    private Logger logger = LoggerFactory.getLogger(getClass());
+    public UnboundedContentHandlerBuffer() {
+        this(INITIAL_BUFFER_SIZE);
+    }
     
-    private volatile XMLReader unmodifiableParent;
+    private final int initialBufferSize;
 
-    private boolean parentModifiable = false;
+    private final boolean sealed;
 
-    public void setParentModifiable(boolean modifiable) {
-        this.parentModifiable = modifiable;
+    public UnboundedContentHandlerBuffer(int initialBufferSize) {
+        this.initialBufferSize = initialBufferSize;
+        this.sealed = false;
+        allocate();
     }
 
-    public XMLReader getUnmodifiableParent() {
-        return unmodifiableParent;
-    }
-    
-    public void setUnmodifiableParent(XMLReader parent) {
-        unmodifiableParent = parent;
-        parentModifiable = false;
+    /**
+     * Takes ownership of the arenas of the specified buffer, as a sealed
+     * snapshot.
+     */
+    private UnboundedContentHandlerBuffer(UnboundedContentHandlerBuffer source) {
+        this.initialBufferSize = source.initialBufferSize;
+        this.sealed = true;
+        this.symbolTable = source.symbolTable;
+        tail = source.tail;
+        events = source.events;
+        argIndex1 = source.argIndex1;
+        argIndex2 = source.argIndex2;
+        stringArgBuffer = source.stringArgBuffer;
+        stringTail = source.stringTail;
+        attsArgBuffer = source.attsArgBuffer;
+        attsTail = source.attsTail;
+        intArgBuffer = source.intArgBuffer;
+        intTail = source.intTail;
+        charArgBuffer = source.charArgBuffer;
+        charTail = source.charTail;
     }
 
-    @Override
-    public void setParent(XMLReader parent) {
-        if (parentModifiable) {
-            super.setParent(parent);
-        } else {
-            unmodifiableParent = parent;
+    /**
+     * Returns an immutable snapshot of the events currently buffered, handing
+     * off the backing arenas to the snapshot without copying; this buffer is
+     * left empty and may continue to be used independently of the snapshot.
+     * New arenas are allocated lazily on the next write, sized to the events
+     * handed off, so that sealing once per (similarly-sized) document neither
+     * allocates for a buffer that is not reused, nor over-allocates.
+     * <p>
+     * {@link #play(ContentHandler, LexicalHandler)} and
+     * {@link #writeWithFinalElementSelfAttribute(ContentHandler, LexicalHandler, boolean)}
+     * may be called on the snapshot concurrently from multiple threads, e.g.
+     * to fan a single buffered chunk out to several consumers in parallel.
+     * Any attempt to buffer further events to, or clear, the snapshot throws
+     * IllegalStateException.
+     * @return a sealed snapshot; if this buffer is already sealed, returns this
+     */
+    public UnboundedContentHandlerBuffer seal() {
+        if (sealed) {
+            return this;
         }
+        UnboundedContentHandlerBuffer snapshot = new UnboundedContentHandlerBuffer(this);
+        reallocateSize = tail;
+        reallocateStringSize = stringTail;
+        reallocateAttsSize = attsTail;
+        reallocateIntSize = intTail;
+        reallocateCharSize = charTail;
+        events = null;
+        argIndex1 = null;
+        argIndex2 = null;
+        stringArgBuffer = null;
+        attsArgBuffer = null;
+        intArgBuffer = null;
+        charArgBuffer = null;
+        clear();
+        return snapshot;
     }
-    
-    @Override
-    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
-        if (!parentModifiable) {
-            return unmodifiableParent.getFeature(name);
-        } else {
-            return super.getFeature(name);
-        }
+
+    /*
+     * Used lengths of the arenas most recently handed off by seal()
+     */
+    private int reallocateSize;
+    private int reallocateStringSize;
+    private int reallocateAttsSize;
+    private int reallocateIntSize;
+    private int reallocateCharSize;
+
+    private void reallocate() {
+        events = new SaxEventType[reallocateSize + 1];
+        argIndex1 = new int[reallocateSize + 1];
+        argIndex2 = new int[reallocateSize + 1];
+        stringArgBuffer = new String[reallocateStringSize + 1];
+        attsArgBuffer = new String[reallocateAttsSize + 1];
+        intArgBuffer = new int[reallocateIntSize + 1];
+        charArgBuffer = new char[reallocateCharSize + 1];
     }
 
-    @Override
-    public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
-        if (!parentModifiable) {
-            if (unmodifiableParent.getFeature(name) != value) {
-                throw new SAXNotSupportedException(unmodifiableParent + " is unmodifiable, and does not support setting feature "+name+" to "+value+".");
-            }
-        } else {
-            super.setFeature(name, value);
-        }
+    public boolean isSealed() {
+        return sealed;
     }
 
-    public UnboundedContentHandlerBuffer() {
-        this(INITIAL_BUFFER_SIZE);
+    private boolean coalesceCharacters = false;
+
+    public boolean isCoalesceCharacters() {
+        return coalesceCharacters;
     }
-    
-    public UnboundedContentHandlerBuffer(int initialBufferSize) {
+
+    /**
+     * Chars of each characters() event are appended to the char arena
+     * immediately following those of the preceding event, so adjacent
+     * characters events are merged by extending the length of the first.
+     */
+    @Override
+    public void setCoalesceCharacters(boolean coalesce) {
+        this.coalesceCharacters = coalesce;
+    }
+
+    private void allocate() {
         events = new SaxEventType[initialBufferSize];
         argIndex1 = new int[initialBufferSize];
         argIndex2 = new int[initialBufferSize];
         stringArgBuffer = new String[initialBufferSize * STRING_ARGS_INIT_FACTOR];
-        attsArgBuffer = new AttributesImpl[initialBufferSize];
+        attsArgBuffer = new String[initialBufferSize * ATTS_ARGS_INIT_FACTOR];
         intArgBuffer = new int[initialBufferSize * INT_ARGS_INIT_FACTOR];
         charArgBuffer = new char[initialBufferSize * CHAR_BUFFER_INIT_FACTOR];
     }
@@ -126,6 +192,12 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
     private int newSize;
 
     private void checkSpace(int stringSpace, int attsSpace, int intSpace, int charSpace) {
+        if (sealed) {
+            throw new IllegalStateException("cannot buffer events to sealed buffer");
+        }
+        if (events == null) {
+            reallocate();
+        }
         modifiedSpace = false;
         if (tail >= events.length) {
             oldSize = events.length;
@@ -143,7 +215,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         }
         if (stringSpace > 0 && stringTail + stringSpace >= stringArgBuffer.length) {
             oldSize = stringArgBuffer.length;
-            newSize = oldSize * 2;
+            newSize = Math.max(oldSize * 2, stringTail + stringSpace + 1);
             String[] tmpString = stringArgBuffer;
             stringArgBuffer = new String[newSize];
             System.arraycopy(tmpString, 0, stringArgBuffer, 0, oldSize);
@@ -151,9 +223,9 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         }
         if (attsSpace > 0 && attsTail + attsSpace >= attsArgBuffer.length) {
             oldSize = attsArgBuffer.length;
-            newSize = oldSize * 2;
-            Attributes[] tmpAtts = attsArgBuffer;
-            attsArgBuffer = new AttributesImpl[newSize];
+            newSize = Math.max(oldSize * 2, attsTail + attsSpace + 1);
+            String[] tmpAtts = attsArgBuffer;
+            attsArgBuffer = new String[newSize];
             System.arraycopy(tmpAtts, 0, attsArgBuffer, 0, oldSize);
             modifiedSpace = true;
         }
@@ -167,7 +239,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         }
         if (charSpace > 0 && charTail + charSpace >= charArgBuffer.length) {
             oldSize = charArgBuffer.length;
-            newSize = oldSize * 2;
+            newSize = Math.max(oldSize * 2, charTail + charSpace + 1);
             char[] tmpChar = charArgBuffer;
             charArgBuffer = new char[newSize];
             System.arraycopy(tmpChar, 0, charArgBuffer, 0, oldSize);
@@ -196,6 +268,10 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void startPrefixMapping(String prefix, String uri) throws SAXException {
         checkSpace(2, 0, 0, 0);
+        if (symbolTable != null) {
+            prefix = symbolTable.canonicalize(prefix);
+            uri = symbolTable.canonicalize(uri);
+        }
         argIndex1[tail] = stringTail;
         stringArgBuffer[stringTail++] = prefix;
         stringArgBuffer[stringTail++] = uri;
@@ -205,6 +281,9 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
     @Override
     public void endPrefixMapping(String prefix) throws SAXException {
         checkSpace(1, 0, 0, 0);
+        if (symbolTable != null) {
+            prefix = symbolTable.canonicalize(prefix);
+        }
         argIndex1[tail] = stringTail;
         stringArgBuffer[stringTail++] = prefix;
         events[tail++] = SaxEventType.endPrefixMapping;
@@ -212,19 +291,46 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
-        checkSpace(3, 1, 0, 0);
+        int attsLength = atts.getLength();
+        checkSpace(3 + (attsLength * 3), attsLength * 2, 1, 0);
         argIndex1[tail] = stringTail;
-        stringArgBuffer[stringTail++] = uri;
-        stringArgBuffer[stringTail++] = localName;
-        stringArgBuffer[stringTail++] = qName;
-        argIndex2[tail] = attsTail;
-        attsArgBuffer[attsTail++] = new AttributesImpl(atts);
+        if (symbolTable != null) {
+            stringArgBuffer[stringTail++] = symbolTable.canonicalize(uri);
+            stringArgBuffer[stringTail++] = symbolTable.canonicalize(localName);
+            stringArgBuffer[stringTail++] = symbolTable.canonicalize(qName);
+            for (int i = 0; i < attsLength; i++) {
+                stringArgBuffer[stringTail++] = symbolTable.canonicalize(atts.getURI(i));
+                stringArgBuffer[stringTail++] = symbolTable.canonicalize(atts.getLocalName(i));
+                stringArgBuffer[stringTail++] = symbolTable.canonicalize(atts.getQName(i));
+            }
+        } else {
+            stringArgBuffer[stringTail++] = uri;
+            stringArgBuffer[stringTail++] = localName;
+            stringArgBuffer[stringTail++] = qName;
+            for (int i = 0; i < attsLength; i++) {
+                stringArgBuffer[stringTail++] = atts.getURI(i);
+                stringArgBuffer[stringTail++] = atts.getLocalName(i);
+                stringArgBuffer[stringTail++] = atts.getQName(i);
+            }
+        }
+        argIndex2[tail] = intTail;
+        intArgBuffer[intTail++] = attsTail;
+        intArgBuffer[intTail++] = attsLength;
+        for (int i = 0; i < attsLength; i++) {
+            attsArgBuffer[attsTail++] = atts.getType(i);
+            attsArgBuffer[attsTail++] = atts.getValue(i);
+        }
         events[tail++] = SaxEventType.startElement;
     }
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         checkSpace(3, 0, 0, 0);
+        if (symbolTable != null) {
+            uri = symbolTable.canonicalize(uri);
+            localName = symbolTable.canonicalize(localName);
+            qName = symbolTable.canonicalize(qName);
+        }
         argIndex1[tail] = stringTail;
         stringArgBuffer[stringTail++] = uri;
         stringArgBuffer[stringTail++] = localName;
@@ -234,6 +340,13 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
 
     @Override
     public void characters(char[] ch, int start, int length) throws SAXException {
+        if (coalesceCharacters && tail > 0 && events[tail - 1] == SaxEventType.characters) {
+            checkSpace(0, 0, 0, length);
+            System.arraycopy(ch, start, charArgBuffer, charTail, length);
+            charTail += length;
+            intArgBuffer[argIndex1[tail - 1] + 1] += length;
+            return;
+        }
         checkSpace(0, 0, 1, length);
         argIndex1[tail] = intTail;
         intArgBuffer[intTail++] = charTail;
@@ -268,76 +381,30 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         checkSpace(1, 0, 0, 0);
         argIndex1[tail] = stringTail;
         stringArgBuffer[stringTail++] = name;
-        events[tail++] = SaxEventType.startEntity;
-    }
-
-    /*
-     * Execution
-     */
-
-    private boolean parsing = false;
-
-    @Override
-    public void parse(InputSource input) throws SAXException, IOException {
-        parseIgnoringInput();
+        events[tail++] = SaxEventType.skippedEntity;
     }
 
     @Override
-    public void parse(String systemId) throws SAXException, IOException {
-        parseIgnoringInput();
-    }
-
-    private boolean stringIntern = false;
-
-    private void parseIgnoringInput() throws SAXException {
-        if (parsing) {
-            throw new IllegalStateException();
-        }
-        parsing = true;
-        stringIntern = getFeature(SAXFeatures.STRING_INTERNING);
-        ContentHandler ch = getContentHandler();
-        LexicalHandler lex = (LexicalHandler)getProperty(LEXICAL_HANDLER_PROPERTY_KEY);
-        for (int i = 0; i < tail; i++) {
-            execute(i, ch, lex);
-        }
-        if (flushOnParse) {
-            clear();
-        }
-        parsing = false;
-    }
-
-    private boolean flushOnParse = false;
-    
-    public boolean isFlushOnParse() {
-        return flushOnParse;
-    }
-    
-    public void setFlushOnParse(boolean flush) {
-        this.flushOnParse = flush;
-    }
-    
     public int play(ContentHandler ch, LexicalHandler lh) throws SAXException {
+        BufferedAttributes atts = sealed ? new BufferedAttributes() : attsView;
         int level = 0;
         for (int i = 0; i < tail; i++) {
-                level += execute(i, ch, lh);
+                level += execute(i, ch, lh, atts);
         }
         return level;
     }
 
-    public int flush(ContentHandler ch, LexicalHandler lh) throws SAXException {
-        int level = play(ch, lh);
-        clear();
-        return level;
-    }
-
+    @Override
     public void clear() {
+        if (sealed) {
+            throw new IllegalStateException("cannot clear sealed buffer");
+        }
+        super.clear();
         tail = 0;
         stringTail = 0;
         attsTail = 0;
         intTail = 0;
         charTail = 0;
-        parsing = false;
-        flushOnParse = false;
     }
 
     public void dump(PrintStream out, boolean writeWhitespaceCharacterEvents) throws SAXException {
@@ -360,10 +427,37 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         }
     }
 
+    @Override
     public int size() {
         return tail;
     }
 
+    private static final int REFERENCE_SIZE = 8;
+    private static final int EVENT_SIZE = REFERENCE_SIZE + 8;
+
+    @Override
+    public long getRetainedSize() {
+        if (events == null) {
+            return 0;
+        }
+        return ((long) events.length * EVENT_SIZE) + ((long) stringArgBuffer.length * REFERENCE_SIZE)
+                + ((long) attsArgBuffer.length * REFERENCE_SIZE) + (intArgBuffer.length * 4L) + (charArgBuffer.length * 2L);
+    }
+
+    @Override
+    public long getUsedSize() {
+        return ((long) tail * EVENT_SIZE) + ((long) stringTail * REFERENCE_SIZE)
+                + ((long) attsTail * REFERENCE_SIZE) + (intTail * 4L) + (charTail * 2L);
+    }
+
+    @Override
+    public void trim() {
+        if (tail > 0 || sealed) {
+            throw new IllegalStateException("cannot trim non-empty buffer");
+        }
+        allocate();
+    }
+
     public int playMostRecentStructurallyInsignificant(ContentHandler ch, LexicalHandler lh) throws SAXException {
         int level = 0;
         int i;
@@ -373,7 +467,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
             }
         }
         while (++i < tail) {
-            level += execute(i, ch, lh);
+            level += execute(i, ch, lh, attsView);
         }
         return level;
     }
@@ -386,12 +480,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                 return false;
             }
         }
-        for (int i = 0; i < attsTail; i++) {
-            if (!testAttributeEqualityIntern(attsArgBuffer[i], other.attsArgBuffer[i])) {
-                return false;
-            }
-        }
-        return true;
+        return equalsAtts(other);
     }
 
     private boolean equalsNoIntern(UnboundedContentHandlerBuffer other) {
@@ -400,8 +489,12 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                 return false;
             }
         }
+        return equalsAtts(other);
+    }
+
+    private boolean equalsAtts(UnboundedContentHandlerBuffer other) {
         for (int i = 0; i < attsTail; i++) {
-            if (!testAttributeEqualityNoIntern(attsArgBuffer[i], other.attsArgBuffer[i])) {
+            if (!attsArgBuffer[i].equals(other.attsArgBuffer[i])) {
                 return false;
             }
         }
@@ -515,7 +608,8 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
             return false;
         }
         int strInd = argIndex1[index];
-        int attsInd = argIndex2[index];
+        BufferedAttributes bufferedAtts = new BufferedAttributes();
+        bufferedAtts.init(index, false);
         if (stringIntern) {
             if (uri != stringArgBuffer[strInd]) {
                 return false;
@@ -526,7 +620,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
             if (qName != stringArgBuffer[strInd + 2]) {
                 return false;
             }
-            return testAttributeEqualityIntern(atts, attsArgBuffer[attsInd]);
+            return testAttributeEqualityIntern(atts, bufferedAtts);
         } else {
             if (!uri.equals(stringArgBuffer[strInd])) {
                 return false;
@@ -537,7 +631,7 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
             if (!qName.equals(stringArgBuffer[strInd + 2])) {
                 return false;
             }
-            return testAttributeEqualityNoIntern(atts, attsArgBuffer[attsInd]);
+            return testAttributeEqualityNoIntern(atts, bufferedAtts);
         }
     }
 
@@ -604,7 +698,8 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         }
     }
 
-    private int execute(int index, ContentHandler ch, LexicalHandler lh) throws SAXException {
+    private int execute(int index, ContentHandler ch, LexicalHandler lh, BufferedAttributes atts) throws SAXException {
+        int indexType1;
         switch (events[index]) {
             case startDocument:
                 ch.startDocument();
@@ -622,8 +717,8 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                 return 0;
             case startElement:
                 indexType1 = argIndex1[index];
-                indexType2 = argIndex2[index];
-                ch.startElement(stringArgBuffer[indexType1], stringArgBuffer[indexType1 + 1], stringArgBuffer[indexType1 + 2], attsArgBuffer[indexType2]);
+                atts.init(index, false);
+                ch.startElement(stringArgBuffer[indexType1], stringArgBuffer[indexType1 + 1], stringArgBuffer[indexType1 + 2], atts);
                 return 1;
             case endElement:
                 indexType1 = argIndex1[index];
@@ -637,6 +732,14 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                 indexType1 = argIndex1[index];
                 ch.ignorableWhitespace(charArgBuffer, intArgBuffer[indexType1], intArgBuffer[indexType1 + 1]);
                 return 0;
+            case processingInstruction:
+                indexType1 = argIndex1[index];
+                ch.processingInstruction(stringArgBuffer[indexType1], stringArgBuffer[indexType1 + 1]);
+                return 0;
+            case skippedEntity:
+                indexType1 = argIndex1[index];
+                ch.skippedEntity(stringArgBuffer[indexType1]);
+                return 0;
             case startDTD:
                 indexType1 = argIndex1[index];
                 lh.startDTD(stringArgBuffer[indexType1], stringArgBuffer[indexType1 + 1], stringArgBuffer[indexType1 + 2]);
@@ -686,8 +789,8 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                 break;
             case startElement:
                 indexType1 = argIndex1[index];
-                indexType2 = argIndex2[index];
-                out.println("startElement(" + stringArgBuffer[indexType1] + ", " + stringArgBuffer[indexType1 + 1] + ", " + stringArgBuffer[indexType1 + 2] + ", " + attsToString(attsArgBuffer[indexType2]) + ")");
+                attsView.init(index, false);
+                out.println("startElement(" + stringArgBuffer[indexType1] + ", " + stringArgBuffer[indexType1 + 1] + ", " + stringArgBuffer[indexType1 + 2] + ", " + attsToString(attsView) + ")");
                 break;
             case endElement:
                 indexType1 = argIndex1[index];
@@ -707,6 +810,14 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
                     out.println("ignorableWhitespace(" + characterString + ")");
                 }
                 break;
+            case processingInstruction:
+                indexType1 = argIndex1[index];
+                out.println("processingInstruction(" + stringArgBuffer[indexType1] + ", " + stringArgBuffer[indexType1 + 1] + ")");
+                break;
+            case skippedEntity:
+                indexType1 = argIndex1[index];
+                out.println("skippedEntity(" + stringArgBuffer[indexType1] + ")");
+                break;
             case startDTD:
                 indexType1 = argIndex1[index];
                 out.println("startDTD(" + stringArgBuffer[indexType1] + ", " + stringArgBuffer[indexType1 + 1] + ", " + stringArgBuffer[indexType1 + 2] + ")");
@@ -739,7 +850,6 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
     }
 
     private int indexType1;
-    private int indexType2;
 
     private String getPrintingCharacters(char[] ch, int start, int length, boolean writeWhitespaceCharacterEvents) {
         String s = new String(ch, start, length);
@@ -765,25 +875,18 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         return sb.toString();
     }
 
-    @Override
-    public void setDocumentLocator(Locator locator) {
-        if (logger.isTraceEnabled()) {
-            logger.trace("ignoring setDocumentLocator(" + locator + ")");
-        }
-    }
-
     public void writeWithFinalElementSelfAttribute(ContentHandler ch, LexicalHandler lh, boolean asSelf) throws SAXException {
+        BufferedAttributes atts = sealed ? new BufferedAttributes() : attsView;
         for (int i = 0; i < tail; i++) {
             if (i == tail - 1 && asSelf) {
                 if (events[i] != SaxEventType.startElement) {
                     throw new IllegalStateException("called method at bad time.");
                 }
                 int strInd = argIndex1[i];
-                AttributesImpl atts = attsArgBuffer[argIndex2[i]];
-                atts.addAttribute("", "self", "self", "CDATA", "true");
+                atts.init(i, true);
                 ch.startElement(stringArgBuffer[strInd], stringArgBuffer[strInd + 1], stringArgBuffer[strInd + 2], atts);
             } else {
-                execute(i, ch, lh);
+                execute(i, ch, lh, atts);
             }
         }
     }
@@ -843,4 +946,142 @@ public class UnboundedContentHandlerBuffer extends XMLFilterLexicalHandlerImpl {
         events[tail++] = SaxEventType.comment;
     }
 
+    /**
+     * Read-only view of the flattened attributes of a single buffered
+     * startElement event. Optionally presents an additional
+     * <code>self="true"</code> attribute.
+     */
+    private class BufferedAttributes implements Attributes {
+
+        private int nameOffset;
+        private int valueOffset;
+        private int length;
+        private boolean self;
+
+        private void init(int index, boolean self) {
+            int intInd = argIndex2[index];
+            nameOffset = argIndex1[index] + 3;
+            valueOffset = intArgBuffer[intInd];
+            length = intArgBuffer[intInd + 1];
+            this.self = self;
+        }
+
+        private boolean isSelf(int index) {
+            return self && index == length;
+        }
+
+        private boolean inRange(int index) {
+            return index >= 0 && index < length;
+        }
+
+        @Override
+        public int getLength() {
+            return self ? length + 1 : length;
+        }
+
+        @Override
+        public String getURI(int index) {
+            return inRange(index) ? stringArgBuffer[nameOffset + (index * 3)] : (isSelf(index) ? "" : null);
+        }
+
+        @Override
+        public String getLocalName(int index) {
+            return inRange(index) ? stringArgBuffer[nameOffset + (index * 3) + 1] : (isSelf(index) ? "self" : null);
+        }
+
+        @Override
+        public String getQName(int index) {
+            return inRange(index) ? stringArgBuffer[nameOffset + (index * 3) + 2] : (isSelf(index) ? "self" : null);
+        }
+
+        @Override
+        public String getType(int index) {
+            return inRange(index) ? attsArgBuffer[valueOffset + (index * 2)] : (isSelf(index) ? "CDATA" : null);
+        }
+
+        @Override
+        public String getValue(int index) {
+            return inRange(index) ? attsArgBuffer[valueOffset + (index * 2) + 1] : (isSelf(index) ? "true" : null);
+        }
+
+        @Override
+        public int getIndex(String uri, String localName) {
+            int attsLength = getLength();
+            for (int i = 0; i < attsLength; i++) {
+                if (localName.equals(getLocalName(i)) && uri.equals(getURI(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int getIndex(String qName) {
+            int attsLength = getLength();
+            for (int i = 0; i < attsLength; i++) {
+                if (qName.equals(getQName(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public String getType(String uri, String localName) {
+            return getType(getIndex(uri, localName));
+        }
+
+        @Override
+        public String getType(String qName) {
+            return getType(getIndex(qName));
+        }
+
+        @Override
+        public String getValue(String uri, String localName) {
+            return getValue(getIndex(uri, localName));
+        }
+
+        @Override
+        public String getValue(String qName) {
+            return getValue(getIndex(qName));
+        }
+
+    }
+
+    /**
+     * Rough allocation comparison: buffers and replays the specified file
+     * <code>passes</code> times, reporting bytes allocated per pass by the
+     * current thread (requires a HotSpot-compatible ThreadMXBean).
+     */
+    public static void main(String[] args) throws Exception {
+        File input = new File(args[0]);
+        int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        DefaultHandler2 devNull = new DefaultHandler2();
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        UnboundedContentHandlerBuffer buffer = new UnboundedContentHandlerBuffer();
+        reader.setContentHandler(buffer);
+        reader.setProperty(LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+        long bufferBytes = 0;
+        long playBytes = 0;
+        for (int i = -1; i < passes; i++) {
+            buffer.clear();
+            long start = mx.getThreadAllocatedBytes(threadId);
+            reader.parse(input.toURI().toString());
+            long buffered = mx.getThreadAllocatedBytes(threadId);
+            buffer.play(devNull, devNull);
+            long played = mx.getThreadAllocatedBytes(threadId);
+            if (i >= 0) { // first pass is warmup/buffer growth
+                bufferBytes += buffered - start;
+                playBytes += played - buffered;
+            }
+        }
+        System.out.println("events per pass: " + buffer.size());
+        System.out.println("allocated per pass (parse + buffer): " + (bufferBytes / passes) + " bytes");
+        System.out.println("allocated per pass (play): " + (playBytes / passes) + " bytes");
+    }
+
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unbounded executor intended for the pipeline's blocking hand-offs
+ * (threads parked on phasers, synchronous queues, JDBC, etc.). Where the
+ * runtime supports virtual threads, each task runs on a new virtual thread;
+ * otherwise this falls back to a cached pool of platform threads.
+ * <p>
+ * Components that run CPU-bound work (e.g., chunk transformation) may
+ * recognize an instance of this class and schedule that work on a bounded
+ * pool of platform threads instead.
+ *
+ * @author michael
+ */
+public class VirtualThreadExecutorService implements ExecutorService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadExecutorService.class);
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method m;
+        try {
+            m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            m = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = m;
+    }
+
+    private final ExecutorService backing;
+    private final boolean virtual;
+
+    public VirtualThreadExecutorService() {
+        ExecutorService ex = null;
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                ex = (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+            } catch (IllegalAccessException e) {
+                LOG.warn("virtual threads not accessible", e);
+            } catch (InvocationTargetException e) {
+                LOG.warn("virtual threads not available", e.getCause());
+            }
+        }
+        if (ex == null) {
+            LOG.info("virtual threads not supported by this runtime; using platform threads");
+            backing = Executors.newCachedThreadPool();
+            virtual = false;
+        } else {
+            backing = ex;
+            virtual = true;
+        }
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads
+     */
+    public static boolean isSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * @return true if tasks submitted to this executor run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    public void shutdown() {
+        backing.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return backing.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return backing.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return backing.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return backing.awaitTermination(timeout, unit);
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task) {
+        return backing.submit(task);
+    }
+
+    @Override
+    public <T> Future<T> submit(Runnable task, T result) {
+        return backing.submit(task, result);
+    }
+
+    @Override
+    public Future<?> submit(Runnable task) {
+        return backing.submit(task);
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks) throws InterruptedException {
+        return backing.invokeAll(tasks);
+    }
+
+    @Override
+    public <T> List<Future<T>> invokeAll(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException {
+        return backing.invokeAll(tasks, timeout, unit);
+    }
+
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks) throws InterruptedException, ExecutionException {
+        return backing.invokeAny(tasks);
+    }
+
+    @Override
+    public <T> T invokeAny(Collection<? extends Callable<T>> tasks, long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        return backing.invokeAny(tasks, timeout, unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        backing.execute(command);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "(virtual=" + virtual + ")";
+    }
+
+}
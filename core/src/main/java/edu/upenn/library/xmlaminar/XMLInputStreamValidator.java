@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Byte-level counterpart to {@link XMLInputValidator}, for UTF-8 input:
+ * malformed UTF-8 sequences (overlong, surrogate, out-of-range, truncated)
+ * and code points that are not legal XML characters are replaced with the
+ * UTF-8 encoding of U+FFFD, so that the wrapped bytes may be consumed
+ * directly by a parser (with its own decoder), rather than decoded by a
+ * Reader for sanitization. Runs of legal ASCII are copied as-is.
+ *
+ * @author michael
+ */
+public class XMLInputStreamValidator extends FilterInputStream {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final byte[] REPLACEMENT = new byte[] {(byte) 0xEF, (byte) 0xBF, (byte) 0xBD};
+    private static final int MAX_SEQUENCE_LENGTH = 4;
+
+    private final byte[] raw;
+    private int rawPos = 0;
+    private int rawLimit = 0;
+    private boolean eof = false;
+
+    /*
+     * bytes of a sequence (or replacement) that did not fit in the caller's
+     * buffer, to be returned first on the next read
+     */
+    private final byte[] pending = new byte[MAX_SEQUENCE_LENGTH];
+    private int pendingPos = 0;
+    private int pendingLimit = 0;
+
+    private final byte[] single = new byte[1];
+
+    public XMLInputStreamValidator(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public XMLInputStreamValidator(InputStream in, int bufferSize) {
+        super(in);
+        raw = new byte[Math.max(bufferSize, MAX_SEQUENCE_LENGTH)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int outPos = off;
+        int outLimit = off + len;
+        while (pendingPos < pendingLimit && outPos < outLimit) {
+            b[outPos++] = pending[pendingPos++];
+        }
+        while (outPos < outLimit) {
+            if (rawPos == rawLimit) {
+                if (outPos > off || !fill()) {
+                    break;
+                }
+            }
+            byte c = raw[rawPos];
+            if (c >= 0x20) {
+                // run of legal ASCII (0x20-0x7F)
+                int runLimit = Math.min(rawLimit, rawPos + (outLimit - outPos));
+                int start = rawPos;
+                do {
+                    rawPos++;
+                } while (rawPos < runLimit && raw[rawPos] >= 0x20);
+                System.arraycopy(raw, start, b, outPos, rawPos - start);
+                outPos += rawPos - start;
+                continue;
+            }
+            int needed = sequenceLength(c & 0xFF);
+            if (rawLimit - rawPos < needed && !eof) {
+                if (outPos > off) {
+                    break;
+                }
+                fill();
+                continue;
+            }
+            int valid = validate(rawPos, needed);
+            if (valid > 0) {
+                outPos = emit(raw, rawPos, valid, b, outPos, outLimit);
+                rawPos += valid;
+            } else {
+                outPos = emit(REPLACEMENT, 0, REPLACEMENT.length, b, outPos, outLimit);
+                rawPos -= valid;
+            }
+        }
+        return outPos == off && eof && pendingPos == pendingLimit ? -1 : outPos - off;
+    }
+
+    private int emit(byte[] src, int srcPos, int length, byte[] b, int outPos, int outLimit) {
+        int direct = Math.min(length, outLimit - outPos);
+        System.arraycopy(src, srcPos, b, outPos, direct);
+        if (direct < length) {
+            pendingPos = 0;
+            pendingLimit = length - direct;
+            System.arraycopy(src, srcPos + direct, pending, 0, pendingLimit);
+        }
+        return outPos + direct;
+    }
+
+    /**
+     * Compacts the raw buffer and reads more input into it.
+     * @return false if no more input is available
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int remaining = rawLimit - rawPos;
+        System.arraycopy(raw, rawPos, raw, 0, remaining);
+        rawPos = 0;
+        rawLimit = remaining;
+        int read = in.read(raw, rawLimit, raw.length - rawLimit);
+        if (read < 0) {
+            eof = true;
+            return remaining > 0;
+        }
+        rawLimit += read;
+        return true;
+    }
+
+    /**
+     * @return the length of the sequence introduced by the specified lead
+     * byte; 1 for bytes that cannot begin a multi-byte sequence
+     */
+    private static int sequenceLength(int lead) {
+        if (lead < 0xC2) {
+            return 1;
+        } else if (lead < 0xE0) {
+            return 2;
+        } else if (lead < 0xF0) {
+            return 3;
+        } else if (lead < 0xF5) {
+            return 4;
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * @return the length of the valid sequence at the specified position, or
+     * the negated length of the maximal invalid subsequence to be replaced
+     */
+    private int validate(int pos, int needed) {
+        int lead = raw[pos] & 0xFF;
+        if (lead < 0x80) {
+            return (lead == 0x9 || lead == 0xA || lead == 0xD) ? 1 : -1;
+        } else if (lead < 0xC2 || lead >= 0xF5) {
+            return -1;
+        }
+        for (int k = 1; k < needed; k++) {
+            if (pos + k >= rawLimit) {
+                return -k; // truncated at end of input
+            }
+            int b = raw[pos + k] & 0xFF;
+            int lo = 0x80;
+            int hi = 0xBF;
+            if (k == 1) {
+                switch (lead) {
+                    case 0xE0:
+                        lo = 0xA0; // overlong
+                        break;
+                    case 0xED:
+                        hi = 0x9F; // surrogate
+                        break;
+                    case 0xF0:
+                        lo = 0x90; // overlong
+                        break;
+                    case 0xF4:
+                        hi = 0x8F; // > U+10FFFF
+                        break;
+                }
+            }
+            if (b < lo || b > hi) {
+                return -k;
+            }
+        }
+        if (lead == 0xEF && (raw[pos + 1] & 0xFF) == 0xBF && (raw[pos + 2] & 0xFF) >= 0xBE) {
+            return -3; // U+FFFE, U+FFFF
+        }
+        return needed;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        byte[] skipBuffer = new byte[(int) Math.min(n, DEFAULT_BUFFER_SIZE)];
+        long remaining = n;
+        while (remaining > 0) {
+            int read = read(skipBuffer, 0, (int) Math.min(remaining, skipBuffer.length));
+            if (read < 0) {
+                break;
+            }
+            remaining -= read;
+        }
+        return n - remaining;
+    }
+
+    /**
+     * Sequences starting more than 3 bytes before the end of the raw buffer
+     * are complete, and each byte consumed yields at least one byte.
+     */
+    @Override
+    public int available() throws IOException {
+        return (pendingLimit - pendingPos) + Math.max(0, rawLimit - rawPos - (MAX_SEQUENCE_LENGTH - 1));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        // NOOP
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+}
@@ -19,6 +19,7 @@ package edu.upenn.library.xmlaminar.dbxml;
 import edu.upenn.library.xmlaminar.BoundedXMLFilterBuffer;
 import edu.upenn.library.xmlaminar.SAXFeatures;
 import edu.upenn.library.xmlaminar.SAXProperties;
+import edu.upenn.library.xmlaminar.SymbolTable;
 import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
 import edu.upenn.library.xmlaminar.VolatileXMLFilterImpl;
 import java.io.ByteArrayInputStream;
@@ -84,7 +85,7 @@ public abstract class SQLXMLReader extends VolatileXMLFilterImpl {
     private static final Logger logger = LoggerFactory.getLogger(SQLXMLReader.class);
     private ResultSet rs;
     protected ContentHandler ch;
-    private final BoundedXMLFilterBuffer buffer = new BoundedXMLFilterBuffer();
+    private final BoundedXMLFilterBuffer buffer = new BoundedXMLFilterBuffer(BoundedXMLFilterBuffer.DEFAULT_BUFFER_SIZE, true);
     private ErrorHandler eh;
     private DTDHandler dh;
     private LexicalHandler lh;
@@ -295,6 +296,8 @@ public abstract class SQLXMLReader extends VolatileXMLFilterImpl {
             }
         } else if (SAXProperties.DATA_SOURCE_FACTORY_PROPERTY_NAME.equals(name)) {
             setDataSourceFactory((DataSourceFactory) value);
+        } else if (SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+            buffer.setSymbolTable((SymbolTable) value);
         } else {
             throw new SAXNotRecognizedException("setProperty("+name+", "+value+")");
         }
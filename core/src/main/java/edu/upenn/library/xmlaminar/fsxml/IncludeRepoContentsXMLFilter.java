@@ -17,9 +17,11 @@
 package edu.upenn.library.xmlaminar.fsxml;
 
 import edu.upenn.library.xmlaminar.DocEventIgnorer;
-import edu.upenn.library.xmlaminar.XMLInputValidator;
+import edu.upenn.library.xmlaminar.XMLInputStreamValidator;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.Reader;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
@@ -94,13 +96,14 @@ public class IncludeRepoContentsXMLFilter extends XMLFilterImpl {
     private void incorporateXMLContent(String absolutePath) throws SAXException, IOException {
         parser.reset();
         subReader.setContentHandler(this);
-        Reader r = new FileReader(absolutePath);
+        InputStream is = new FileInputStream(absolutePath);
         try {
-            InputSource subIn = new InputSource(new XMLInputValidator(r));
+            InputSource subIn = new InputSource(new XMLInputStreamValidator(is));
+            subIn.setEncoding("UTF-8");
             subIn.setSystemId(absolutePath);
             subReader.parse(subIn);
         } finally {
-            r.close();
+            is.close();
         }
     }
 
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ *
+ * @author michael
+ */
+public class BoundedXMLFilterBufferTest {
+
+    private static final int BUFFER_SIZE = 16;
+
+    /**
+     * Many times the buffer's event capacity, with text runs both shorter
+     * and longer than its initial char capacity.
+     */
+    private static String input() {
+        Random r = new Random(1);
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\"?>");
+        sb.append("<marc:collection xmlns:marc=\"http://www.loc.gov/MARC21/slim\">");
+        for (int i = 0; i < 500; i++) {
+            sb.append("<marc:record n=\"").append(i).append("\">");
+            if (i % 10 == 0) {
+                sb.append("<!-- record ").append(i).append(" --><?pi ").append(i).append("?>");
+            }
+            sb.append("<marc:datafield tag=\"245\" ind1=\"1\" ind2=\" \">");
+            for (int j = r.nextInt(4); j >= 0; j--) {
+                sb.append("<marc:subfield code=\"").append((char) ('a' + j)).append("\">");
+                int length = r.nextInt(8) == 0 ? r.nextInt(BUFFER_SIZE * 20) : r.nextInt(20);
+                for (int k = 0; k < length; k++) {
+                    sb.append(k % 7 == 0 ? ' ' : (char) ('a' + r.nextInt(26)));
+                }
+                if (r.nextInt(5) == 0) {
+                    sb.append(" &amp; <![CDATA[<cdata>]]> élève 中文");
+                }
+                sb.append("</marc:subfield>");
+            }
+            sb.append("</marc:datafield></marc:record>\n");
+        }
+        return sb.append("</marc:collection>").toString();
+    }
+
+    private static XMLReader newParser() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        return spf.newSAXParser().getXMLReader();
+    }
+
+    private static TransformerHandler newSerializer(StringWriter sw) throws Exception {
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+        th.setResult(new StreamResult(sw));
+        return th;
+    }
+
+    private static String direct(String input) throws Exception {
+        XMLReader reader = newParser();
+        StringWriter sw = new StringWriter();
+        TransformerHandler th = newSerializer(sw);
+        reader.setContentHandler(th);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, th);
+        reader.parse(new InputSource(new StringReader(input)));
+        return sw.toString();
+    }
+
+    /**
+     * Events are produced on the calling thread and replayed to the serializer
+     * on the buffer's executor.
+     */
+    private static String buffered(BoundedXMLFilterBuffer buffer, String input) throws Exception {
+        StringWriter sw = new StringWriter();
+        TransformerHandler th = newSerializer(sw);
+        buffer.clear();
+        buffer.setParent(newParser());
+        buffer.setContentHandler(th);
+        buffer.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, th);
+        buffer.parse(new InputSource(new StringReader(input)));
+        return sw.toString();
+    }
+
+    private void testRoundTrip(boolean lockFree, boolean coalesce) throws Exception {
+        String input = input();
+        String expected = direct(input);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BoundedXMLFilterBuffer buffer = new BoundedXMLFilterBuffer(BUFFER_SIZE, lockFree);
+            assertEquals(lockFree, buffer.isLockFree());
+            buffer.setCoalesceCharacters(coalesce);
+            buffer.setExecutor(executor);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(expected, buffered(buffer, input));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testLockFreeRoundTrip() throws Exception {
+        testRoundTrip(true, false);
+    }
+
+    @Test(timeout = 60000)
+    public void testLockFreeCoalesceRoundTrip() throws Exception {
+        testRoundTrip(true, true);
+    }
+
+    @Test(timeout = 60000)
+    public void testLockingRoundTrip() throws Exception {
+        testRoundTrip(false, false);
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+
+/**
+ *
+ * @author michael
+ */
+public class CompactContentHandlerBufferTest {
+
+    private static final String INPUT = "<?xml version=\"1.0\"?>"
+            + "<marc:collection xmlns:marc=\"http://www.loc.gov/MARC21/slim\">"
+            + "<!-- a comment -->"
+            + "<marc:record><marc:leader>02882cas a2200565 a 4500</marc:leader>"
+            + "<marc:datafield tag=\"245\" ind1=\"1\" ind2=\" \">"
+            + "<marc:subfield code=\"a\">Title &amp; <![CDATA[<subtitle>]]></marc:subfield>"
+            + "<marc:subfield code=\"b\">élève 中文</marc:subfield>"
+            + "</marc:datafield></marc:record>"
+            + "<marc:record><marc:leader/></marc:record>"
+            + "</marc:collection>";
+
+    private static String serialize(ContentHandlerBuffer buffer) throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        reader.setContentHandler(buffer);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+        reader.parse(new InputSource(new StringReader(INPUT)));
+        return replay(buffer);
+    }
+
+    private static String replay(ContentHandlerBuffer buffer) throws Exception {
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+        StringWriter sw = new StringWriter();
+        th.setResult(new StreamResult(sw));
+        int level = buffer.play(th, th);
+        assertEquals(0, level);
+        return sw.toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String expected = serialize(new UnboundedContentHandlerBuffer());
+        CompactContentHandlerBuffer compact = new CompactContentHandlerBuffer(16);
+        assertEquals(expected, serialize(compact));
+        int size = compact.size();
+        assertTrue(size > 0);
+        compact.clear();
+        assertEquals(0, compact.size());
+        assertEquals(expected, serialize(compact));
+        assertEquals(size, compact.size());
+    }
+
+    @Test
+    public void testSpill() throws Exception {
+        String expected = serialize(new UnboundedContentHandlerBuffer());
+        CompactContentHandlerBuffer compact = new CompactContentHandlerBuffer(16);
+        compact.setSpillThreshold(64);
+        assertEquals(expected, serialize(compact));
+        assertTrue(compact.getSpilledSize() > 0);
+        assertTrue(compact.getRetainedSize() < 1024);
+        assertEquals(expected, replay(compact));
+        compact.clear();
+        assertEquals(0, compact.getSpilledSize());
+        assertEquals(expected, serialize(compact));
+    }
+
+    private static int countSpillFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles(new FilenameFilter() {
+
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("xmlaminar-") && name.endsWith(".spill");
+            }
+        });
+        return files == null ? 0 : files.length;
+    }
+
+    @Test
+    public void testSpillFileReuse() throws Exception {
+        String expected = serialize(new UnboundedContentHandlerBuffer());
+        int before = countSpillFiles();
+        CompactContentHandlerBuffer compact = new CompactContentHandlerBuffer(16);
+        compact.setSpillThreshold(64);
+        assertEquals(expected, serialize(compact));
+        File spillFile = compact.getSpillFile();
+        long spilled = compact.getSpilledSize();
+        assertTrue(spilled > 0);
+        assertEquals(spilled, spillFile.length());
+        for (int i = 0; i < 10; i++) {
+            compact.clear();
+            assertEquals(0, spillFile.length());
+            assertEquals(expected, serialize(compact));
+            assertSame(spillFile, compact.getSpillFile());
+            assertEquals(spilled, compact.getSpilledSize());
+            assertEquals(spilled, spillFile.length());
+            assertEquals(before + 1, countSpillFiles());
+        }
+        compact.clear();
+        compact.trim();
+        assertNull(compact.getSpillFile());
+        assertFalse(spillFile.exists());
+        assertEquals(before, countSpillFiles());
+    }
+
+}
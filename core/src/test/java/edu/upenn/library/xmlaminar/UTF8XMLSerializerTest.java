@@ -0,0 +1,225 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+/**
+ * Compares output of UTF8XMLSerializer byte-for-byte with that of the Saxon
+ * identity transformer it stands in for.
+ *
+ * @author michael
+ */
+public class UTF8XMLSerializerTest {
+
+    private static final String NAMESPACES = "<a xmlns=\"urn:d\" xmlns:p=\"urn:p\">"
+            + "<p:b xmlns:p=\"urn:p\" p:x=\"1\"/>"
+            + "<c xmlns:p=\"urn:other\" p:x=\"2\"><p:d/></c>"
+            + "<e xmlns=\"\"><f xmlns:q=\"urn:q\" q:y=\"3\" z=\"4\"/></e>"
+            + "<g xmlns=\"urn:g\"/>"
+            + "</a>";
+
+    private static final String ESCAPING = "<a t=\"tab&#9;lf&#10;cr&#13;quot&quot;apos'lt&lt;gt&gt;amp&amp;&#x7f;&#x85;&#x2028;\">"
+            + "lf\ncr&#13;quot\"apos'lt&lt;gt&gt;amp&amp;&#x7f;&#x85;&#x9f;&#xa0;&#x2028;&#x2029;"
+            + "</a>";
+
+    private static final String SURROGATES = "<a v=\"😀é\">😀 中文 élève 𐀀</a>";
+
+    private static final String MIXED = "<?xml version=\"1.0\"?>\n"
+            + "<r>\n <b/>\n   <c>t</c><d><e> <f/></e></d>\n"
+            + "<g><h/><?p?><!--c--></g>   \n  <i>x<j/>y</i><k>z</k>"
+            + "<l xmlns:p=\"http://example.com/a/fairly/long/namespace/uri\" p:a=\"a fairly long attribute value\" b=\"another\"/>"
+            + "<s xml:space=\"preserve\"><t> <u/></t><v/></s><w><x/></w>"
+            + "<y><![CDATA[<cdata> & \"text\"]]></y>"
+            + "</r>\n<!--after-->";
+
+    /*
+     * Not compared against Saxon: with the JDK parser, Saxon may report
+     * corrupted text for a comment preceding the document element.
+     */
+    private static final String PROLOG = "<!DOCTYPE r [<!-- dtd comment --><!ENTITY x \"y\">]><!--top--><?pi data?><r>&x;</r>";
+
+    private static final String XML11 = "<?xml version=\"1.1\"?><r a=\"&#x1;\">&#x1;&#x1f;</r>";
+
+    private static byte[] saxon(String xml, Properties props) throws Exception {
+        Transformer t = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer();
+        t.setOutputProperties(props);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.transform(new StreamSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))), new StreamResult(out));
+        return out.toByteArray();
+    }
+
+    private static XMLReader newReader() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        return spf.newSAXParser().getXMLReader();
+    }
+
+    private static byte[] direct(String xml, Properties props) throws Exception {
+        assertTrue(UTF8XMLSerializer.supports(props));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTF8XMLSerializer serializer = new UTF8XMLSerializer(out);
+        serializer.setOutputProperties(props);
+        XMLReader reader = newReader();
+        reader.setContentHandler(serializer);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, serializer);
+        reader.parse(new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+        return out.toByteArray();
+    }
+
+    private static Properties props(boolean indent, boolean omitXmlDeclaration) {
+        Properties props = new Properties();
+        props.setProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+        props.setProperty(OutputKeys.OMIT_XML_DECLARATION, omitXmlDeclaration ? "yes" : "no");
+        return props;
+    }
+
+    private static void assertSame(String xml) throws Exception {
+        for (boolean indent : new boolean[] {false, true}) {
+            for (boolean omit : new boolean[] {false, true}) {
+                Properties props = props(indent, omit);
+                String message = "indent=" + indent + ", omit-xml-declaration=" + omit;
+                assertEquals(message, new String(saxon(xml, props), StandardCharsets.UTF_8),
+                        new String(direct(xml, props), StandardCharsets.UTF_8));
+                assertArrayEquals(message, saxon(xml, props), direct(xml, props));
+            }
+        }
+    }
+
+    @Test
+    public void testNamespaces() throws Exception {
+        assertSame(NAMESPACES);
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        assertSame(ESCAPING);
+    }
+
+    @Test
+    public void testSurrogatePairs() throws Exception {
+        assertSame(SURROGATES);
+    }
+
+    @Test
+    public void testIndentMixedContentAndLexicalEvents() throws Exception {
+        assertSame(MIXED);
+    }
+
+    @Test
+    public void testProlog() throws Exception {
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><!--top--><?pi data?><r>y</r>",
+                new String(direct(PROLOG, props(false, false)), StandardCharsets.UTF_8));
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<!--top-->\n<?pi data?>\n<r>y</r>\n",
+                new String(direct(PROLOG, props(true, false)), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testTransformerHandler() throws Exception {
+        UTF8TransformerHandler handler = new UTF8TransformerHandler();
+        Transformer t = handler.getTransformer();
+        t.setOutputProperties(props(true, false));
+        assertEquals("yes", t.getOutputProperty(OutputKeys.INDENT));
+        try {
+            t.setOutputProperty(OutputKeys.METHOD, "html");
+            fail("unsupported output property should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        try {
+            handler.setResult(new StreamResult(new StringWriter()));
+            fail("character result should be rejected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        handler.setResult(new StreamResult(out));
+        XMLReader reader = newReader();
+        reader.setContentHandler(handler);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, handler);
+        reader.parse(new InputSource(new ByteArrayInputStream(MIXED.getBytes(StandardCharsets.UTF_8))));
+        assertArrayEquals(saxon(MIXED, props(true, false)), out.toByteArray());
+    }
+
+    @Test
+    public void testXML11ControlCharacters() throws Exception {
+        assertSame(XML11);
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        Properties props = props(true, false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        UTF8XMLSerializer serializer = new UTF8XMLSerializer();
+        serializer.setOutputProperties(props);
+        XMLReader reader = newReader();
+        reader.setContentHandler(serializer);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, serializer);
+        for (String xml : new String[] {MIXED, NAMESPACES}) {
+            out.reset();
+            serializer.setOutputStream(out);
+            reader.parse(new InputSource(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8))));
+            assertArrayEquals(saxon(xml, props), out.toByteArray());
+        }
+    }
+
+    @Test
+    public void testSupports() {
+        assertTrue(UTF8XMLSerializer.supports(new Properties()));
+        Properties props = props(true, true);
+        props.setProperty(OutputKeys.METHOD, "xml");
+        props.setProperty(OutputKeys.ENCODING, "UTF-8");
+        assertTrue(UTF8XMLSerializer.supports(props));
+        for (String[] unsupported : new String[][] {{OutputKeys.METHOD, "html"}, {OutputKeys.ENCODING, "ISO-8859-1"},
+                {OutputKeys.VERSION, "1.1"}, {OutputKeys.STANDALONE, "yes"}, {OutputKeys.DOCTYPE_SYSTEM, "a.dtd"},
+                {OutputKeys.CDATA_SECTION_ELEMENTS, "a"}, {"{http://saxon.sf.net/}character-representation", "hex"}}) {
+            props = new Properties();
+            props.setProperty(unsupported[0], unsupported[1]);
+            assertFalse(unsupported[0], UTF8XMLSerializer.supports(props));
+        }
+    }
+
+    @Test
+    public void testDumpingLexicalXMLFilter() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DumpingLexicalXMLFilter filter = new DumpingLexicalXMLFilter();
+        XMLReader reader = newReader();
+        filter.setParent(reader);
+        filter.setContentHandler(new DefaultHandler2());
+        filter.setDumpStream(out);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, filter);
+        filter.parse(new InputSource(new ByteArrayInputStream(MIXED.getBytes(StandardCharsets.UTF_8))));
+        assertArrayEquals(saxon(MIXED, props(true, false)), out.toByteArray());
+    }
+
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ *
+ * @author michael
+ */
+public class UnboundedContentHandlerBufferTest {
+
+    private static final String INPUT = "<?xml version=\"1.0\"?>"
+            + "<marc:collection xmlns:marc=\"http://www.loc.gov/MARC21/slim\">"
+            + "<!-- a comment -->"
+            + "<marc:record><marc:leader>02882cas a2200565 a 4500</marc:leader>"
+            + "<marc:datafield tag=\"245\" ind1=\"1\" ind2=\" \">"
+            + "<marc:subfield code=\"a\">Title &amp; <![CDATA[<subtitle>]]></marc:subfield>"
+            + "<marc:subfield code=\"b\">élève 中文</marc:subfield>"
+            + "</marc:datafield></marc:record>"
+            + "<marc:record><marc:leader/></marc:record>"
+            + "</marc:collection>";
+
+    private static String serialize(ContentHandlerBuffer buffer) throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        reader.setContentHandler(buffer);
+        reader.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+        reader.parse(new InputSource(new StringReader(INPUT)));
+        return replay(buffer);
+    }
+
+    private static String replay(ContentHandlerBuffer buffer) throws Exception {
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+        StringWriter sw = new StringWriter();
+        th.setResult(new StreamResult(sw));
+        int level = buffer.play(th, th);
+        assertEquals(0, level);
+        return sw.toString();
+    }
+
+    @Test
+    public void testSharedSymbolTable() throws Exception {
+        final SymbolTable symbolTable = new ConcurrentSymbolTable();
+        ContentHandlerBuffer[] buffers = new ContentHandlerBuffer[] {new UnboundedContentHandlerBuffer(), new CompactContentHandlerBuffer(16)};
+        for (ContentHandlerBuffer buffer : buffers) {
+            buffer.setSymbolTable(symbolTable);
+            assertTrue(buffer.getFeature(SAXFeatures.STRING_INTERNING));
+            serialize(buffer);
+            DefaultHandler2 checker = new DefaultHandler2() {
+
+                @Override
+                public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+                    assertSame("http://www.loc.gov/MARC21/slim", uri);
+                    assertSame(symbolTable.getSymbol(symbolTable.getId(localName)), localName);
+                    for (int i = 0; i < atts.getLength(); i++) {
+                        assertSame(atts.getLocalName(i).intern(), atts.getLocalName(i));
+                    }
+                }
+            };
+            buffer.play(checker, checker);
+        }
+        int size = symbolTable.size();
+        assertTrue(size > 0);
+        serialize(buffers[1]);
+        assertEquals(size, symbolTable.size());
+    }
+
+    @Test
+    public void testSealedConcurrentReplay() throws Exception {
+        UnboundedContentHandlerBuffer buffer = new UnboundedContentHandlerBuffer();
+        final String expected = serialize(buffer);
+        final UnboundedContentHandlerBuffer sealed = buffer.seal();
+        assertTrue(sealed.isSealed());
+        assertEquals(0, buffer.size());
+        final String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        results[index] = replay(sealed);
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        assertEquals(expected, serialize(buffer));
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertEquals(expected, results[i]);
+        }
+        try {
+            sealed.clear();
+            fail("sealed buffer should be immutable");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSealReallocatesLazily() throws Exception {
+        UnboundedContentHandlerBuffer buffer = new UnboundedContentHandlerBuffer();
+        String expected = serialize(buffer);
+        for (int i = 0; i < 3; i++) {
+            UnboundedContentHandlerBuffer sealed = buffer.seal();
+            assertEquals(0, buffer.getRetainedSize());
+            assertEquals(expected, replay(sealed));
+            assertEquals(expected, serialize(buffer));
+            assertEquals(sealed.size(), buffer.size());
+            assertTrue(buffer.getRetainedSize() - buffer.getUsedSize() < 64);
+        }
+    }
+
+    @Test
+    public void testCoalesceCharacters() throws Exception {
+        String expected = serialize(new UnboundedContentHandlerBuffer());
+        UnboundedContentHandlerBuffer buffer = new UnboundedContentHandlerBuffer();
+        buffer.setCoalesceCharacters(true);
+        assertEquals(expected, serialize(buffer));
+        buffer.clear();
+        char[] text = "abcdef".toCharArray();
+        buffer.startElement("", "a", "a", new AttributesImpl());
+        buffer.characters(text, 0, 2);
+        buffer.characters(text, 2, 4);
+        buffer.endElement("", "a", "a");
+        assertEquals(3, buffer.size());
+        final StringBuilder sb = new StringBuilder();
+        buffer.play(new DefaultHandler2() {
+
+            @Override
+            public void characters(char[] ch, int start, int length) throws SAXException {
+                assertEquals(0, sb.length());
+                sb.append(ch, start, length);
+            }
+        }, null);
+        assertEquals("abcdef", sb.toString());
+    }
+
+}
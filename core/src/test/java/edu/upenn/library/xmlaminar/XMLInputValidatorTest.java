@@ -0,0 +1,119 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author michael
+ */
+public class XMLInputValidatorTest {
+
+    private static final char[] INTERESTING = new char[] {0x0, 0x9, 0xA, 0xD, 0x1F, 0x20, 'a', 0xE9, 0x4E2D,
+        0x7FFF, 0x8000, 0xD7FF, 0xD800, 0xDBFF, 0xDC00, 0xDFFF, 0xE000, 0xFFFD, 0xFFFE, 0xFFFF};
+
+    /**
+     * Reference (char-at-a-time) sanitization.
+     */
+    private static void sanitize(char[] cbuf, int off, int len) {
+        int max = off + len;
+        for (int i = off; i < max; i++) {
+            char c = cbuf[i];
+            if (Character.isHighSurrogate(c) && i + 1 < max && Character.isLowSurrogate(cbuf[i + 1])) {
+                i++;
+            } else if (!XMLInputValidator.is16BitXMLCharacter(c)) {
+                cbuf[i] = 0xFFFD;
+            }
+        }
+    }
+
+    @Test
+    public void testSanitizeXMLCharacters() {
+        Random r = new Random(1);
+        for (int n = 0; n < 2000; n++) {
+            char[] expected = new char[r.nextInt(200)];
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] = r.nextInt(8) == 0 ? INTERESTING[r.nextInt(INTERESTING.length)] : (char) ('a' + r.nextInt(26));
+            }
+            int off = expected.length == 0 ? 0 : r.nextInt(expected.length);
+            int len = r.nextInt(expected.length - off + 1);
+            char[] actual = expected.clone();
+            sanitize(expected, off, len);
+            XMLInputValidator.sanitizeXMLCharacters(actual, off, len);
+            assertArrayEquals(expected, actual);
+        }
+    }
+
+    private static byte[] readFully(InputStream in, Random r) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[16];
+        int read;
+        while ((read = in.read(buffer, 0, 1 + r.nextInt(buffer.length))) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testInputStreamValidator() throws IOException {
+        Random r = new Random(1);
+        Charset utf8 = Charset.forName("UTF-8");
+        for (int n = 0; n < 2000; n++) {
+            StringBuilder sb = new StringBuilder();
+            int length = r.nextInt(100);
+            for (int i = 0; i < length; i++) {
+                switch (r.nextInt(8)) {
+                    case 0:
+                        sb.append(INTERESTING[r.nextInt(INTERESTING.length)]);
+                        break;
+                    case 1:
+                        sb.appendCodePoint(0x10000 + r.nextInt(0x100000));
+                        break;
+                    default:
+                        sb.append((char) ('a' + r.nextInt(26)));
+                }
+            }
+            char[] chars = sb.toString().toCharArray();
+            // unpaired surrogates are encoded by String.getBytes() as '?'
+            byte[] input = new String(chars).getBytes(utf8);
+            char[] expected = new String(input, utf8).toCharArray();
+            XMLInputValidator.sanitizeXMLCharacters(expected, 0, expected.length);
+            byte[] actual = readFully(new XMLInputStreamValidator(new ByteArrayInputStream(input), 4 + r.nextInt(16)), r);
+            assertEquals(new String(expected), new String(actual, utf8));
+        }
+        for (int n = 0; n < 2000; n++) {
+            byte[] input = new byte[r.nextInt(64)];
+            r.nextBytes(input);
+            byte[] actual = readFully(new XMLInputStreamValidator(new ByteArrayInputStream(input), 4 + r.nextInt(16)), r);
+            // strict decode: throws on malformed input
+            String decoded = utf8.newDecoder().decode(ByteBuffer.wrap(actual)).toString();
+            char[] sanitized = decoded.toCharArray();
+            XMLInputValidator.sanitizeXMLCharacters(sanitized, 0, sanitized.length);
+            assertEquals(decoded, new String(sanitized));
+        }
+    }
+
+}
@@ -19,9 +19,11 @@ package edu.upenn.library.xmlaminar.integrator;
 import edu.upenn.library.xmlaminar.parallel.InputSourceXMLReader;
 import edu.upenn.library.xmlaminar.parallel.JoiningXMLFilter;
 import edu.upenn.library.xmlaminar.parallel.QueueSourceXMLFilter;
+import edu.upenn.library.xmlaminar.ConcurrentSymbolTable;
 import edu.upenn.library.xmlaminar.DumpingLexicalXMLFilter;
 import edu.upenn.library.xmlaminar.SAXParserResetter;
 import edu.upenn.library.xmlaminar.SAXProperties;
+import edu.upenn.library.xmlaminar.SymbolTable;
 import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
 import edu.upenn.library.xmlaminar.VolatileXMLFilterImpl;
 import edu.upenn.library.xmlaminar.dbxml.DataSourceFactory;
@@ -94,6 +96,7 @@ public class IntegratorOutputNode extends VolatileXMLFilterImpl implements IdQue
     private String name;
     private File dumpFile;
     private DataSourceFactory dsf;
+    private SymbolTable symbolTable;
     private static final Logger logger = LoggerFactory.getLogger(IntegratorOutputNode.class);
 
     private static final SAXParserFactory spf = SAXParserFactory.newInstance();
@@ -361,6 +364,8 @@ public class IntegratorOutputNode extends VolatileXMLFilterImpl implements IdQue
             setExecutor((ExecutorService) value);
         } else if (SAXProperties.DATA_SOURCE_FACTORY_PROPERTY_NAME.equals(name)) {
             setDataSourceFactory((DataSourceFactory) value);
+        } else if (SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+            setSymbolTable((SymbolTable) value);
         } else {
             return false;
         }
@@ -485,6 +490,9 @@ public class IntegratorOutputNode extends VolatileXMLFilterImpl implements IdQue
             if (executor == null) {
                 setExecutor(Executors.newCachedThreadPool(DAEMON_THREAD_FACTORY));
             }
+            if (symbolTable == null) {
+                symbolTable = new ConcurrentSymbolTable();
+            }
             if (output == null) {
                 synchronized (this) {
                     StatefulXMLFilter sxf = new StatefulXMLFilter(DEPTH_LIMIT);
@@ -536,6 +544,13 @@ public class IntegratorOutputNode extends VolatileXMLFilterImpl implements IdQue
         } catch (SAXNotSupportedException ex) {
             logger.trace("ignoring " + ex);
         }
+        try {
+            parent.setProperty(SAXProperties.SYMBOL_TABLE_PROPERTY_NAME, symbolTable);
+        } catch (SAXNotRecognizedException ex) {
+            logger.trace("ignoring " + ex);
+        } catch (SAXNotSupportedException ex) {
+            logger.trace("ignoring " + ex);
+        }
     }
     
     private ExecutorService executor;
@@ -553,6 +568,14 @@ public class IntegratorOutputNode extends VolatileXMLFilterImpl implements IdQue
         this.childJobMonitor = new JobMonitor<Void>(executor);
     }
     
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
     public DataSourceFactory getDataSourceFactory() {
         return dsf;
     }
@@ -20,6 +20,8 @@ import edu.upenn.library.xmlaminar.parallel.InputSourceXMLReader;
 import edu.upenn.library.xmlaminar.EchoingContentHandler;
 import edu.upenn.library.xmlaminar.DevNullContentHandler;
 import edu.upenn.library.xmlaminar.SAXFeatures;
+import edu.upenn.library.xmlaminar.SAXProperties;
+import edu.upenn.library.xmlaminar.SymbolTable;
 import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
 import edu.upenn.library.xmlaminar.VolatileXMLFilterImpl;
 import java.io.ByteArrayOutputStream;
@@ -41,7 +43,10 @@ import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
 import org.xml.sax.helpers.XMLFilterImpl;
 
 /**
@@ -98,19 +103,86 @@ public class StatefulXMLFilter extends VolatileXMLFilterImpl implements IdQuerya
     }
 
     private boolean stringIntern;
+    private boolean canonicalize;
+    private SymbolTable symbolTable;
+    private final AttributesImpl canonicalAtts = new AttributesImpl(); // reused per element
+
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
+    }
+
+    /**
+     * If set, and if the parent does not intern names, names are canonicalized
+     * against the specified table, so that id comparison may always be
+     * done by identity.
+     * @param symbolTable may be null
+     */
+    public void setSymbolTable(SymbolTable symbolTable) {
+        this.symbolTable = symbolTable;
+    }
+
+    private void initStringIntern() throws SAXException {
+        boolean parentInterns = super.getFeature(SAXFeatures.STRING_INTERNING);
+        canonicalize = !parentInterns && symbolTable != null;
+        stringIntern = parentInterns || canonicalize;
+    }
+
+    @Override
+    public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+        if (symbolTable != null && SAXFeatures.STRING_INTERNING.equals(name)) {
+            return true;
+        } else {
+            return super.getFeature(name);
+        }
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+        try {
+            super.setProperty(name, value);
+        } catch (SAXNotRecognizedException ex) {
+            if (!SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+                throw ex;
+            }
+        } catch (SAXNotSupportedException ex) {
+            if (!SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+                throw ex;
+            }
+        }
+        if (SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+            setSymbolTable((SymbolTable) value);
+        }
+    }
 
     @Override
     public void parse(InputSource input) throws SAXException, IOException {
-        stringIntern = getFeature(SAXFeatures.STRING_INTERNING);
+        initStringIntern();
         super.parse(input);
     }
 
     @Override
     public void parse(String systemId) throws SAXException, IOException {
-        stringIntern = getFeature(SAXFeatures.STRING_INTERNING);
+        initStringIntern();
         super.parse(systemId);
     }
 
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (canonicalize) {
+            prefix = symbolTable.canonicalize(prefix);
+            uri = symbolTable.canonicalize(uri);
+        }
+        super.startPrefixMapping(prefix, uri);
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        if (canonicalize) {
+            prefix = symbolTable.canonicalize(prefix);
+        }
+        super.endPrefixMapping(prefix);
+    }
+
     @Override
     public String getName() {
         return name;
@@ -223,6 +295,12 @@ public class StatefulXMLFilter extends VolatileXMLFilterImpl implements IdQuerya
 
     @Override
     public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (canonicalize) {
+            uri = symbolTable.canonicalize(uri);
+            localName = symbolTable.canonicalize(localName);
+            qName = symbolTable.canonicalize(qName);
+            atts = symbolTable.canonicalize(atts, canonicalAtts);
+        }
         level++;
         switch (state) {
             case WAIT:
@@ -286,6 +364,11 @@ public class StatefulXMLFilter extends VolatileXMLFilterImpl implements IdQuerya
 
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (canonicalize) {
+            uri = symbolTable.canonicalize(uri);
+            localName = symbolTable.canonicalize(localName);
+            qName = symbolTable.canonicalize(qName);
+        }
         switch (state) {
             case WAIT:
                 throw new IllegalStateException();
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar.parallel;
+
+/**
+ * Determines chunk boundaries for {@link LevelSplittingXMLFilter} by budget
+ * rather than by a fixed record count: a chunk is split (at the next record
+ * boundary) once it contains at least the target number of SAX events, or
+ * at least <code>maxBytes</code> (estimated) of buffered event data.
+ * <p>
+ * If a target latency is set, the target event count is adjusted on the fly
+ * from feedback reported by completed chunk transforms (see
+ * {@link #recordTransform(int, long)}), toward the number of events expected
+ * to transform in the target time, based on a moving average of observed
+ * transform cost per event. Accessed concurrently by the splitting thread
+ * and by chunk transform threads.
+ *
+ * @author michael
+ */
+public class AdaptiveChunkSizer {
+
+    public static final long DEFAULT_TARGET_EVENTS = 20000;
+    public static final long DEFAULT_MIN_EVENTS = 100;
+    public static final long DEFAULT_MAX_EVENTS = 10000000;
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * approximate bytes per buffered event, exclusive of chars
+     */
+    static final int EVENT_BYTES = 16;
+
+    private volatile long targetEvents;
+    private final long maxBytes;
+    private final long targetLatencyNanos;
+    private final long minEvents;
+    private final long maxEvents;
+    private double nanosPerEvent = -1;
+
+    /**
+     * @param targetEvents initial target number of events per chunk
+     * @param maxBytes ceiling on estimated bytes per chunk; 0 for none
+     * @param targetLatencyMillis target transform time per chunk; 0 to
+     * disable feedback (fixed event budget)
+     */
+    public AdaptiveChunkSizer(long targetEvents, long maxBytes, long targetLatencyMillis) {
+        this(targetEvents, maxBytes, targetLatencyMillis, DEFAULT_MIN_EVENTS, DEFAULT_MAX_EVENTS);
+    }
+
+    public AdaptiveChunkSizer(long targetEvents, long maxBytes, long targetLatencyMillis, long minEvents, long maxEvents) {
+        if (targetEvents < 1 || maxBytes < 0 || targetLatencyMillis < 0 || minEvents < 1 || maxEvents < minEvents) {
+            throw new IllegalArgumentException("invalid chunk sizing parameters: targetEvents=" + targetEvents
+                    + ", maxBytes=" + maxBytes + ", targetLatencyMillis=" + targetLatencyMillis
+                    + ", minEvents=" + minEvents + ", maxEvents=" + maxEvents);
+        }
+        this.targetEvents = targetEvents;
+        this.maxBytes = maxBytes;
+        this.targetLatencyNanos = targetLatencyMillis * 1000000;
+        this.minEvents = minEvents;
+        this.maxEvents = maxEvents;
+    }
+
+    public long getTargetEvents() {
+        return targetEvents;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @param events number of events in the current chunk
+     * @param bytes estimated bytes of buffered event data in the current chunk
+     * @return true if the current chunk should be ended at the next record
+     * boundary
+     */
+    public boolean isFull(long events, long bytes) {
+        return events >= targetEvents || (maxBytes > 0 && bytes >= maxBytes);
+    }
+
+    /**
+     * Reports the cost of a completed chunk transform.
+     * @param events number of events in the transformed chunk
+     * @param nanos elapsed transform time
+     */
+    public void recordTransform(int events, long nanos) {
+        if (targetLatencyNanos <= 0 || events <= 0) {
+            return;
+        }
+        long target;
+        synchronized (this) {
+            double sample = (double) nanos / events;
+            nanosPerEvent = nanosPerEvent < 0 ? sample : (SMOOTHING * sample) + ((1 - SMOOTHING) * nanosPerEvent);
+            target = (long) (targetLatencyNanos / nanosPerEvent);
+        }
+        targetEvents = Math.max(minEvents, Math.min(maxEvents, target));
+    }
+
+    @Override
+    public String toString() {
+        return "targetEvents=" + targetEvents + ", maxBytes=" + maxBytes + ", targetLatencyNanos=" + targetLatencyNanos;
+    }
+
+}
@@ -0,0 +1,610 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
+
+/**
+ * IteratorWrapper that splits each (file-backed) input into a series of
+ * smaller documents along record boundaries, so that the pieces may be
+ * parsed in parallel (see {@link QueueSourceXMLFilter#setReadAhead(int)}).
+ * <p>
+ * The input file is memory-mapped and scanned for record boundaries: start
+ * tags at depth 1 (children of the root element). The scan is lexical only
+ * (tracking element depth, and skipping comments, CDATA sections, processing
+ * instructions and quoted attribute values, without decoding characters or
+ * generating events), so is much cheaper than the parse it enables to run
+ * in parallel. Tracking depth (rather than matching likely-looking start
+ * tags) guarantees that nested elements of the same name as the records are
+ * never mistaken for a boundary. Each byte range is presented as a document
+ * consisting of the verbatim bytes of the original prolog and root start
+ * tag, the range itself, and the original root end tag (the concatenated
+ * ranges are exactly the original content of the root element), so
+ * namespace declarations, entity declarations and the encoding declaration
+ * of the original apply to each range. Pieces retain the systemId of the
+ * original input.
+ * <p>
+ * Downstream, each range is a separate document. Consumers that group by
+ * systemId (e.g., joining) see the original input, but consumers that
+ * partition per document do not: a splitter starts a new chunk at the start
+ * of each range. To preserve fixed-size partitioning, a record alignment may
+ * be specified, so that each range (except the last) contains a multiple of
+ * that number of records; chunks of that size are then identical to those of
+ * the unsplit input. Partitioning that depends on content (e.g., adaptive
+ * chunk sizing) is not preserved across range boundaries.
+ * <p>
+ * Only inputs in an ASCII-compatible encoding (UTF-8, US-ASCII, ISO-8859-*)
+ * whose root element (ignoring whitespace, comments and processing
+ * instructions) starts with a child element are split; other inputs
+ * (including inputs not backed by a local file) are passed through as-is.
+ *
+ * @author michael
+ */
+public class ByteRangeSplitter implements QueueSourceXMLFilter.IteratorWrapper<VolatileSAXSource> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ByteRangeSplitter.class);
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+    private static final Pattern ENCODING_DECL = Pattern.compile("encoding\\s*=\\s*[\"']([^\"']+)[\"']");
+    private static final Pattern ASCII_COMPATIBLE = Pattern.compile("(?i)utf-?8|us-ascii|ascii|iso-8859-\\d+|latin1");
+
+    private final long rangeBytes;
+    private final int recordAlignment;
+
+    /**
+     * @param rangeBytes approximate size (in bytes) of each range; each range
+     * extends to the first record boundary at or after this size
+     */
+    public ByteRangeSplitter(long rangeBytes) {
+        this(rangeBytes, 1);
+    }
+
+    /**
+     * @param rangeBytes approximate size (in bytes) of each range; each range
+     * extends to the first eligible record boundary at or after this size
+     * @param recordAlignment ranges start only at records whose (0-based)
+     * index is a multiple of this number
+     */
+    public ByteRangeSplitter(long rangeBytes, int recordAlignment) {
+        if (rangeBytes < 1) {
+            throw new IllegalArgumentException("rangeBytes must be positive: " + rangeBytes);
+        }
+        if (recordAlignment < 1) {
+            throw new IllegalArgumentException("recordAlignment must be positive: " + recordAlignment);
+        }
+        this.rangeBytes = rangeBytes;
+        this.recordAlignment = recordAlignment;
+    }
+
+    public long getRangeBytes() {
+        return rangeBytes;
+    }
+
+    public int getRecordAlignment() {
+        return recordAlignment;
+    }
+
+    @Override
+    public Iterator<VolatileSAXSource> wrapIterator(final Iterator<VolatileSAXSource> base) {
+        return new Iterator<VolatileSAXSource>() {
+
+            private Iterator<VolatileSAXSource> current;
+
+            @Override
+            public boolean hasNext() {
+                while (current == null || !current.hasNext()) {
+                    if (!base.hasNext()) {
+                        return false;
+                    }
+                    current = split(base.next());
+                }
+                return true;
+            }
+
+            @Override
+            public VolatileSAXSource next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException("Not supported.");
+            }
+        };
+    }
+
+    private Iterator<VolatileSAXSource> split(VolatileSAXSource source) {
+        InputSource in = source.getInputSource();
+        File file = toFile(in.getSystemId());
+        MappedFile mapped = null;
+        if (file != null && in.getCharacterStream() == null) {
+            try {
+                mapped = MappedFile.map(file, recordAlignment);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        if (mapped == null || !mapped.scanStructure()) {
+            if (file != null) {
+                LOG.debug("not splitting input by byte range: {}", file);
+            }
+            return new SingletonIterator(source);
+        }
+        InputStream original = in.getByteStream();
+        if (original != null) {
+            try {
+                original.close();
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return new RangeIterator(mapped, source);
+    }
+
+    private static File toFile(String systemId) {
+        if (systemId == null) {
+            return null;
+        }
+        File ret;
+        if (systemId.startsWith("file:")) {
+            try {
+                ret = new File(new URI(systemId));
+            } catch (URISyntaxException ex) {
+                return null;
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        } else if (systemId.indexOf(':') > 1) {
+            return null;
+        } else {
+            ret = new File(systemId);
+        }
+        return ret.isFile() ? ret : null;
+    }
+
+    private class RangeIterator implements Iterator<VolatileSAXSource> {
+
+        private final MappedFile mapped;
+        private final VolatileSAXSource original;
+        private long position;
+        private int count = 0;
+
+        private RangeIterator(MappedFile mapped, VolatileSAXSource original) {
+            this.mapped = mapped;
+            this.original = original;
+            this.position = mapped.rootStartEnd;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return position < mapped.trailerStart;
+        }
+
+        @Override
+        public VolatileSAXSource next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long start = position;
+            long end = mapped.nextBoundary(Math.max(start + rangeBytes, mapped.firstRecordStart + 1));
+            position = end;
+            InputStream body = new SequenceInputStream(mapped.stream(0, mapped.rootStartEnd), mapped.stream(start, end));
+            InputSource in = new InputSource(new SequenceInputStream(body, mapped.stream(mapped.trailerStart, mapped.size)));
+            in.setSystemId(original.getInputSource().getSystemId());
+            in.setPublicId(original.getInputSource().getPublicId());
+            if (!hasNext()) {
+                LOG.debug("split {} into {} byte ranges", in.getSystemId(), count + 1);
+            }
+            count++;
+            return new VolatileSAXSource(original.getXMLReader(), in);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+    }
+
+    private static class SingletonIterator implements Iterator<VolatileSAXSource> {
+
+        private VolatileSAXSource next;
+
+        private SingletonIterator(VolatileSAXSource next) {
+            this.next = next;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public VolatileSAXSource next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            VolatileSAXSource ret = next;
+            next = null;
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Not supported.");
+        }
+    }
+
+    /**
+     * A read-only mapping of an entire file (in segments, to accommodate
+     * files larger than 2GB), with the offsets that delimit the prolog, the
+     * records, and the root end tag.
+     */
+    static class MappedFile {
+
+        private final MappedByteBuffer[] segments;
+        private final long size;
+        private final int recordAlignment;
+        private long records = 0;
+        private long rootStartEnd = -1;
+        private long firstRecordStart = -1;
+        private long trailerStart = -1;
+        private long scanPosition;
+        private int depth = 0;
+
+        private MappedFile(MappedByteBuffer[] segments, long size, int recordAlignment) {
+            this.segments = segments;
+            this.size = size;
+            this.recordAlignment = recordAlignment;
+        }
+
+        static MappedFile map(File file, int recordAlignment) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+                for (int i = 0; i < segments.length; i++) {
+                    long offset = (long) i << SEGMENT_SHIFT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(SEGMENT_MASK + 1, size - offset));
+                }
+                return new MappedFile(segments, size, recordAlignment);
+            }
+        }
+
+        private int byteAt(long position) {
+            return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK)) & 0xff;
+        }
+
+        private static boolean isWhitespace(int b) {
+            return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+        }
+
+        private boolean startsWith(long position, String s) {
+            if (position + s.length() > size) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (byteAt(position + i) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private long skipWhitespace(long position) {
+            while (position < size && isWhitespace(byteAt(position))) {
+                position++;
+            }
+            return position;
+        }
+
+        /**
+         * @return position immediately after the first occurrence of s at or
+         * after position, or -1 if not found
+         */
+        private long skipPast(long position, String s) {
+            for (; position + s.length() <= size; position++) {
+                if (startsWith(position, s)) {
+                    return position + s.length();
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return position immediately after the '&gt;' that closes the tag
+         * opened at position, or -1 if not found
+         */
+        private long skipTag(long position) {
+            int quote = 0;
+            for (; position < size; position++) {
+                int b = byteAt(position);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (b == '>') {
+                    return position + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return position immediately after the '&gt;' that closes the
+         * document type declaration opened at position (including any
+         * internal subset), or -1 if not found
+         */
+        private long skipDoctype(long position) {
+            int quote = 0;
+            boolean subset = false;
+            for (; position >= 0 && position < size; position++) {
+                int b = byteAt(position);
+                if (quote != 0) {
+                    if (b == quote) {
+                        quote = 0;
+                    }
+                } else if (b == '"' || b == '\'') {
+                    quote = b;
+                } else if (subset && startsWith(position, "<!--")) {
+                    position = skipPast(position + 4, "-->") - 1;
+                } else if (subset && startsWith(position, "<?")) {
+                    position = skipPast(position + 2, "?>") - 1;
+                } else if (b == '[') {
+                    subset = true;
+                } else if (b == ']') {
+                    subset = false;
+                } else if (b == '>' && !subset) {
+                    return position + 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Skips whitespace, comments and processing instructions.
+         */
+        private long skipMisc(long position) {
+            while (position >= 0 && (position = skipWhitespace(position)) < size) {
+                if (startsWith(position, "<!--")) {
+                    position = skipPast(position + 4, "-->");
+                } else if (startsWith(position, "<?")) {
+                    position = skipPast(position + 2, "?>");
+                } else {
+                    break;
+                }
+            }
+            return position;
+        }
+
+        private byte[] readName(long position) {
+            long end = position;
+            int b;
+            while (end < size && !isWhitespace(b = byteAt(end)) && b != '>' && b != '/') {
+                end++;
+            }
+            byte[] ret = new byte[(int) Math.min(end - position, 1024)];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (byte) byteAt(position + i);
+            }
+            return ret;
+        }
+
+        /**
+         * Locates the end of the prolog and root start tag, and the start of
+         * the root end tag.
+         *
+         * @return false if the structure of the file does not permit
+         * splitting
+         */
+        boolean scanStructure() {
+            long position = 0;
+            if (startsWith(0, "\u00ef\u00bb\u00bf")) {
+                position = 3; // UTF-8 BOM
+            }
+            if (startsWith(position, "<?xml")) {
+                long declEnd = skipPast(position, "?>");
+                if (declEnd < 0) {
+                    return false;
+                }
+                String decl = new String(bytes(position, declEnd), StandardCharsets.ISO_8859_1);
+                Matcher m = ENCODING_DECL.matcher(decl);
+                if (m.find() && !ASCII_COMPATIBLE.matcher(m.group(1)).matches()) {
+                    return false;
+                }
+                position = declEnd;
+            } else if (position == 0 && !startsWith(skipWhitespace(0), "<")) {
+                return false; // possible UTF-16, etc.
+            }
+            position = skipMisc(position);
+            if (position >= 0 && startsWith(position, "<!DOCTYPE")) {
+                position = skipMisc(skipDoctype(position));
+            }
+            if (position < 0 || position >= size || !startsWith(position, "<")) {
+                return false;
+            }
+            byte[] rootTag = readName(position + 1);
+            position = skipTag(position);
+            if (position < 0 || rootTag.length == 0 || byteAt(position - 2) == '/') {
+                return false;
+            }
+            rootStartEnd = position;
+            position = skipMisc(position);
+            if (position < 0 || position >= size || !startsWith(position, "<") || startsWith(position, "</")
+                    || startsWith(position, "<!")) {
+                return false;
+            }
+            if (readName(position + 1).length == 0) {
+                return false;
+            }
+            firstRecordStart = scanPosition = position;
+            trailerStart = findEndTag(rootTag);
+            return trailerStart > position;
+        }
+
+        /**
+         * @return the position of the end tag (for the specified element
+         * name) that ends the file (ignoring trailing whitespace), or -1
+         */
+        private long findEndTag(byte[] name) {
+            long position = size - 1;
+            while (position >= 0 && isWhitespace(byteAt(position))) {
+                position--;
+            }
+            if (position < 0 || byteAt(position) != '>') {
+                return -1;
+            }
+            return precedingEndTag(position - 1, name);
+        }
+
+        /**
+         * @param position the position of the last byte before the closing
+         * '&gt;' of an end tag
+         * @return the position of the '&lt;' of the end tag, if the end tag
+         * is for the specified element name; otherwise -1
+         */
+        private long precedingEndTag(long position, byte[] name) {
+            while (position >= 0 && isWhitespace(byteAt(position))) {
+                position--;
+            }
+            position -= name.length + 1;
+            if (position < 0 || byteAt(position) != '<' || byteAt(position + 1) != '/') {
+                return -1;
+            }
+            for (int i = 0; i < name.length; i++) {
+                if (byteAt(position + 2 + i) != (name[i] & 0xff)) {
+                    return -1;
+                }
+            }
+            return position;
+        }
+
+        /**
+         * @return the position of the first record start tag (at depth 1)
+         * at or after the specified position whose record index is a
+         * multiple of the record alignment, or the start of the root end tag
+         * if there is none. Successive calls must specify non-decreasing
+         * positions.
+         */
+        long nextBoundary(long position) {
+            long p = scanPosition;
+            while (p < trailerStart) {
+                if (byteAt(p) != '<') {
+                    p++;
+                } else if (startsWith(p, "<!--")) {
+                    p = skipPast(p + 4, "-->");
+                } else if (startsWith(p, "<![CDATA[")) {
+                    p = skipPast(p + 9, "]]>");
+                } else if (startsWith(p, "<?")) {
+                    p = skipPast(p + 2, "?>");
+                } else if (startsWith(p, "</")) {
+                    depth--;
+                    p = skipTag(p);
+                } else if (depth == 0 && p >= position && records % recordAlignment == 0) {
+                    scanPosition = p;
+                    return p;
+                } else {
+                    if (depth == 0) {
+                        records++;
+                    }
+                    p = skipTag(p);
+                    if (p >= 0 && byteAt(p - 2) != '/') {
+                        depth++;
+                    }
+                }
+                if (p < 0) {
+                    throw new IllegalStateException("unterminated markup in " + this);
+                }
+            }
+            scanPosition = trailerStart;
+            return trailerStart;
+        }
+
+        private byte[] bytes(long start, long end) {
+            byte[] ret = new byte[(int) (end - start)];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = (byte) byteAt(start + i);
+            }
+            return ret;
+        }
+
+        InputStream stream(long start, long end) {
+            return new RangeInputStream(start, end);
+        }
+
+        private class RangeInputStream extends InputStream {
+
+            private long position;
+            private final long end;
+
+            private RangeInputStream(long start, long end) {
+                this.position = start;
+                this.end = end;
+            }
+
+            @Override
+            public int read() throws IOException {
+                return position < end ? byteAt(position++) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (position >= end) {
+                    return -1;
+                } else if (len == 0) {
+                    return 0;
+                }
+                ByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)].duplicate();
+                int segmentPosition = (int) (position & SEGMENT_MASK);
+                int n = (int) Math.min(Math.min(len, end - position), segment.limit() - segmentPosition);
+                segment.position(segmentPosition);
+                segment.get(b, off, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public int available() throws IOException {
+                return (int) Math.min(end - position, Integer.MAX_VALUE);
+            }
+        }
+    }
+
+}
@@ -17,8 +17,10 @@
 package edu.upenn.library.xmlaminar.parallel;
 
 import edu.upenn.library.xmlaminar.parallel.callback.XMLReaderCallback;
-import edu.upenn.library.xmlaminar.DevNullErrorListener;
-import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
+import edu.upenn.library.xmlaminar.ContentHandlerBuffer;
+import edu.upenn.library.xmlaminar.ContentHandlerBufferPool;
+import edu.upenn.library.xmlaminar.ContentHandlerBufferType;
+import edu.upenn.library.xmlaminar.SymbolTable;
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -28,17 +30,22 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXResult;
 import javax.xml.transform.sax.SAXSource;
 import net.sf.saxon.Controller;
+import net.sf.saxon.event.Builder;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.om.NodeInfo;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
@@ -55,20 +62,37 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
     private static final Logger LOG = LoggerFactory.getLogger(Chunk.class);
     private int recordCount = -1;
     private InputSource inSource;
-    private UnboundedContentHandlerBuffer in = new UnboundedContentHandlerBuffer();
-    private UnboundedContentHandlerBuffer out = new UnboundedContentHandlerBuffer();
-    private final Transformer transformer;
-    private final Templates templates;
+    private ContentHandlerBuffer in;
+    private ContentHandlerBuffer out;
+    private final ContentHandlerBufferPool bufferPool;
+    private SymbolTable symbolTable;
+    private long spillThreshold = 0;
+    private boolean coalesceCharacters = false;
+    private AdaptiveChunkSizer chunkSizer;
+    private final TransformerPool transformers;
     private final boolean subdivide;
 
 
     @Override
     public boolean canSubdivide() {
-        return (subdivide ? recordCount > 1 : false);
+        return (subdivide && !recordwise ? recordCount > 1 : false);
     }
 
     public Chunk(Templates t, String xpath, boolean subdivide, int recordDepth) {
-        this(t, getRecordLogger(xpath, subdivide), subdivide, recordDepth);
+        this(t, xpath, subdivide, recordDepth, ContentHandlerBufferType.DEFAULT);
+    }
+
+    public Chunk(Templates t, String xpath, boolean subdivide, int recordDepth, ContentHandlerBufferType bufferType) {
+        this(t, xpath, subdivide, recordDepth, new ContentHandlerBufferPool(bufferType));
+    }
+
+    /**
+     * Buffers are acquired from the specified pool when input is requested,
+     * and released back to the pool when this Chunk is reset; the pool is
+     * shared with all instances created via {@link #newInstance()}.
+     */
+    public Chunk(Templates t, String xpath, boolean subdivide, int recordDepth, ContentHandlerBufferPool bufferPool) {
+        this(new TransformerPool(t), getRecordLogger(xpath, subdivide), subdivide, recordDepth, bufferPool);
     }
     
     private static RecordMonitorXMLFilter getRecordLogger(String xpath, boolean subdivide) {
@@ -81,18 +105,98 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
         }
     }
     
-    private Chunk(Templates t, RecordMonitorXMLFilter rl, boolean subdivide, int recordDepth) {
+    /**
+     * Transformers are acquired from the specified (thread-affine) pool for
+     * the duration of each transformation; the pool is shared with all
+     * instances created via {@link #newInstance()}.
+     */
+    private Chunk(TransformerPool transformers, RecordMonitorXMLFilter rl, boolean subdivide, int recordDepth, ContentHandlerBufferPool bufferPool) {
         this.rl = rl;
-        templates = t;
-        try {
-            this.transformer = t.newTransformer();
-        } catch (TransformerConfigurationException ex) {
-            throw new RuntimeException(ex);
-        }
+        this.bufferPool = bufferPool;
+        this.transformers = transformers;
         this.subdivide = subdivide;
         splitter.setRecordLevel(recordDepth);
     }
 
+    public void setSpillThreshold(long bytes) {
+        if (bytes != spillThreshold) {
+            spillThreshold = bytes;
+            if (in != null) {
+                in.setSpillThreshold(bytes);
+                out.setSpillThreshold(bytes);
+            }
+        }
+    }
+
+    public void setCoalesceCharacters(boolean coalesce) {
+        if (coalesce != coalesceCharacters) {
+            coalesceCharacters = coalesce;
+            if (in != null) {
+                in.setCoalesceCharacters(coalesce);
+                out.setCoalesceCharacters(coalesce);
+            }
+        }
+    }
+
+    private boolean treeInput = false;
+    private Builder treeBuilder;
+    private TreeInput treeInputHandler;
+
+    /**
+     * @param treeInput if true, input events are fed directly to the tree
+     * builder of the transformer, rather than buffered and replayed at
+     * transform time; input is only buffered (from the tree) if the
+     * transform fails, for subdivision or reporting.
+     */
+    public void setTreeInput(boolean treeInput) {
+        this.treeInput = treeInput;
+    }
+
+    private boolean recordwise = false;
+
+    /**
+     * @param recordwise if true, each record of the chunk is transformed
+     * separately (see {@link RecordwiseTransform}), and failing records are
+     * dropped individually rather than failing the chunk; takes precedence
+     * over tree input, and disables subdivision.
+     */
+    public void setRecordwise(boolean recordwise) {
+        this.recordwise = recordwise;
+    }
+
+    /**
+     * @param chunkSizer if non-null, notified of the cost of each successful
+     * transform
+     */
+    public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
+    }
+
+    public void setSymbolTable(SymbolTable symbolTable) {
+        if (symbolTable != this.symbolTable) {
+            this.symbolTable = symbolTable;
+            if (in != null) {
+                in.setSymbolTable(symbolTable);
+                out.setSymbolTable(symbolTable);
+            }
+        }
+    }
+
+    private ContentHandlerBuffer acquireBuffer() {
+        ContentHandlerBuffer buffer = bufferPool.acquire();
+        buffer.setSymbolTable(symbolTable);
+        buffer.setSpillThreshold(spillThreshold);
+        buffer.setCoalesceCharacters(coalesceCharacters);
+        return buffer;
+    }
+
+    private void acquireBuffers() {
+        if (in == null) {
+            in = acquireBuffer();
+            out = acquireBuffer();
+        }
+    }
+
     private final LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter();
 
     @Override
@@ -108,8 +212,24 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
         return newChunk;
     }
 
+    /**
+     * Bisects the records of this (failed) chunk: the first half goes to
+     * newChunk, the second half remains in this chunk. The second half is
+     * only resubmitted once the first half has been transformed (see
+     * {@link Bisection}), so that isolating a single failing record costs
+     * O(log n) transforms.
+     */
     private void populateSubdividedParts(final Chunk newChunk, ExecutorService executor) throws SAXException, IOException {
         final int newChunkSize = (recordCount + 1) / 2;
+        final Bisection halves = new Bisection(this, ex);
+        newChunk.bisection = halves;
+        bisection = halves;
+        newChunk.setSymbolTable(symbolTable);
+        newChunk.setSpillThreshold(spillThreshold);
+        newChunk.setCoalesceCharacters(coalesceCharacters);
+        newChunk.setChunkSizer(chunkSizer);
+        newChunk.setTreeInput(treeInput);
+        newChunk.setRecordwise(recordwise);
         //final LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter();
         splitter.reset();
         splitter.setChunkSize(newChunkSize);
@@ -147,47 +267,209 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
         splitter.parse(inSource);
         splitter.setOutputCallback(null); // free this callback for GC
         out.clear();
-        setState(ProcessingState.HAS_SUBDIVIDED_INPUT);
+        halves.release();
     }
     
     private void swapIO() {
-        UnboundedContentHandlerBuffer tmp = in;
+        ContentHandlerBuffer tmp = in;
         in = out;
         out = tmp;
         in.clear();
     }
 
+    @Override
+    protected long getOutputSize() {
+        return out == null ? 0 : out.getUsedSize();
+    }
+
     public void setRecordCount(int count) {
         recordCount = count;
     }
 
     @Override
     protected void reset() {
-        in.clear();
-        out.clear();
+        if (in != null) {
+            bufferPool.release(in);
+            bufferPool.release(out);
+            in = null;
+            out = null;
+        }
         recordCount = -1;
+        bisection = null;
+        treeBuilder = null;
+        treeInputHandler = null;
     }
 
-    private static final ErrorListener devNullErrorListener = new DevNullErrorListener();
-    
     @Override
     public void run() {
-        transformer.reset();
-        if (transformer instanceof Controller) {
-            ((Controller)transformer).clearDocumentPool();
+        Bisection halves = bisection;
+        bisection = null;
+        boolean first = halves != null && halves.second != this;
+        if (halves != null && !first && halves.firstSucceeded && canSubdivide()) {
+            // the first half transformed successfully, so this half is known to fail.
+            ex = halves.cause;
+            setState(ProcessingState.FAILED);
+            return;
         }
-        transformer.setErrorListener(devNullErrorListener);
         try {
-            transformer.transform(new SAXSource(in, inSource), new SAXResult(out));
+            if (recordwise) {
+                runRecordwise();
+            } else {
+                runTransform(halves, first);
+            }
+        } finally {
+            // release even on unexpected failure, lest the second half never be submitted.
+            if (first) {
+                halves.release();
+            }
+        }
+    }
+
+    private void runTransform(Bisection halves, boolean first) {
+        NodeInfo tree = treeBuilder == null ? null : treeBuilder.getCurrentRoot();
+        Source source = tree != null ? tree : new SAXSource(in, inSource);
+        Transformer transformer = transformers.acquire();
+        try {
+            long start = System.nanoTime();
+            transformer.transform(source, new SAXResult(out));
+            if (chunkSizer != null) {
+                chunkSizer.recordTransform(tree != null ? treeInputHandler.events : in.size(), System.nanoTime() - start);
+            }
             out.setUnmodifiableParent(in.getUnmodifiableParent());
+            if (first) {
+                halves.firstSucceeded = true;
+            }
             setState(ProcessingState.HAS_OUTPUT);
         } catch (TransformerException ex) {
             this.ex = ex;
+            if (tree != null) {
+                bufferTreeInput(tree);
+            }
             setState(ProcessingState.FAILED);
+        } finally {
+            transformers.release(transformer);
         }
     }
     
+    private void runRecordwise() {
+        ContentHandlerBuffer recordOut = acquireBuffer();
+        RecordwiseTransform records = new RecordwiseTransform(splitter.getRecordLevel(), transformers, recordOut, out, rl,
+                inSource == null ? null : inSource.getSystemId());
+        try {
+            long start = System.nanoTime();
+            in.play(records, null);
+            records.finish();
+            if (chunkSizer != null) {
+                chunkSizer.recordTransform(in.size(), System.nanoTime() - start);
+            }
+            out.setUnmodifiableParent(in.getUnmodifiableParent());
+            setState(ProcessingState.HAS_OUTPUT);
+        } catch (SAXException ex) {
+            this.ex = new TransformerException(ex);
+            setState(ProcessingState.FAILED);
+        } finally {
+            bufferPool.release(recordOut);
+        }
+    }
+
     private TransformerException ex;
+
+    /**
+     * Buffers input (previously fed directly to a tree builder) from the
+     * built tree, as required for subdivision or for reporting dropped
+     * records.
+     */
+    private void bufferTreeInput(NodeInfo tree) {
+        treeBuilder = null;
+        treeInputHandler = null;
+        try {
+            TransformerFactory tf = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+            tf.newTransformer().transform(tree, new SAXResult(in));
+        } catch (TransformerException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Feeds input events to a tree builder, counting events as a
+     * ContentHandlerBuffer would (for {@link AdaptiveChunkSizer} feedback).
+     */
+    private static class TreeInput extends ReceivingContentHandler {
+
+        private int events = 0;
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            events++;
+            super.startPrefixMapping(prefix, uri);
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            events++;
+            super.endPrefixMapping(prefix);
+        }
+
+        @Override
+        public void startElement(String uri, String localname, String rawname, Attributes atts) throws SAXException {
+            events++;
+            super.startElement(uri, localname, rawname, atts);
+        }
+
+        @Override
+        public void endElement(String uri, String localname, String rawname) throws SAXException {
+            events++;
+            super.endElement(uri, localname, rawname);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            events++;
+            super.characters(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            events++;
+            super.ignorableWhitespace(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            events++;
+            super.processingInstruction(target, data);
+        }
+    }
+
+    private Bisection bisection;
+
+    /**
+     * Shared by the two halves of a subdivided chunk. The second half is
+     * submitted only when both its own input is populated and the first half
+     * has been transformed. Since the whole failed, if the first half
+     * succeeds the second half is known to fail, so (if it contains more than
+     * one record) it is subdivided directly, without a doomed transform. A
+     * single-record half is always transformed, so a record is only ever
+     * dropped on the basis of its own failure.
+     */
+    private static class Bisection {
+
+        private final Chunk second;
+        private final TransformerException cause;
+        private final AtomicInteger pending = new AtomicInteger(2);
+        private volatile boolean firstSucceeded = false;
+
+        private Bisection(Chunk second, TransformerException cause) {
+            this.second = second;
+            this.cause = cause;
+        }
+
+        private void release() {
+            if (pending.decrementAndGet() == 0) {
+                second.setState(ProcessingState.HAS_SUBDIVIDED_INPUT);
+            }
+        }
+    }
     
     private final RecordMonitorXMLFilter rl;
     
@@ -296,7 +578,7 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
     
     @Override
     public Chunk newInstance() {
-        return new Chunk(templates, rl == null ? null : rl.newInstance(), subdivide, splitter.getRecordLevel());
+        return new Chunk(transformers, rl == null ? null : rl.newInstance(), subdivide, splitter.getRecordLevel(), bufferPool);
     }
 
     public void writeOutputTo(ContentHandler ch) throws SAXException {
@@ -305,12 +587,30 @@ public class Chunk extends DelegatingSubdividable<ProcessingState, Chunk, Node<C
 
     public ContentHandler getInput(SAXSource source) {
         this.inSource = source.getInputSource();
+        acquireBuffers();
         XMLReader reader = source.getXMLReader();
         in.setUnmodifiableParent(reader);
         if (!subdivide && rl != null) {
             rl.setParent(reader);
             source.setXMLReader(rl);
         }
+        if (treeInput && !recordwise) {
+            Transformer transformer = transformers.acquire();
+            try {
+                if (transformer instanceof Controller) {
+                    treeBuilder = ((Controller) transformer).makeBuilder();
+                }
+            } finally {
+                transformers.release(transformer);
+            }
+            if (treeBuilder != null) {
+                treeBuilder.setSystemId(inSource.getSystemId());
+                treeInputHandler = new TreeInput();
+                treeInputHandler.setPipelineConfiguration(treeBuilder.getPipelineConfiguration());
+                treeInputHandler.setReceiver(treeBuilder);
+                return treeInputHandler;
+            }
+        }
         return in;
     }
     
@@ -49,6 +49,14 @@ public abstract class DelegatingSubdividable<E extends Enum<E>, T extends Delega
         // NOOP default implementation
     }
 
+    /**
+     * @return approximate number of bytes of memory held by completed output
+     * awaiting consumption; 0 by default
+     */
+    protected long getOutputSize() {
+        return 0;
+    }
+
     protected P getParent() {
         return parent;
     }
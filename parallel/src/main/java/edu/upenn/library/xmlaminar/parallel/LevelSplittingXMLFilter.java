@@ -99,20 +99,84 @@ public class LevelSplittingXMLFilter extends SplittingXMLFilter {
         super.setSplitDirector(levelSplitDirector);
     }
 
+    private AdaptiveChunkSizer chunkSizer;
+    private long chunkEvents;
+    private long chunkBytes;
+
+    public AdaptiveChunkSizer getChunkSizer() {
+        return chunkSizer;
+    }
+
+    /**
+     * If set, chunks are additionally split (at record boundaries) as
+     * determined by the specified sizer, according to the number of events
+     * and estimated bytes buffered in the current chunk; chunkSize remains
+     * an upper bound on the number of records per chunk.
+     * @param chunkSizer may be null, for fixed-size chunks
+     */
+    public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        super.startElement(uri, localName, qName, atts);
+        if (chunkSizer != null) {
+            chunkEvents++;
+            chunkBytes += AdaptiveChunkSizer.EVENT_BYTES;
+            for (int i = atts.getLength() - 1; i >= 0; i--) {
+                chunkBytes += AdaptiveChunkSizer.EVENT_BYTES + (atts.getValue(i).length() * 2L);
+            }
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        super.endElement(uri, localName, qName);
+        if (chunkSizer != null) {
+            chunkEvents++;
+            chunkBytes += AdaptiveChunkSizer.EVENT_BYTES;
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        super.characters(ch, start, length);
+        if (chunkSizer != null) {
+            chunkEvents++;
+            chunkBytes += AdaptiveChunkSizer.EVENT_BYTES + (length * 2L);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        super.ignorableWhitespace(ch, start, length);
+        if (chunkSizer != null) {
+            chunkEvents++;
+            chunkBytes += AdaptiveChunkSizer.EVENT_BYTES + (length * 2L);
+        }
+    }
+
     private class LevelSplitDirector extends SplitDirector {
 
         @Override
         public void reset() {
             recordCount = 0;
+            chunkEvents = 0;
+            chunkBytes = 0;
         }
         
         @Override
         public SplitDirective startElement(String uri, String localName, String qName, Attributes atts, int level) throws SAXException {
             if (level == recordLevel) {
-                if (recordCount++ >= chunkSize) {
+                if (recordCount >= chunkSize || (chunkSizer != null && recordCount > 0
+                        && chunkSizer.isFull(chunkEvents, chunkBytes))) {
                     recordCount = 1; // the one we just entered
+                    chunkEvents = 0;
+                    chunkBytes = 0;
                     return SplitDirective.SPLIT;
                 } else {
+                    recordCount++;
                     return SplitDirective.NO_SPLIT_BYPASS;
                 }
             } else {
@@ -120,6 +120,11 @@ public class Node<T extends DelegatingSubdividable<ProcessingState, T, Node<T>>>
         }
     }
     
+    /*
+     * size of output as of completion, accounted against the reorder window
+     */
+    long outputSize;
+
     String getPoolType() {
         return homePool == null ? null : processingQueue.getPoolType(homePool);
     }
@@ -137,8 +142,9 @@ public class Node<T extends DelegatingSubdividable<ProcessingState, T, Node<T>>>
         if (!canSubdivide()) {
             value.drop();
             remove(true);
+            processingQueue.dropped();
         } else {
-            value.subdivide(processingQueue.getWorkExecutor());
+            value.subdivide(processingQueue.getSubdivideExecutor());
         }
     }
 
@@ -147,7 +153,7 @@ public class Node<T extends DelegatingSubdividable<ProcessingState, T, Node<T>>>
         return true;
     }
     
-    private void remove(boolean reset) {
+    void remove(boolean reset) {
         boolean unlocked = true;
         try {
             do {
@@ -200,6 +206,7 @@ public class Node<T extends DelegatingSubdividable<ProcessingState, T, Node<T>>>
                 processingQueue.addToHeadOfWorkQueue(value);
                 break;
             case HAS_OUTPUT:
+                processingQueue.outputReady(this);
                 setWorkComplete();
                 break;
             case FAILED:
@@ -0,0 +1,335 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Drop-in replacement for GZIPOutputStream that deflates fixed-size blocks of
+ * input concurrently. As with pigz, output is a single gzip member: each
+ * block is raw-deflated independently (primed with the last 32K of the
+ * preceding block as dictionary) and terminated by a sync flush, so the
+ * compressed blocks concatenate into one valid deflate stream, readable by
+ * standard gunzip. The CRC is computed serially by the writing thread.
+ * <p>
+ * Compression level and thread count are specified per stream (see
+ * {@link Settings}).
+ *
+ * @author michael
+ */
+public class ParallelGZIPOutputStream extends FilterOutputStream {
+
+    public static final int BLOCK_SIZE = 128 * 1024;
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+    private static final byte[] HEADER = new byte[]{
+        (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    /**
+     * Compression settings for streams created by a given output (e.g., as
+     * specified by command-line options).
+     */
+    public static final class Settings {
+
+        public static final Settings DEFAULT = new Settings(Deflater.DEFAULT_COMPRESSION, Runtime.getRuntime().availableProcessors());
+
+        private final int level;
+        private final int threads;
+
+        /**
+         * @param level deflate compression level (0-9, or -1 for the zlib
+         * default)
+         * @param threads maximum number of blocks of each stream deflated
+         * concurrently; 1 deflates in the writing thread
+         */
+        public Settings(int level, int threads) {
+            if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+                throw new IllegalArgumentException("invalid compression level: " + level);
+            }
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be positive: " + threads);
+            }
+            this.level = level;
+            this.threads = threads;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public ParallelGZIPOutputStream newStream(OutputStream out) throws IOException {
+            return new ParallelGZIPOutputStream(out, level, threads);
+        }
+
+    }
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * Shared by all instances; concurrency per stream is bounded by its
+     * thread count.
+     */
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(DAEMON_THREAD_FACTORY);
+
+    private final int level;
+    private final int threads;
+    private final ArrayDeque<Future<byte[]>> pending;
+    /*
+     * at most one per concurrently deflated block; ended when the stream is
+     * finished or closed.
+     */
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength = 0;
+    private byte[] dictionary;
+    private boolean finished = false;
+
+    public ParallelGZIPOutputStream(OutputStream out) throws IOException {
+        this(out, Settings.DEFAULT.level, Settings.DEFAULT.threads);
+    }
+
+    public ParallelGZIPOutputStream(OutputStream out, int level, int threads) throws IOException {
+        super(out);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.level = level;
+        this.threads = threads;
+        this.pending = new ArrayDeque<Future<byte[]>>(threads);
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+        if (blockLength == BLOCK_SIZE) {
+            submitBlock(false);
+        }
+        block[blockLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (finished) {
+            throw new IOException("write beyond end of stream");
+        }
+        while (len > 0) {
+            if (blockLength == BLOCK_SIZE) {
+                submitBlock(false);
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitBlock(boolean last) throws IOException {
+        crc.update(block, 0, blockLength);
+        size += blockLength;
+        DeflateTask task = new DeflateTask(block, blockLength, dictionary, last);
+        if (blockLength >= DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(block, blockLength - DICTIONARY_SIZE, blockLength);
+        } else if (blockLength > 0) {
+            // rare (explicit flush of a short block); combine with preceding dictionary.
+            int keep = dictionary == null ? 0 : Math.min(dictionary.length, DICTIONARY_SIZE - blockLength);
+            byte[] combined = new byte[keep + blockLength];
+            if (keep > 0) {
+                System.arraycopy(dictionary, dictionary.length - keep, combined, 0, keep);
+            }
+            System.arraycopy(block, 0, combined, keep, blockLength);
+            dictionary = combined;
+        }
+        if (threads == 1) {
+            out.write(task.call());
+        } else {
+            if (pending.size() >= threads) {
+                writeCompleted(pending.remove());
+            }
+            pending.add(EXECUTOR.submit(task));
+        }
+        block = last ? null : new byte[BLOCK_SIZE];
+        blockLength = 0;
+    }
+
+    private void writeCompleted(Future<byte[]> f) throws IOException {
+        try {
+            out.write(f.get());
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    private void drain() throws IOException {
+        Future<byte[]> f;
+        while ((f = pending.poll()) != null) {
+            writeCompleted(f);
+        }
+    }
+
+    /**
+     * Compresses and writes any buffered input (terminated by a sync flush,
+     * at some cost to compression ratio) and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished) {
+            if (blockLength > 0) {
+                submitBlock(false);
+            }
+            drain();
+        }
+        out.flush();
+    }
+
+    /**
+     * Finishes writing compressed data to the underlying stream without
+     * closing it.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        try {
+            submitBlock(true);
+            drain();
+            writeInt((int) crc.getValue());
+            writeInt((int) size);
+            finished = true;
+        } finally {
+            endDeflaters();
+        }
+    }
+
+    private void endDeflaters() {
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private void writeInt(int i) throws IOException {
+        out.write(i & 0xff);
+        out.write((i >> 8) & 0xff);
+        out.write((i >> 16) & 0xff);
+        out.write((i >> 24) & 0xff);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            try {
+                out.close();
+            } finally {
+                endDeflaters();
+            }
+        }
+    }
+
+    private class DeflateTask implements Callable<byte[]> {
+
+        private final byte[] input;
+        private final int length;
+        private final byte[] dictionary;
+        private final boolean last;
+
+        private DeflateTask(byte[] input, int length, byte[] dictionary, boolean last) {
+            this.input = input;
+            this.length = length;
+            this.dictionary = dictionary;
+            this.last = last;
+        }
+
+        @Override
+        public byte[] call() {
+            Deflater deflater = deflaters.poll();
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+            } else {
+                deflater.reset();
+            }
+            try {
+                return deflate(deflater);
+            } finally {
+                deflaters.add(deflater);
+            }
+        }
+
+        private byte[] deflate(Deflater deflater) {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(input, 0, length);
+            byte[] buf = new byte[length + (length >> 3) + 64];
+            int outLength = 0;
+            if (last) {
+                deflater.finish();
+            }
+            while (true) {
+                int n = deflater.deflate(buf, outLength, buf.length - outLength, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                outLength += n;
+                if (last ? deflater.finished() : outLength < buf.length) {
+                    break;
+                }
+                if (outLength == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+            }
+            return outLength == buf.length ? buf : Arrays.copyOf(buf, outLength);
+        }
+    }
+
+}
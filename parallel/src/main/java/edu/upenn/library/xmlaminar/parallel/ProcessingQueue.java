@@ -24,11 +24,15 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
@@ -50,14 +54,80 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
     private final BlockingQueue<Node<T>> subdividePool;
 
     private ExecutorService workExecutor;
+    private ExecutorService subdivideExecutor;
     private Set<Future<?>> activeWorkTasks;
     private ExecutorCompletionService workCompletionService;
+
+    /*
+     * Work-stealing mode (workExecutor is a ForkJoinPool): work is submitted
+     * directly as ForkJoinTasks, bypassing the completion service. Subdivided
+     * work is forked onto the submitting worker's own deque (so is processed
+     * next, LIFO, by that worker, unless stolen by an idle worker). Ordering
+     * of output is unaffected, being enforced by the Node list.
+     */
+    private ForkJoinPool workPool;
+    private final Set<ForkJoinTask<?>> activeForkJoinTasks = Collections.newSetFromMap(new ConcurrentHashMap<ForkJoinTask<?>, Boolean>());
     
     final Node<T> head = new Node<T>(null, null, this);
     private final Node<T> tail = new Node<T>(head, null, null, this);
 
     private volatile boolean finished = false;
 
+    /*
+     * Reorder window: completed output held pending consumption (in ordered
+     * mode, held behind an incomplete head-of-line chunk). If maxReorderBytes
+     * is positive, intake of new chunks blocks while the window exceeds it.
+     */
+    private final Lock windowLock = new ReentrantLock();
+    private final Condition windowDrained = windowLock.newCondition();
+    private long maxReorderBytes = 0;
+    private long reorderBytes = 0;
+    private int reorderCount = 0;
+    private long peakReorderBytes = 0;
+    private int peakReorderCount = 0;
+    private long intakeWaitNanos = 0;
+    private long headOfLineWaitNanos = 0;
+    private long maxHeadOfLineWaitNanos = 0;
+    private int headOfLineStalls = 0;
+
+    /*
+     * Unordered mode: output is handed out in order of completion. Once input
+     * is finished and all output has been taken, endOfOutput is added (by
+     * whichever of the producer or consumer observes this state) to release
+     * the consumer.
+     */
+    private boolean ordered = true;
+    private final BlockingQueue<Node<T>> completed = new LinkedBlockingQueue<Node<T>>();
+    private final Node<T> endOfOutput = new Node<T>(null, null, this);
+
+    private final class WorkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final T value;
+
+        private WorkTask(T value) {
+            this.value = value;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                value.run();
+            } catch (Throwable t) {
+                /*
+                recoverable exceptions should be caught by individual nodes; 
+                exceptions caught here should kill the entire process.
+                */
+                LOG.error("exception escaped node; shutting down now", t);
+                workPool.shutdownNow();
+            } finally {
+                activeForkJoinTasks.remove(this);
+            }
+        }
+
+    }
+
     public ProcessingQueue(int size, T templateInstance) {
         mainPool = new ArrayBlockingQueue<Node<T>>(size);
         for (int i = 0; i < size; i++) {
@@ -70,6 +140,10 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
     private Set<Future<?>> initializeCompletionService() {
         Set<Future<?>> previousActiveTasks = activeWorkTasks;
         activeWorkTasks = Collections.synchronizedSet(new HashSet<Future<?>>());
+        if (workPool != null) {
+            workCompletionService = null;
+            return previousActiveTasks;
+        }
         workCompletionService = new ExecutorCompletionService(workExecutor, new TaskRemovalQueue(activeWorkTasks, taskQueueLock, taskAdded));
         return previousActiveTasks;
     }
@@ -119,8 +193,54 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
         return workExecutor;
     }
 
+    /**
+     * @param workExecutor if a ForkJoinPool, chunks are scheduled in
+     * work-stealing mode
+     */
     public void setWorkExecutor(ExecutorService workExecutor) {
         this.workExecutor = workExecutor;
+        this.workPool = workExecutor instanceof ForkJoinPool ? (ForkJoinPool) workExecutor : null;
+    }
+
+    /**
+     * @return the executor to be used for auxiliary (potentially blocking)
+     * tasks associated with subdividing failed work; defaults to the work
+     * executor
+     */
+    public ExecutorService getSubdivideExecutor() {
+        return subdivideExecutor == null ? workExecutor : subdivideExecutor;
+    }
+
+    public void setSubdivideExecutor(ExecutorService subdivideExecutor) {
+        this.subdivideExecutor = subdivideExecutor;
+    }
+
+    public long getMaxReorderBytes() {
+        return maxReorderBytes;
+    }
+
+    /**
+     * @param maxReorderBytes if positive, {@link #nextIn()} blocks while more
+     * than this many bytes of completed output are awaiting consumption; 0
+     * (the default) bounds the window only by the number of nodes
+     */
+    public void setMaxReorderBytes(long maxReorderBytes) {
+        if (maxReorderBytes < 0) {
+            throw new IllegalArgumentException("maxReorderBytes must be non-negative: " + maxReorderBytes);
+        }
+        this.maxReorderBytes = maxReorderBytes;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * @param ordered if false, {@link #nextOut()} returns output in order of
+     * completion rather than of input
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
     }
 
     private static final boolean POOL_MAIN = true;
@@ -132,6 +252,9 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
      * @throws InterruptedException
      */
     public T nextIn() throws InterruptedException {
+        if (maxReorderBytes > 0) {
+            awaitReorderWindow();
+        }
         Node<T> next = POOL_MAIN ? mainPool.take() : newNode(mainPool.peek().getChild(), null);
         tail.insert(next);
         return next.getChild();
@@ -145,9 +268,169 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
      * @throws InterruptedException
      */
     public T nextOut() throws InterruptedException {
-        Node<T> next = head.getNext(ProcessingState.HAS_OUTPUT, tail);
-        // next.remove(); double-called when state set to READY
-        return next == null ? null : next.getChild();
+        long start = System.nanoTime();
+        Node<T> next;
+        if (ordered) {
+            next = head.getNext(ProcessingState.HAS_OUTPUT, tail);
+            // next.remove(); double-called when state set to READY
+        } else {
+            next = completed.take();
+            if (next == endOfOutput) {
+                completed.add(endOfOutput); // subsequent calls also return null
+                next = null;
+            } else {
+                next.remove(false);
+                signalIfDrained();
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        outputTaken(next, System.nanoTime() - start);
+        return next.getChild();
+    }
+
+    private void awaitReorderWindow() throws InterruptedException {
+        windowLock.lock();
+        try {
+            if (reorderBytes > maxReorderBytes) {
+                long start = System.nanoTime();
+                do {
+                    windowDrained.await();
+                } while (reorderBytes > maxReorderBytes);
+                intakeWaitNanos += System.nanoTime() - start;
+            }
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    void outputReady(Node<T> node) {
+        node.outputSize = node.getChild().getOutputSize();
+        windowLock.lock();
+        try {
+            reorderBytes += node.outputSize;
+            if (reorderBytes > peakReorderBytes) {
+                peakReorderBytes = reorderBytes;
+            }
+            if (++reorderCount > peakReorderCount) {
+                peakReorderCount = reorderCount;
+            }
+        } finally {
+            windowLock.unlock();
+        }
+        if (!ordered) {
+            completed.add(node);
+        }
+    }
+
+    /**
+     * Time spent waiting for output counts as head-of-line wait if, once the
+     * awaited output is available, other completed output is already queued
+     * behind it.
+     */
+    private void outputTaken(Node<T> node, long waitNanos) {
+        windowLock.lock();
+        try {
+            reorderBytes -= node.outputSize;
+            if (--reorderCount > 0 && ordered) {
+                headOfLineStalls++;
+                headOfLineWaitNanos += waitNanos;
+                if (waitNanos > maxHeadOfLineWaitNanos) {
+                    maxHeadOfLineWaitNanos = waitNanos;
+                }
+            }
+            windowDrained.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    public long getPeakReorderBytes() {
+        windowLock.lock();
+        try {
+            return peakReorderBytes;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    public int getPeakReorderCount() {
+        windowLock.lock();
+        try {
+            return peakReorderCount;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * @return cumulative nanoseconds that output waited on an incomplete
+     * head-of-line chunk while later chunks were complete (approximate;
+     * ordered mode only)
+     */
+    public long getHeadOfLineWaitNanos() {
+        windowLock.lock();
+        try {
+            return headOfLineWaitNanos;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    public int getHeadOfLineStalls() {
+        windowLock.lock();
+        try {
+            return headOfLineStalls;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    /**
+     * @return cumulative nanoseconds that intake of new chunks was blocked by
+     * a full reorder window
+     */
+    public long getIntakeWaitNanos() {
+        windowLock.lock();
+        try {
+            return intakeWaitNanos;
+        } finally {
+            windowLock.unlock();
+        }
+    }
+
+    private void resetWindow() {
+        windowLock.lock();
+        try {
+            reorderBytes = 0;
+            reorderCount = 0;
+            peakReorderBytes = 0;
+            peakReorderCount = 0;
+            intakeWaitNanos = 0;
+            headOfLineWaitNanos = 0;
+            maxHeadOfLineWaitNanos = 0;
+            headOfLineStalls = 0;
+            windowDrained.signalAll();
+        } finally {
+            windowLock.unlock();
+        }
+        completed.clear();
+    }
+
+    @Override
+    public String toString() {
+        windowLock.lock();
+        try {
+            return getClass().getSimpleName() + "(ordered=" + ordered + ", maxReorderBytes=" + maxReorderBytes
+                    + ", peakReorderBytes=" + peakReorderBytes + ", peakReorderCount=" + peakReorderCount
+                    + ", headOfLineStalls=" + headOfLineStalls
+                    + ", headOfLineWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(headOfLineWaitNanos)
+                    + ", maxHeadOfLineWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(maxHeadOfLineWaitNanos)
+                    + ", intakeWaitMillis=" + TimeUnit.NANOSECONDS.toMillis(intakeWaitNanos) + ")";
+        } finally {
+            windowLock.unlock();
+        }
     }
     
     private Node<T> newNode(T templateInstance, Queue<Node<T>> pool) {
@@ -194,12 +477,30 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
 
     void addToWorkQueue(T value) {
         //workQueue.addLast(value);
-        addToQueue(workCompletionService.submit(value, null));
+        if (workPool != null) {
+            submitWorkTask(value, false);
+        } else {
+            addToQueue(workCompletionService.submit(value, null));
+        }
     }
 
     void addToHeadOfWorkQueue(T value) {
         //workQueue.addFirst(value);
-        addToQueue(workCompletionService.submit(value, null));
+        if (workPool != null) {
+            submitWorkTask(value, true);
+        } else {
+            addToQueue(workCompletionService.submit(value, null));
+        }
+    }
+
+    private void submitWorkTask(T value, boolean head) {
+        WorkTask task = new WorkTask(value);
+        activeForkJoinTasks.add(task);
+        if (head && ForkJoinTask.getPool() == workPool) {
+            task.fork();
+        } else {
+            workPool.execute(task);
+        }
     }
     
     private final Lock taskQueueLock = new ReentrantLock(false);
@@ -222,12 +523,33 @@ public class ProcessingQueue<T extends DelegatingSubdividable<ProcessingState, T
                 future.cancel(true);
             }
         }
+        for (ForkJoinTask<?> task : activeForkJoinTasks) {
+            task.cancel(true);
+        }
+        activeForkJoinTasks.clear();
+        resetWindow();
         finished = false;
     }
 
     public void finished() {
         finished = true;
-        isEmpty(); // wake threads waiting on empty queue
+        boolean empty = isEmpty(); // also wakes threads waiting on empty queue
+        if (empty && !ordered) {
+            completed.add(endOfOutput);
+        }
+    }
+
+    /**
+     * Called when a node is dropped without producing output.
+     */
+    void dropped() {
+        signalIfDrained();
+    }
+
+    private void signalIfDrained() {
+        if (!ordered && finished && isEmpty()) {
+            completed.add(endOfOutput);
+        }
     }
 
     public boolean isFinished() {
@@ -291,9 +291,46 @@ public abstract class QueueSourceXMLFilter extends VolatileXMLFilterImpl {
         this.iteratorWrapper = iteratorWrapper;
     }
     
+    private int readAhead = 0;
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    /**
+     * @param readAhead if positive (and no IteratorWrapper, or a
+     * {@link ByteRangeSplitter}, is set), up to this many upcoming indirect
+     * inputs (or byte ranges) are parsed ahead of consumption, in
+     * parallel on the executor, preserving input order; 0 (the default)
+     * parses each input only when it is consumed. Only applicable if the
+     * parent is a plain SAX parser.
+     * @see ReadAheadIterator
+     */
+    public void setReadAhead(int readAhead) {
+        if (readAhead < 0) {
+            throw new IllegalArgumentException("readAhead must be non-negative: " + readAhead);
+        }
+        this.readAhead = readAhead;
+    }
+
+    private boolean readAheadOrdered = true;
+
+    public boolean isReadAheadOrdered() {
+        return readAheadOrdered;
+    }
+
+    /**
+     * @param ordered if false, inputs parsed ahead are consumed in order of
+     * completion, rather than in the order in which they were listed
+     */
+    public void setReadAheadOrdered(boolean ordered) {
+        this.readAheadOrdered = ordered;
+    }
+
     private Iterator<VolatileSAXSource> initIterator(InputSource input, InputType induced) {
         if (iteratorWrapper == null) {
-            return new IndirectSourceSupplier(input);
+            Iterator<VolatileSAXSource> base = new IndirectSourceSupplier(input);
+            return readAhead > 0 ? new ReadAheadIterator(base, readAhead, executor, readAheadOrdered) : base;
         } else {
             Iterator<VolatileSAXSource> base;
             switch (inputType) {
@@ -306,14 +343,20 @@ public abstract class QueueSourceXMLFilter extends VolatileXMLFilterImpl {
                 default:
                     throw new AssertionError("should never reach here");
             }
-            return iteratorWrapper.wrapIterator(base);
+            Iterator<VolatileSAXSource> wrapped = iteratorWrapper.wrapIterator(base);
+            if (readAhead > 0 && iteratorWrapper instanceof ByteRangeSplitter) {
+                // byte ranges are read by the parent parser, so may be parsed ahead
+                return new ReadAheadIterator(wrapped, readAhead, executor, readAheadOrdered);
+            }
+            return wrapped;
         }
     }
     
     private void initProducerIterator(InputSource input, InputType induced) {
+        Iterator<VolatileSAXSource> sourceIter = null;
         try {
             VolatileSAXSource next;
-            Iterator<VolatileSAXSource> sourceIter = initIterator(input, induced);
+            sourceIter = initIterator(input, induced);
             if (sourceIter.hasNext()) {
                 next = sourceIter.next();
                 initialParse(next);
@@ -333,6 +376,10 @@ public abstract class QueueSourceXMLFilter extends VolatileXMLFilterImpl {
             throw new RuntimeException(ex);
         } catch (IOException ex) {
             throw new RuntimeException(ex);
+        } finally {
+            if (sourceIter instanceof ReadAheadIterator) {
+                ((ReadAheadIterator) sourceIter).cancel();
+            }
         }
     }
     
@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.SAXFeatures;
+import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.XMLFilterLexicalHandlerImpl;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Wraps an iterator over input sources, parsing up to <code>depth</code>
+ * upcoming inputs ahead of the consumer on the specified executor. Each
+ * input is parsed into an event buffer, returned (in order of the backing
+ * iterator, or of completion if unordered) as the XMLReader of a source
+ * with the original InputSource, so systemIds are preserved.
+ * <p>
+ * Inputs are parsed concurrently, so cannot be parsed by the (single)
+ * XMLReader of the backing source; instead, each is parsed by a parser of
+ * the same class, configured with the same standard SAX and JAXP features
+ * and properties, and the same EntityResolver and ErrorHandler. Lexical
+ * events are buffered, and replayed to the lexical handler of the backing
+ * source's XMLReader (as it is configured at the time the buffer is
+ * consumed). Where the backing source's XMLReader cannot be reproduced in
+ * this way (e.g., it is an XMLFilter), the source is returned as-is, to be
+ * parsed by the consumer.
+ *
+ * @author michael
+ */
+public class ReadAheadIterator implements Iterator<VolatileSAXSource> {
+
+    private static final SAXParserFactory spf;
+
+    static {
+        spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+    }
+
+    private static final String[] FEATURES = new String[]{
+        SAXFeatures.NAMESPACES,
+        SAXFeatures.NAMESPACE_PREFIXES,
+        SAXFeatures.STRING_INTERNING,
+        SAXFeatures.VALIDATION,
+        SAXFeatures.EXTERNAL_GENERAL_ENTITIES,
+        SAXFeatures.EXTERNAL_PARAMETER_ENTITIES,
+        "http://xml.org/sax/features/lexical-handler/parameter-entities",
+        "http://xml.org/sax/features/resolve-dtd-uris",
+        "http://xml.org/sax/features/unicode-normalization-checking",
+        "http://xml.org/sax/features/use-entity-resolver2",
+        "http://xml.org/sax/features/xmlns-uris",
+        XMLConstants.FEATURE_SECURE_PROCESSING,
+        "http://apache.org/xml/features/nonvalidating/load-external-dtd",
+        "http://apache.org/xml/features/disallow-doctype-decl"
+    };
+
+    private static final String[] PROPERTIES = new String[]{
+        XMLConstants.ACCESS_EXTERNAL_DTD,
+        XMLConstants.ACCESS_EXTERNAL_SCHEMA
+    };
+
+    private static final LexicalHandler NO_LEXICAL_HANDLER = new DefaultHandler2();
+
+    private final Iterator<VolatileSAXSource> backing;
+    private final int depth;
+    private final ExecutorService executor;
+    private final ArrayDeque<Future<VolatileSAXSource>> pending;
+    private final ExecutorCompletionService<VolatileSAXSource> completionService;
+    private final Queue<XMLReader> parsers = new ConcurrentLinkedQueue<XMLReader>();
+
+    public ReadAheadIterator(Iterator<VolatileSAXSource> backing, int depth, ExecutorService executor) {
+        this(backing, depth, executor, true);
+    }
+
+    /**
+     * @param depth maximum number of inputs parsed ahead (and so, parsed
+     * concurrently)
+     * @param ordered if false, parsed inputs are returned in order of
+     * completion rather than in the order of the backing iterator
+     */
+    public ReadAheadIterator(Iterator<VolatileSAXSource> backing, int depth, ExecutorService executor, boolean ordered) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("depth must be positive: " + depth);
+        }
+        this.backing = backing;
+        this.depth = depth;
+        this.executor = executor;
+        this.pending = new ArrayDeque<Future<VolatileSAXSource>>(depth);
+        this.completionService = ordered ? null : new ExecutorCompletionService<VolatileSAXSource>(executor);
+    }
+
+    private void fill() {
+        while (pending.size() < depth && backing.hasNext()) {
+            ParseTask task = new ParseTask(backing.next());
+            pending.add(completionService == null ? executor.submit(task) : completionService.submit(task));
+        }
+    }
+
+    private Future<VolatileSAXSource> nextFuture() throws InterruptedException {
+        if (completionService == null) {
+            return pending.remove();
+        } else {
+            Future<VolatileSAXSource> next = completionService.take();
+            pending.remove(next);
+            return next;
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        fill();
+        return !pending.isEmpty();
+    }
+
+    @Override
+    public VolatileSAXSource next() {
+        fill();
+        VolatileSAXSource ret;
+        try {
+            ret = nextFuture().get();
+        } catch (InterruptedException ex) {
+            cancel();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            cancel();
+            throw new RuntimeException(ex.getCause());
+        }
+        fill();
+        return ret;
+    }
+
+    /**
+     * Cancels any outstanding read-ahead.
+     */
+    public void cancel() {
+        Future<VolatileSAXSource> f;
+        while ((f = pending.poll()) != null) {
+            f.cancel(true);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Not supported.");
+    }
+
+    /**
+     * @return a parser configured like the specified reader, or null if the
+     * configuration of the specified reader cannot be reproduced
+     */
+    private XMLReader acquireParser(XMLReader configured) throws ParserConfigurationException, SAXException {
+        XMLReader parser = parsers.poll();
+        return parser != null ? parser : newParser(configured);
+    }
+
+    static XMLReader newParser(XMLReader configured) throws ParserConfigurationException, SAXException {
+        XMLReader parser = spf.newSAXParser().getXMLReader();
+        if (configured == null) {
+            return parser;
+        } else if (configured instanceof XMLFilter || configured.getClass() != parser.getClass()) {
+            return null;
+        }
+        for (String feature : FEATURES) {
+            boolean value;
+            try {
+                value = configured.getFeature(feature);
+            } catch (SAXException ex) {
+                continue;
+            }
+            try {
+                if (parser.getFeature(feature) != value) {
+                    parser.setFeature(feature, value);
+                }
+            } catch (SAXException ex) {
+                return null;
+            }
+        }
+        for (String property : PROPERTIES) {
+            Object value;
+            try {
+                value = configured.getProperty(property);
+            } catch (SAXException ex) {
+                continue;
+            }
+            try {
+                parser.setProperty(property, value);
+            } catch (SAXException ex) {
+                return null;
+            }
+        }
+        parser.setEntityResolver(configured.getEntityResolver());
+        parser.setErrorHandler(configured.getErrorHandler());
+        return parser;
+    }
+
+    /**
+     * Replays lexical events to the lexical handler of the reader that would
+     * otherwise have parsed the input, unless one is set explicitly.
+     */
+    private static class ReadAheadBuffer extends UnboundedContentHandlerBuffer {
+
+        @Override
+        public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+            if (lh != null || !LEXICAL_HANDLER_PROPERTY_KEY.equals(name)) {
+                return super.getProperty(name);
+            }
+            Object ret;
+            try {
+                ret = getUnmodifiableParent().getProperty(name);
+            } catch (SAXNotRecognizedException ex) {
+                ret = null;
+            } catch (SAXNotSupportedException ex) {
+                ret = null;
+            }
+            return ret != null ? ret : NO_LEXICAL_HANDLER;
+        }
+
+    }
+
+    private class ParseTask implements Callable<VolatileSAXSource> {
+
+        private final VolatileSAXSource source;
+
+        private ParseTask(VolatileSAXSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public VolatileSAXSource call() throws Exception {
+            XMLReader configured = source.getXMLReader();
+            XMLReader parser = acquireParser(configured);
+            if (parser == null) {
+                return source;
+            }
+            UnboundedContentHandlerBuffer buffer = new ReadAheadBuffer();
+            try {
+                parser.setContentHandler(buffer);
+                parser.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+                parser.parse(source.getInputSource());
+            } finally {
+                parser.setContentHandler(null);
+                parser.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, null);
+                parsers.add(parser);
+            }
+            buffer.setUnmodifiableParent(configured != null ? configured : parser);
+            return new VolatileSAXSource(buffer, source.getInputSource());
+        }
+
+    }
+
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.ContentHandlerBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXResult;
+import net.sf.saxon.Controller;
+import net.sf.saxon.event.Builder;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.om.NodeInfo;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Transforms the records of a chunk one at a time: buffered chunk input is
+ * replayed through this ContentHandler, which feeds each record (wrapped in
+ * copies of its ancestor elements) to a single tree builder, reused for all
+ * records of the chunk, and transforms each record tree separately. The
+ * output of each successful transform is merged into the chunk output
+ * (wrapper elements are taken from the first output), so a failing record
+ * is dropped (and reported) individually, without subdivision of the chunk.
+ * <p>
+ * Content of wrapper elements outside of records (e.g., whitespace between
+ * records) is not passed to the stylesheet.
+ *
+ * @author michael
+ */
+class RecordwiseTransform implements ContentHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecordwiseTransform.class);
+
+    private final int recordLevel;
+    private final TransformerPool transformers;
+    private final ContentHandlerBuffer recordOut;
+    private final OutputMerger output;
+    private final RecordMonitorXMLFilter rl;
+    private final String systemId;
+
+    private final List<AncestorElement> ancestors = new ArrayList<AncestorElement>();
+    private final List<String[]> pendingMappings = new ArrayList<String[]>();
+    private List<String[]> recordMappings;
+    private List<AncestorElement> inputWrappers;
+    private Transformer transformer;
+    private Builder builder;
+    private ReceivingContentHandler recordInput;
+    private int depth = 0;
+    private int records = 0;
+    private int dropped = 0;
+
+    /**
+     * @param recordLevel depth of record elements (1 for children of the
+     * root element)
+     * @param recordOut buffer for the output of individual record transforms
+     * @param out receives the merged output
+     * @param rl if non-null, used to identify dropped records
+     */
+    RecordwiseTransform(int recordLevel, TransformerPool transformers, ContentHandlerBuffer recordOut, ContentHandler out, RecordMonitorXMLFilter rl, String systemId) {
+        this.recordLevel = recordLevel;
+        this.transformers = transformers;
+        this.recordOut = recordOut;
+        this.output = new OutputMerger(out, recordLevel);
+        this.rl = rl;
+        this.systemId = systemId;
+    }
+
+    int getRecordCount() {
+        return records;
+    }
+
+    int getDroppedCount() {
+        return dropped;
+    }
+
+    private static class AncestorElement {
+
+        private final String uri;
+        private final String localName;
+        private final String qName;
+        private final Attributes atts;
+        private final List<String[]> mappings;
+
+        private AncestorElement(String uri, String localName, String qName, Attributes atts, List<String[]> mappings) {
+            this.uri = uri;
+            this.localName = localName;
+            this.qName = qName;
+            this.atts = new AttributesImpl(atts);
+            this.mappings = new ArrayList<String[]>(mappings);
+        }
+
+        private void start(ContentHandler ch) throws SAXException {
+            for (String[] mapping : mappings) {
+                ch.startPrefixMapping(mapping[0], mapping[1]);
+            }
+            ch.startElement(uri, localName, qName, atts);
+        }
+
+        private void end(ContentHandler ch) throws SAXException {
+            ch.endElement(uri, localName, qName);
+            for (String[] mapping : mappings) {
+                ch.endPrefixMapping(mapping[0]);
+            }
+        }
+    }
+
+    private void startRecord() throws SAXException {
+        if (inputWrappers == null) {
+            inputWrappers = new ArrayList<AncestorElement>(ancestors);
+        }
+        transformer = transformers.acquire();
+        if (builder == null) {
+            builder = ((Controller) transformer).makeBuilder();
+        } else {
+            builder.reset();
+        }
+        builder.setSystemId(systemId);
+        recordInput = new ReceivingContentHandler();
+        recordInput.setPipelineConfiguration(builder.getPipelineConfiguration());
+        recordInput.setReceiver(builder);
+        recordInput.startDocument();
+        for (AncestorElement ancestor : ancestors) {
+            ancestor.start(recordInput);
+        }
+    }
+
+    private void endRecord() throws SAXException {
+        for (int i = ancestors.size() - 1; i >= 0; i--) {
+            ancestors.get(i).end(recordInput);
+        }
+        recordInput.endDocument();
+        recordInput = null;
+        NodeInfo tree = builder.getCurrentRoot();
+        try {
+            transformer.transform(tree, new SAXResult(recordOut));
+            recordOut.flush(output, null);
+        } catch (TransformerException ex) {
+            recordOut.clear();
+            dropped++;
+            LOG.warn("partial failure processing {}; dropped record {}{}; {}", systemId, records, identify(tree), ex.getMessageAndLocation());
+        } finally {
+            transformers.release(transformer);
+            transformer = null;
+        }
+        records++;
+    }
+
+    private String identify(NodeInfo tree) {
+        if (rl == null) {
+            return "";
+        }
+        RecordMonitorXMLFilter monitor = rl.newInstance();
+        try {
+            TransformerFactory tf = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+            tf.newTransformer().transform(tree, new SAXResult(monitor));
+        } catch (TransformerException ex) {
+            // NOOP
+        }
+        return " (" + monitor.getRecordIdString() + ")";
+    }
+
+    /**
+     * Completes the merged output; to be called once all buffered input has
+     * been replayed.
+     */
+    void finish() throws SAXException {
+        output.finish(inputWrappers);
+    }
+
+    @Override
+    public void setDocumentLocator(Locator locator) {
+    }
+
+    @Override
+    public void startDocument() throws SAXException {
+    }
+
+    @Override
+    public void endDocument() throws SAXException {
+    }
+
+    @Override
+    public void startPrefixMapping(String prefix, String uri) throws SAXException {
+        if (recordInput != null) {
+            recordInput.startPrefixMapping(prefix, uri);
+        } else {
+            pendingMappings.add(new String[]{prefix, uri});
+        }
+    }
+
+    @Override
+    public void endPrefixMapping(String prefix) throws SAXException {
+        if (recordInput != null) {
+            recordInput.endPrefixMapping(prefix);
+        }
+    }
+
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+        if (++depth <= recordLevel) {
+            ancestors.add(new AncestorElement(uri, localName, qName, atts, pendingMappings));
+            pendingMappings.clear();
+        } else {
+            if (depth == recordLevel + 1) {
+                startRecord();
+                recordMappings = new ArrayList<String[]>(pendingMappings);
+                for (String[] mapping : pendingMappings) {
+                    recordInput.startPrefixMapping(mapping[0], mapping[1]);
+                }
+                pendingMappings.clear();
+            }
+            recordInput.startElement(uri, localName, qName, atts);
+        }
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        if (depth-- <= recordLevel) {
+            ancestors.remove(ancestors.size() - 1);
+        } else {
+            recordInput.endElement(uri, localName, qName);
+            if (depth == recordLevel) {
+                for (String[] mapping : recordMappings) {
+                    recordInput.endPrefixMapping(mapping[0]);
+                }
+                endRecord();
+            }
+        }
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (recordInput != null) {
+            recordInput.characters(ch, start, length);
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+        if (recordInput != null) {
+            recordInput.ignorableWhitespace(ch, start, length);
+        }
+    }
+
+    @Override
+    public void processingInstruction(String target, String data) throws SAXException {
+        if (recordInput != null) {
+            recordInput.processingInstruction(target, data);
+        }
+    }
+
+    @Override
+    public void skippedEntity(String name) throws SAXException {
+        if (recordInput != null) {
+            recordInput.skippedEntity(name);
+        }
+    }
+
+    /**
+     * Merges the output documents of successive record transforms into a
+     * single document, passing through the start of the document and of
+     * wrapper elements (depth &lt;= recordLevel) from the first output only.
+     */
+    private static class OutputMerger implements ContentHandler {
+
+        private final ContentHandler out;
+        private final int recordLevel;
+        private final List<AncestorElement> wrappers = new ArrayList<AncestorElement>();
+        private final List<String[]> pendingMappings = new ArrayList<String[]>();
+        private boolean first = true;
+        private boolean started = false;
+        private int depth = 0;
+
+        private OutputMerger(ContentHandler out, int recordLevel) {
+            this.out = out;
+            this.recordLevel = recordLevel;
+        }
+
+        /**
+         * @param inputAncestors wrapper elements of the input, used if no
+         * record produced output (null if the input contained no records)
+         */
+        private void finish(List<AncestorElement> inputWrappers) throws SAXException {
+            if (!started) {
+                out.startDocument();
+                if (inputWrappers != null) {
+                    for (AncestorElement wrapper : inputWrappers) {
+                        wrapper.start(out);
+                    }
+                    wrappers.addAll(inputWrappers);
+                }
+            }
+            for (int i = wrappers.size() - 1; i >= 0; i--) {
+                wrappers.get(i).end(out);
+            }
+            out.endDocument();
+        }
+
+        @Override
+        public void setDocumentLocator(Locator locator) {
+        }
+
+        @Override
+        public void startDocument() throws SAXException {
+            if (first) {
+                started = true;
+                out.startDocument();
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException {
+            first = false;
+            depth = 0;
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            if (depth >= recordLevel) {
+                out.startPrefixMapping(prefix, uri);
+            } else if (first) {
+                pendingMappings.add(new String[]{prefix, uri});
+            }
+        }
+
+        @Override
+        public void endPrefixMapping(String prefix) throws SAXException {
+            if (depth >= recordLevel) {
+                out.endPrefixMapping(prefix);
+            }
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            if (++depth <= recordLevel) {
+                if (first) {
+                    AncestorElement wrapper = new AncestorElement(uri, localName, qName, atts, pendingMappings);
+                    pendingMappings.clear();
+                    wrappers.add(wrapper);
+                    wrapper.start(out);
+                }
+            } else {
+                out.startElement(uri, localName, qName, atts);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (depth-- > recordLevel) {
+                out.endElement(uri, localName, qName);
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (depth >= recordLevel) {
+                out.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if (depth >= recordLevel) {
+                out.ignorableWhitespace(ch, start, length);
+            }
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            if (depth >= recordLevel) {
+                out.processingInstruction(target, data);
+            }
+        }
+
+        @Override
+        public void skippedEntity(String name) throws SAXException {
+            if (depth >= recordLevel) {
+                out.skippedEntity(name);
+            }
+        }
+    }
+
+}
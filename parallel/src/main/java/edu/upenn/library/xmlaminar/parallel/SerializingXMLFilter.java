@@ -16,6 +16,7 @@
 
 package edu.upenn.library.xmlaminar.parallel;
 
+import edu.upenn.library.xmlaminar.UTF8XMLSerializer;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -23,7 +24,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.logging.Level;
-import java.util.zip.GZIPOutputStream;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
@@ -47,9 +47,11 @@ public class SerializingXMLFilter extends XMLFilterImpl {
     
     private static final Logger LOG = LoggerFactory.getLogger(SerializingXMLFilter.class);
     private final TransformerHandler th;
+    private final UTF8XMLSerializer serializer = new UTF8XMLSerializer();
     private final File output;
     private final boolean closeOnEndDocument;
     private final boolean gzipOutput;
+    private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
     private StreamResult res;
     
     public SerializingXMLFilter(File output, boolean gzipOutput, boolean closeOnEndDocument) {
@@ -72,6 +74,17 @@ public class SerializingXMLFilter extends XMLFilterImpl {
         this(output, false);
     }
 
+    /**
+     * Compression settings applied if output is gzipped; defaults to
+     * {@link ParallelGZIPOutputStream.Settings#DEFAULT}.
+     */
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        if (gzipSettings == null) {
+            throw new NullPointerException();
+        }
+        this.gzipSettings = gzipSettings;
+    }
+
     @Override
     public void parse(String systemId) throws SAXException, IOException {
         setupParse();
@@ -95,7 +108,7 @@ public class SerializingXMLFilter extends XMLFilterImpl {
             }
         } else if (gzipOutput) {
             try {
-                ((GZIPOutputStream)res.getOutputStream()).finish();
+                ((ParallelGZIPOutputStream)res.getOutputStream()).finish();
             } catch (IOException ex) {
                 LOG.error("error finishing stream", ex);
             }
@@ -119,18 +132,24 @@ public class SerializingXMLFilter extends XMLFilterImpl {
         OutputStream out = null;
         try {
             if ("-".equals(output.getPath())) {
-                out = gzipOutput ? new GZIPOutputStream(System.out) : System.out;
+                out = gzipOutput ? gzipSettings.newStream(System.out) : System.out;
             } else {
                 res.setSystemId(output);
                 out = new FileOutputStream(output);
-                out = gzipOutput ? new GZIPOutputStream(out) : new BufferedOutputStream(out);
+                out = gzipOutput ? gzipSettings.newStream(out) : new BufferedOutputStream(out);
             }
         } catch (IOException ex) {
             throw new RuntimeException(ex);
         }
         res.setOutputStream(out);
-        th.setResult(res);
-        setContentHandler(th);
+        if (UTF8XMLSerializer.canReplace(t)) {
+            serializer.setOutputProperties(t.getOutputProperties());
+            serializer.setOutputStream(out);
+            setContentHandler(serializer);
+        } else {
+            th.setResult(res);
+            setContentHandler(th);
+        }
     }
     
 }
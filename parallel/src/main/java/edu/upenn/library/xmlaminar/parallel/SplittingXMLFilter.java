@@ -20,11 +20,14 @@ import static edu.upenn.library.xmlaminar.parallel.JoiningXMLFilter.GROUP_BY_SYS
 import edu.upenn.library.xmlaminar.parallel.callback.OutputCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.StdoutCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.XMLReaderCallback;
+import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
 import edu.upenn.library.xmlaminar.VolatileXMLFilterImpl;
 import java.io.IOException;
 import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.Phaser;
@@ -93,6 +96,60 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
         if ((arrived = parseChunkDonePhaser.getArrivedParties()) > 0) {
             throw new IllegalStateException("parseChunkDonePhaser arrived count: "+arrived);
         }
+        if (batchQueue != null && !batchQueue.isEmpty()) {
+            throw new IllegalStateException("batchQueue not empty: "+batchQueue.size());
+        }
+    }
+
+    /*
+     * Batched mode: split documents are buffered by the producer and handed
+     * off as sealed buffers through a bounded queue, to be replayed to the
+     * output callback by the consumer thread. This replaces the per-chunk
+     * phaser rendezvous (where downstream handlers run on the producer thread)
+     * with batched transfer, decoupling parsing from downstream processing.
+     */
+    private int batchSize = 0;
+    private BlockingQueue<UnboundedContentHandlerBuffer> batchQueue;
+    private final UnboundedContentHandlerBuffer batchBuffer = new UnboundedContentHandlerBuffer();
+    private static final UnboundedContentHandlerBuffer END_OF_BATCHES = new UnboundedContentHandlerBuffer(1).seal();
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize if positive, up to this many split documents are
+     * buffered in memory awaiting output, and handed off to the output
+     * callback asynchronously; 0 (the default) hands off each split document
+     * synchronously, as it is parsed.
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize < 0) {
+            throw new IllegalArgumentException("batchSize must be non-negative: " + batchSize);
+        }
+        if (parsing.get()) {
+            throw new IllegalStateException("cannot set batchSize while parsing");
+        }
+        this.batchSize = batchSize;
+        batchQueue = batchSize > 0 ? new ArrayBlockingQueue<UnboundedContentHandlerBuffer>(batchSize) : null;
+    }
+
+    private void handOffBatch(UnboundedContentHandlerBuffer buffer) {
+        try {
+            while (!batchQueue.offer(buffer, 100, TimeUnit.MILLISECONDS)) {
+                if (consumerThrowable != null) {
+                    throw new IllegalStateException("consumer failed", consumerThrowable);
+                }
+            }
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private UnboundedContentHandlerBuffer sealBatch() {
+        UnboundedContentHandlerBuffer sealed = batchBuffer.seal();
+        sealed.setUnmodifiableParent(synchronousParser);
+        return sealed;
     }
     
     @Override
@@ -108,7 +165,13 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
     }
 
     private void setupParse(InputSource in) {
-        setContentHandler(synchronousParser);
+        if (batchQueue != null) {
+            batchQueue.clear();
+            batchBuffer.clear();
+            setContentHandler(batchBuffer);
+        } else {
+            setContentHandler(synchronousParser);
+        }
         if (!parsing.compareAndSet(false, true)) {
             throw new IllegalStateException("failed setting parsing = true");
         }
@@ -150,6 +213,10 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
             splitDirector.reset();
         }
         startEventStack.clear();
+        if (batchQueue != null) {
+            batchQueue.clear();
+            batchBuffer.clear();
+        }
         if (!parsing.compareAndSet(false, false) && !cancel) {
             LOG.warn("at {}.reset(), parsing had been set to true", SplittingXMLFilter.class.getName(), new IllegalStateException());
         }
@@ -240,7 +307,18 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
         }
         
         private void parseLoop(InputSource input, String systemId) throws SAXException, IOException {
-            if (input != null) {
+            if (input == null) {
+                throw new NullPointerException("null InputSource");
+            } else if (batchQueue != null) {
+                UnboundedContentHandlerBuffer next;
+                try {
+                    while ((next = batchQueue.take()) != END_OF_BATCHES) {
+                        outputCallback.callback(new VolatileSAXSource(next, input));
+                    }
+                } catch (InterruptedException ex) {
+                    throw new RuntimeException(ex);
+                }
+            } else {
                 while (parsing.get()) {
                     outputCallback.callback(new VolatileSAXSource(synchronousParser, input));
                     try {
@@ -249,8 +327,6 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
                         throw new RuntimeException(ex);
                     }
                 }
-            } else {
-                throw new NullPointerException("null InputSource");
             }
         }
 
@@ -325,10 +401,12 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
 
     @Override
     public void startDocument() throws SAXException {
-        try {
-            parseBeginPhaser.awaitAdvanceInterruptibly(parseBeginPhaser.arrive());
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+        if (batchQueue == null) {
+            try {
+                parseBeginPhaser.awaitAdvanceInterruptibly(parseBeginPhaser.arrive());
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
         }
         startEventStack.push(new StructuralStartEvent());
         super.startDocument();
@@ -345,7 +423,12 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
         if (!parsing.compareAndSet(true, false)) {
             throw new IllegalStateException("failed at endDocument setting parsing = false");
         }
-        parseEndPhaser.arrive();
+        if (batchQueue != null) {
+            handOffBatch(sealBatch());
+            handOffBatch(END_OF_BATCHES);
+        } else {
+            parseEndPhaser.arrive();
+        }
     }
 
     private int bypassLevel = Integer.MAX_VALUE;
@@ -353,11 +436,15 @@ public class SplittingXMLFilter extends QueueSourceXMLFilter implements OutputCa
     
     protected final void split() throws SAXException {
         writeSyntheticEndEvents();
-        parseEndPhaser.arrive();
-        try {
-            parseBeginPhaser.awaitAdvanceInterruptibly(parseBeginPhaser.arrive());
-        } catch (InterruptedException ex) {
-            throw new RuntimeException(ex);
+        if (batchQueue != null) {
+            handOffBatch(sealBatch());
+        } else {
+            parseEndPhaser.arrive();
+            try {
+                parseBeginPhaser.awaitAdvanceInterruptibly(parseBeginPhaser.arrive());
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
         }
         writeSyntheticStartEvents();
     }
@@ -22,8 +22,12 @@ import edu.upenn.library.xmlaminar.parallel.callback.OutputCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.StaticFileCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.StdoutCallback;
 import edu.upenn.library.xmlaminar.parallel.callback.XMLReaderCallback;
+import edu.upenn.library.xmlaminar.ContentHandlerBufferPool;
+import edu.upenn.library.xmlaminar.ContentHandlerBufferType;
 import edu.upenn.library.xmlaminar.LoggingErrorListener;
-import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
+import edu.upenn.library.xmlaminar.SAXProperties;
+import edu.upenn.library.xmlaminar.SymbolTable;
+import edu.upenn.library.xmlaminar.VirtualThreadExecutorService;
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
 import edu.upenn.library.xmlaminar.VolatileXMLFilterImpl;
 import java.io.File;
@@ -37,7 +41,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParserFactory;
@@ -46,7 +52,6 @@ import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
@@ -78,11 +83,36 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
     private static final Logger LOG = LoggerFactory.getLogger(TXMLFilter.class);
 
     public TXMLFilter(Source xslSource, String xpath, boolean subdivide, int recordLevel) throws TransformerConfigurationException {
-        TransformerFactory tf = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
-        templates = tf.newTemplates(xslSource);
-        pq = new ProcessingQueue<Chunk>(10, new Chunk(templates, xpath, subdivide, recordLevel));
+        this(xslSource, xpath, subdivide, recordLevel, ContentHandlerBufferType.DEFAULT);
+    }
+
+    public TXMLFilter(Source xslSource, String xpath, boolean subdivide, int recordLevel, ContentHandlerBufferType bufferType) throws TransformerConfigurationException {
+        this(xslSource, xpath, subdivide, recordLevel, bufferType, DEFAULT_QUEUE_DEPTH);
+    }
+
+    /**
+     * The stylesheet is compiled via the process-wide {@link TemplatesCache}.
+     *
+     * @param queueDepth maximum number of chunks (not counting subdivided
+     * chunks) in flight at once, whether awaiting or undergoing
+     * transformation, or awaiting output
+     */
+    public TXMLFilter(Source xslSource, String xpath, boolean subdivide, int recordLevel, ContentHandlerBufferType bufferType, int queueDepth) throws TransformerConfigurationException {
+        templates = TemplatesCache.getTemplates(xslSource);
+        bufferPool = new ContentHandlerBufferPool(bufferType);
+        pq = new ProcessingQueue<Chunk>(queueDepth, new Chunk(templates, xpath, subdivide, recordLevel, bufferPool));
         this.subdivide = subdivide;
     }
+
+    private final ContentHandlerBufferPool bufferPool;
+
+    /**
+     * @return the pool from which Chunk buffers are acquired, e.g. for
+     * inspecting hit/miss statistics
+     */
+    public ContentHandlerBufferPool getBufferPool() {
+        return bufferPool;
+    }
     
     public TXMLFilter(Source xslSource, String xpath) throws TransformerConfigurationException {
         this(xslSource, xpath, DEFAULT_SUBDIVIDE, DEFAULT_RECORD_LEVEL);
@@ -106,6 +136,7 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
     
     @Override
     protected void initialParse(VolatileSAXSource in) {
+        startWorkPools();
         outputFuture = getExecutor().submit(new OutputRunnable(Thread.currentThread()));
         pq.reset();
         try {
@@ -128,10 +159,21 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
     protected void finished() throws SAXException {
         pq.finished();
         reset(false);
+        shutdownWorkPools();
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(bufferPool.toString());
+            LOG.debug(pq.toString());
+        }
     }
     
     private void setupInputBuffer(SAXSource in) throws InterruptedException {
         Chunk nextIn = pq.nextIn();
+        nextIn.setSymbolTable(symbolTable);
+        nextIn.setSpillThreshold(spillThreshold);
+        nextIn.setCoalesceCharacters(coalesceCharacters);
+        nextIn.setTreeInput(treeInput);
+        nextIn.setRecordwise(recordwise);
+        nextIn.setChunkSizer(getChunkSizer());
         ContentHandler inputBuffer = nextIn.getInput(in);
         XMLFilter suxf = new StateUpdatingXMLFilter(nextIn, in.getXMLReader(), ProcessingState.HAS_INPUT);
         in.setXMLReader(suxf);
@@ -159,9 +201,106 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
 
     private XMLReader externalParent;
 
+    public static final int DEFAULT_QUEUE_DEPTH = 10;
+    public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    private int parallelism = DEFAULT_PARALLELISM;
+    private boolean workStealing = false;
+    private ForkJoinPool workPool;
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism maximum number of chunks to be transformed
+     * concurrently
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        configureWorkExecutor(getExecutor());
+    }
+
+    public boolean isWorkStealing() {
+        return workStealing;
+    }
+
+    /**
+     * @param workStealing if true, chunk transformations (and subdivision of
+     * failed chunks) are scheduled on a dedicated ForkJoinPool, where idle
+     * workers steal queued work; otherwise (the default) they are submitted
+     * to the executor, throttled by a semaphore.
+     */
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+        configureWorkExecutor(getExecutor());
+    }
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /**
+     * If the executor is a VirtualThreadExecutorService, it is reserved for
+     * blocking tasks (output, subdivision); CPU-bound chunk transforms run on
+     * a dedicated pool of platform threads. Dedicated pools (this, or the
+     * work-stealing pool) are started for each parse (see
+     * {@link #startWorkPools()}), and shut down when it finishes.
+     */
+    private void configureWorkExecutor(ExecutorService executor) {
+        shutdownWorkPools();
+        if (executor == null) {
+            pq.setWorkExecutor(null);
+        } else if (!usesDedicatedPool(executor)) {
+            pq.setWorkExecutor(new ThrottlingExecutorService(executor, parallelism));
+        }
+        pq.setSubdivideExecutor(null);
+    }
+
+    private boolean usesDedicatedPool(ExecutorService executor) {
+        return workStealing || executor instanceof VirtualThreadExecutorService;
+    }
+
+    private void startWorkPools() {
+        ExecutorService executor = getExecutor();
+        if (executor == null || !usesDedicatedPool(executor) || workPool != null || platformPool != null) {
+            return;
+        }
+        if (workStealing) {
+            workPool = new ForkJoinPool(parallelism);
+            pq.setWorkExecutor(workPool);
+        } else {
+            platformPool = Executors.newFixedThreadPool(parallelism, DAEMON_THREAD_FACTORY);
+            pq.setWorkExecutor(new ThrottlingExecutorService(platformPool, parallelism));
+        }
+        pq.setSubdivideExecutor(executor);
+    }
+
+    private void shutdownWorkPools() {
+        if (workPool != null) {
+            workPool.shutdown();
+            workPool = null;
+        }
+        if (platformPool != null) {
+            platformPool.shutdown();
+            platformPool = null;
+        }
+    }
+
+    private ExecutorService platformPool;
+
     @Override
     public void setExecutor(ExecutorService executor) {
-        pq.setWorkExecutor(executor == null ? null : new ThrottlingExecutorService(executor));
+        configureWorkExecutor(executor);
         super.setExecutor(executor);
     }
 
@@ -341,11 +480,13 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
             if (consumerThrowable == null) {
                 producerThrowable = t;
                 reset(true);
+                shutdownWorkPools();
                 throw new RuntimeException(t);
             } else {
                 t = consumerThrowable;
                 consumerThrowable = null;
                 pq.getWorkExecutor().shutdownNow();
+                shutdownWorkPools();
                 throw new RuntimeException(t);
             }
         }
@@ -368,23 +509,141 @@ public class TXMLFilter extends QueueSourceXMLFilter implements OutputCallback {
 
     public static final String OUTPUT_TRANSFORMER_PROPERTY_NAME = "http://transform.xml.javax/Transformer#outputTransformer";
     
+    private SymbolTable symbolTable;
+
+    private long spillThreshold = 0;
+
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @param bytes approximate heap ceiling per chunk buffer, beyond which
+     * buffered events are spilled to disk; 0 (the default) disables spilling.
+     * Requires a buffer type that supports spilling.
+     */
+    public void setSpillThreshold(long bytes) {
+        this.spillThreshold = bytes;
+    }
+
+    private boolean coalesceCharacters = false;
+
+    public long getMaxReorderBytes() {
+        return pq.getMaxReorderBytes();
+    }
+
+    /**
+     * @param bytes if positive, intake of new chunks pauses while more than
+     * this many bytes of transformed output are held awaiting output (e.g.,
+     * behind a slow head-of-line chunk); 0 (the default) bounds buffered
+     * output only by queue depth.
+     */
+    public void setMaxReorderBytes(long bytes) {
+        pq.setMaxReorderBytes(bytes);
+    }
+
+    public boolean isOrderedOutput() {
+        return pq.isOrdered();
+    }
+
+    /**
+     * @param ordered if false, chunks are output as soon as they are
+     * transformed, so record order of output does not reflect that of input.
+     */
+    public void setOrderedOutput(boolean ordered) {
+        pq.setOrdered(ordered);
+    }
+
+    private AdaptiveChunkSizer chunkSizer;
+
+    /**
+     * @return the sizer to be notified of chunk transform costs: if none has
+     * been explicitly set, that of the parent, if the parent is a
+     * LevelSplittingXMLFilter
+     */
+    public AdaptiveChunkSizer getChunkSizer() {
+        if (chunkSizer == null && externalParent instanceof LevelSplittingXMLFilter) {
+            return ((LevelSplittingXMLFilter) externalParent).getChunkSizer();
+        }
+        return chunkSizer;
+    }
+
+    public void setChunkSizer(AdaptiveChunkSizer chunkSizer) {
+        this.chunkSizer = chunkSizer;
+    }
+
+    public boolean isCoalesceCharacters() {
+        return coalesceCharacters;
+    }
+
+    /**
+     * @param coalesce if true, adjacent characters events are merged as they
+     * are buffered, reducing the number of events replayed through the
+     * transformer. Requires a buffer type that supports coalescing.
+     */
+    public void setCoalesceCharacters(boolean coalesce) {
+        this.coalesceCharacters = coalesce;
+    }
+
+    private boolean treeInput = false;
+
+    public boolean isTreeInput() {
+        return treeInput;
+    }
+
+    /**
+     * @param treeInput if true, each chunk's input events are fed directly to
+     * the transformer's tree builder as they arrive, rather than being
+     * buffered and replayed into the tree builder at transform time. This
+     * avoids holding both a buffered and a tree copy of each chunk's input
+     * (and the cost of the replay); input is buffered (from the tree) only
+     * for chunks that fail.
+     */
+    public void setTreeInput(boolean treeInput) {
+        this.treeInput = treeInput;
+    }
+
+    private boolean recordwise = false;
+
+    public boolean isRecordwise() {
+        return recordwise;
+    }
+
+    /**
+     * @param recordwise if true, the records of each chunk are transformed
+     * one at a time (reusing a single tree builder per chunk), so that a
+     * failing record is dropped without failing (and subdividing) its chunk.
+     * Output of the per-record transforms is merged under the wrapper
+     * elements of the first record's output; content of wrapper elements
+     * between records is not passed to the stylesheet.
+     */
+    public void setRecordwise(boolean recordwise) {
+        this.recordwise = recordwise;
+    }
+
     @Override
     public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
         try {
             super.setProperty(name, value);
         } catch (SAXNotRecognizedException ex) {
-            if (!OUTPUT_TRANSFORMER_PROPERTY_NAME.equals(name)) {
+            if (!isLocalProperty(name)) {
                 throw ex;
             }
         } catch (SAXNotSupportedException ex) {
-            if (!OUTPUT_TRANSFORMER_PROPERTY_NAME.equals(name)) {
+            if (!isLocalProperty(name)) {
                 throw ex;
             }
         }
         if (OUTPUT_TRANSFORMER_PROPERTY_NAME.equals(name)) {
             configureOutputTransformer((Transformer) value);
+        } else if (SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name)) {
+            symbolTable = (SymbolTable) value;
         }
     }
+
+    private static boolean isLocalProperty(String name) {
+        return OUTPUT_TRANSFORMER_PROPERTY_NAME.equals(name) || SAXProperties.SYMBOL_TABLE_PROPERTY_NAME.equals(name);
+    }
     
     @Override
     public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
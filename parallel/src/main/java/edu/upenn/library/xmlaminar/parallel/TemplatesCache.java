@@ -0,0 +1,172 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import org.xml.sax.InputSource;
+
+/**
+ * Process-wide cache of compiled stylesheets, keyed by the systemId of the
+ * stylesheet source and (for local files) its modification time, so that
+ * pipelines referencing the same stylesheet more than once (e.g., several
+ * process commands, or repeated config-driven invocations) compile it only
+ * once. A modified stylesheet file is recompiled on next request; note that
+ * modification of stylesheets included or imported by the main stylesheet
+ * is not detected. Sources without a systemId are compiled uncached.
+ *
+ * @author michael
+ */
+public class TemplatesCache {
+
+    private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+
+    /*
+     * Compilation is run by the thread that installs the entry; concurrent
+     * requests for the same stylesheet wait for the result rather than
+     * compiling it again.
+     */
+    private static final class Entry {
+
+        private final long lastModified;
+        private final FutureTask<Templates> templates;
+
+        private Entry(long lastModified, final Source xslSource) {
+            this.lastModified = lastModified;
+            this.templates = new FutureTask<Templates>(new Callable<Templates>() {
+
+                @Override
+                public Templates call() throws Exception {
+                    return compile(xslSource);
+                }
+            });
+        }
+
+        private Templates get(String systemId) throws TransformerConfigurationException {
+            try {
+                return templates.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                CACHE.remove(systemId, this); // allow a later request to retry
+                Throwable cause = ex.getCause();
+                if (cause instanceof TransformerConfigurationException) {
+                    throw (TransformerConfigurationException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+    }
+
+    private TemplatesCache() {
+    }
+
+    /**
+     * @param xslSource if the stylesheet is already cached, any InputStream or
+     * Reader of the source is closed unread
+     */
+    public static Templates getTemplates(Source xslSource) throws TransformerConfigurationException {
+        String systemId = xslSource.getSystemId();
+        if (systemId == null) {
+            return compile(xslSource);
+        }
+        long lastModified = lastModified(systemId);
+        for (;;) {
+            Entry entry = CACHE.get(systemId);
+            if (entry != null && entry.lastModified == lastModified) {
+                close(xslSource);
+                return entry.get(systemId);
+            }
+            Entry created = new Entry(lastModified, xslSource);
+            if (entry == null ? CACHE.putIfAbsent(systemId, created) == null : CACHE.replace(systemId, entry, created)) {
+                created.templates.run();
+                return created.get(systemId);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached stylesheets.
+     */
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    private static Templates compile(Source xslSource) throws TransformerConfigurationException {
+        TransformerFactory tf = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null);
+        return tf.newTemplates(xslSource);
+    }
+
+    private static void close(Source xslSource) {
+        InputStream in = null;
+        Reader reader = null;
+        if (xslSource instanceof StreamSource) {
+            in = ((StreamSource) xslSource).getInputStream();
+            reader = ((StreamSource) xslSource).getReader();
+        } else if (xslSource instanceof SAXSource) {
+            InputSource input = ((SAXSource) xslSource).getInputSource();
+            if (input != null) {
+                in = input.getByteStream();
+                reader = input.getCharacterStream();
+            }
+        }
+        try {
+            if (in != null) {
+                in.close();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            // source is not needed; NOOP
+        }
+    }
+
+    private static long lastModified(String systemId) {
+        try {
+            URI uri = new URI(systemId);
+            if ("file".equals(uri.getScheme())) {
+                return new File(uri).lastModified();
+            }
+        } catch (Exception ex) {
+            // not a local file; NOOP
+        }
+        return 0;
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.DevNullErrorListener;
+import javax.xml.transform.ErrorListener;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import net.sf.saxon.Controller;
+
+/**
+ * Thread-affine pool of Transformers for a single Templates: each thread
+ * reuses its own Transformer, so the number of Transformers (and their
+ * retained document pools, etc.) scales with the number of threads
+ * performing transformations, rather than with the number of Chunks in
+ * flight. A Transformer acquired and not yet released is never handed out
+ * again, so (re-entrant) nested acquisition on the same thread is safe.
+ *
+ * @author michael
+ */
+public class TransformerPool {
+
+    private static final ErrorListener devNullErrorListener = new DevNullErrorListener();
+
+    private final Templates templates;
+    private final ThreadLocal<Transformer> idle = new ThreadLocal<Transformer>();
+
+    public TransformerPool(Templates templates) {
+        this.templates = templates;
+    }
+
+    public Templates getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return a Transformer, reset and ready for use by the calling thread,
+     * which should be returned via {@link #release(Transformer)} on the same
+     * thread
+     */
+    public Transformer acquire() {
+        Transformer transformer = idle.get();
+        if (transformer == null) {
+            try {
+                transformer = templates.newTransformer();
+            } catch (TransformerConfigurationException ex) {
+                throw new RuntimeException(ex);
+            }
+        } else {
+            idle.remove();
+            transformer.reset();
+            if (transformer instanceof Controller) {
+                ((Controller) transformer).clearDocumentPool();
+            }
+        }
+        transformer.setErrorListener(devNullErrorListener);
+        return transformer;
+    }
+
+    public void release(Transformer transformer) {
+        idle.set(transformer);
+    }
+
+}
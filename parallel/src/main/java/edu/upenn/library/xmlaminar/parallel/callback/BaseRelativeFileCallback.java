@@ -17,6 +17,7 @@
 package edu.upenn.library.xmlaminar.parallel.callback;
 
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
@@ -39,6 +40,7 @@ public class BaseRelativeFileCallback implements XMLReaderCallback {
     protected final String outputExtension;
     protected final boolean replaceExtension;
     private final boolean gzipOutput;
+    private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
     
     private Path validateBase(File file) {
         if (!file.isDirectory()) {
@@ -64,10 +66,21 @@ public class BaseRelativeFileCallback implements XMLReaderCallback {
         this(inputBase, outputBase, t, DEFAULT_OUTPUT_EXTENSION, gzipOutput);
     }
     
+    /**
+     * Compression settings applied if output is gzipped; defaults to
+     * {@link ParallelGZIPOutputStream.Settings#DEFAULT}.
+     */
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        if (gzipSettings == null) {
+            throw new NullPointerException();
+        }
+        this.gzipSettings = gzipSettings;
+    }
+
     @Override
     public void callback(VolatileSAXSource source) throws SAXException, IOException {
         File nextFile = convertInToOut(source.getInputSource().getSystemId(), gzipOutput);
-        StreamCallback.writeToFile(source, nextFile, t, gzipOutput);
+        StreamCallback.writeToFile(source, nextFile, t, gzipOutput ? gzipSettings : null);
     }
     
     protected File convertInToOut(String path, boolean gzipOutput) {
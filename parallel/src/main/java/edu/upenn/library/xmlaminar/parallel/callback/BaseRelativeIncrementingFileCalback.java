@@ -17,6 +17,7 @@
 package edu.upenn.library.xmlaminar.parallel.callback;
 
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import java.io.File;
 import java.io.IOException;
 import javax.xml.transform.Transformer;
@@ -72,6 +73,28 @@ public class BaseRelativeIncrementingFileCalback extends BaseRelativeFileCallbac
         }
         ifc.callback(source);
     }
+
+    /**
+     * @see IncrementingFileCallback#setAsync(int, int)
+     */
+    public void setAsync(int writerThreads, int maxInFlight) {
+        ifc.setAsync(writerThreads, maxInFlight);
+    }
+
+    public void setFsyncPolicy(IncrementingFileCallback.FsyncPolicy fsyncPolicy) {
+        ifc.setFsyncPolicy(fsyncPolicy);
+    }
+
+    @Override
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        super.setGzipSettings(gzipSettings);
+        ifc.setGzipSettings(gzipSettings);
+    }
+
+    @Override
+    public void finished(Throwable t) {
+        ifc.finished(t);
+    }
     
     
     
@@ -16,21 +16,42 @@
 
 package edu.upenn.library.xmlaminar.parallel.callback;
 
+import edu.upenn.library.xmlaminar.UnboundedContentHandlerBuffer;
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.sax.SAXSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
 import org.xml.sax.XMLFilter;
+import org.xml.sax.XMLReader;
 
 /**
  *
  * @author magibney
  */
 public class IncrementingFileCallback implements XMLReaderCallback {
+    private static final Logger LOG = LoggerFactory.getLogger(IncrementingFileCallback.class);
     private static final int DEFAULT_START_INDEX = 0;
     private static final int DEFAULT_SUFFIX_SIZE = 5;
     private static final boolean DEFAULT_GZIP_OUTPUT = false;
@@ -42,6 +63,7 @@ public class IncrementingFileCallback implements XMLReaderCallback {
     private final String suffixFormat;
     private final Transformer t;
     private final boolean gzipOutput;
+    private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
     private int i;
     private final XMLFilter outputFilter;
 
@@ -91,6 +113,121 @@ public class IncrementingFileCallback implements XMLReaderCallback {
         this.gzipOutput = gzipOutput;
     }
 
+    public enum FsyncPolicy {
+        /**
+         * leave flushing of written files to the OS
+         */
+        none,
+        /**
+         * force each file to storage before closing it
+         */
+        file,
+        /**
+         * force all written files to storage when output is finished
+         */
+        finish
+    }
+
+    private FsyncPolicy fsyncPolicy = FsyncPolicy.none;
+    private final List<File> unsynced = new ArrayList<File>();
+
+    /**
+     * Compression settings applied if output is gzipped; defaults to
+     * {@link ParallelGZIPOutputStream.Settings#DEFAULT}.
+     */
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        if (gzipSettings == null) {
+            throw new NullPointerException();
+        }
+        this.gzipSettings = gzipSettings;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    private static final ThreadFactory DAEMON_THREAD_FACTORY = new ThreadFactory() {
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    private static final String LEXICAL_HANDLER_PROPERTY_KEY = "http://xml.org/sax/properties/lexical-handler";
+
+    private int writerThreads = 0;
+    private ExecutorService writers;
+    private Semaphore inFlight;
+    private int maxInFlight;
+    private XMLReader featureSource;
+    private final Queue<Transformer> writerTransformers = new ConcurrentLinkedQueue<Transformer>();
+    private volatile Throwable writeFailure;
+
+    /**
+     * Enables asynchronous output: each document is buffered (after the
+     * output filter, if any) on the calling thread, and serialized and
+     * written to its file by a pool of writer threads. Each in-flight
+     * document has its own serializing Transformer, configured (as for
+     * synchronous output) via the document's XMLReader. File names are
+     * assigned in callback order, as for synchronous output.
+     * @param writerThreads number of writer threads; 0 for synchronous
+     * output
+     * @param maxInFlight maximum number of buffered documents not yet
+     * written; callbacks block while this limit is reached
+     */
+    public void setAsync(int writerThreads, int maxInFlight) {
+        if (writers != null) {
+            awaitWrites();
+            shutdownWriters();
+        }
+        this.writerThreads = writerThreads;
+        if (writerThreads < 1) {
+            return;
+        } else if (maxInFlight < writerThreads) {
+            throw new IllegalArgumentException("maxInFlight (" + maxInFlight + ") must be at least writerThreads (" + writerThreads + ")");
+        }
+        try {
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            featureSource = spf.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException ex) {
+            throw new RuntimeException(ex);
+        } catch (SAXException ex) {
+            throw new RuntimeException(ex);
+        }
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore(maxInFlight);
+    }
+
+    public boolean isAsync() {
+        return writerThreads > 0;
+    }
+
+    /**
+     * The writer pool is started on demand, and shut down when output is
+     * {@link #finished(Throwable) finished}.
+     */
+    private ExecutorService getWriters() {
+        if (writers == null) {
+            writers = Executors.newFixedThreadPool(writerThreads, DAEMON_THREAD_FACTORY);
+        }
+        return writers;
+    }
+
+    private void shutdownWriters() {
+        if (writers != null) {
+            writers.shutdown();
+            writers = null;
+        }
+    }
+
     @Override
     public void callback(VolatileSAXSource source) throws SAXException, IOException {
         File nextFile = new File(parentFile, namePrefix + String.format(suffixFormat, i++)
@@ -100,7 +237,108 @@ public class IncrementingFileCallback implements XMLReaderCallback {
             outputFilter.setParent(source.getXMLReader());
             source.setXMLReader(outputFilter);
         }
-        StreamCallback.writeToFile(source, nextFile, t, gzipOutput);
+        if (writerThreads < 1) {
+            StreamCallback.writeToFile(source, nextFile, t, false, gzipOutput ? gzipSettings : null, fsyncPolicy == FsyncPolicy.file);
+            if (fsyncPolicy == FsyncPolicy.finish) {
+                unsynced.add(nextFile);
+            }
+        } else {
+            writeAsync(source, nextFile);
+        }
+    }
+
+    private void writeAsync(SAXSource source, File nextFile) throws SAXException, IOException {
+        checkWriteFailure();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        }
+        boolean submitted = false;
+        Transformer writerTransformer = null;
+        try {
+            writerTransformer = acquireWriterTransformer();
+            StreamCallback.configureOutputTransformer(source, writerTransformer);
+            XMLReader reader = source.getXMLReader();
+            UnboundedContentHandlerBuffer buffer = new UnboundedContentHandlerBuffer();
+            reader.setContentHandler(buffer);
+            try {
+                reader.setProperty(LEXICAL_HANDLER_PROPERTY_KEY, buffer);
+            } catch (SAXNotRecognizedException ex) {
+                // lexical events not buffered
+            } catch (SAXNotSupportedException ex) {
+                // lexical events not buffered
+            }
+            reader.parse(source.getInputSource());
+            buffer.setUnmodifiableParent(featureSource);
+            getWriters().execute(new WriteTask(buffer, source.getInputSource(), nextFile, writerTransformer));
+            submitted = true;
+            if (fsyncPolicy == FsyncPolicy.finish) {
+                unsynced.add(nextFile);
+            }
+        } finally {
+            if (!submitted) {
+                if (writerTransformer != null) {
+                    writerTransformers.add(writerTransformer);
+                }
+                inFlight.release();
+            }
+        }
+    }
+
+    private Transformer acquireWriterTransformer() {
+        Transformer ret = writerTransformers.poll();
+        if (ret == null) {
+            try {
+                ret = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer();
+            } catch (TransformerConfigurationException ex) {
+                throw new RuntimeException(ex);
+            }
+        }
+        return ret;
+    }
+
+    private class WriteTask implements Runnable {
+
+        private final UnboundedContentHandlerBuffer buffer;
+        private final InputSource input;
+        private final File file;
+        private final Transformer t;
+
+        private WriteTask(UnboundedContentHandlerBuffer buffer, InputSource input, File file, Transformer t) {
+            this.buffer = buffer;
+            this.input = input;
+            this.file = file;
+            this.t = t;
+        }
+
+        @Override
+        public void run() {
+            try {
+                StreamCallback.writeToFile(new SAXSource(buffer, input), file, t, true, gzipOutput ? gzipSettings : null, fsyncPolicy == FsyncPolicy.file);
+            } catch (Throwable failure) {
+                LOG.error("failed writing " + file, failure);
+                if (writeFailure == null) {
+                    writeFailure = failure;
+                }
+            } finally {
+                writerTransformers.add(t);
+                inFlight.release();
+            }
+        }
+    }
+
+    private void checkWriteFailure() throws IOException {
+        Throwable failure = writeFailure;
+        if (failure != null) {
+            writeFailure = null;
+            throw new IOException("failed writing output", failure);
+        }
+    }
+
+    private void awaitWrites() {
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
     }
     
     public void setBaseFile(File file, String ext, boolean reset) {
@@ -124,8 +362,38 @@ public class IncrementingFileCallback implements XMLReaderCallback {
         i = 0;
     }
 
+    /**
+     * Waits for asynchronous writes to complete. A failed asynchronous write
+     * not already reported (via {@link #callback(VolatileSAXSource)}) is
+     * thrown (wrapped in RuntimeException) if t is null; otherwise it is added
+     * to t as a suppressed exception.
+     */
     @Override
     public void finished(Throwable t) {
+        if (writers != null) {
+            awaitWrites();
+            shutdownWriters();
+        }
+        try {
+            if (t == null) {
+                checkWriteFailure();
+            } else {
+                Throwable failure = writeFailure;
+                writeFailure = null;
+                if (failure != null) {
+                    t.addSuppressed(failure);
+                }
+            }
+            for (File f : unsynced) {
+                try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            unsynced.clear();
+        }
     }
     
 }
@@ -17,6 +17,7 @@
 package edu.upenn.library.xmlaminar.parallel.callback;
 
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import java.io.File;
 import java.io.IOException;
 import javax.xml.transform.Transformer;
@@ -37,6 +38,7 @@ public class StaticFileCallback implements XMLReaderCallback {
     private final Transformer t;
     private final XMLFilter outputFilter;
     private final boolean gzipOutput;
+    private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
 
     public StaticFileCallback(Transformer t, File staticFile, XMLFilter outputFilter, boolean gzipOutput) {
         this.staticFile = staticFile;
@@ -45,6 +47,17 @@ public class StaticFileCallback implements XMLReaderCallback {
         this.gzipOutput = gzipOutput;
     }
 
+    /**
+     * Compression settings applied if output is gzipped; defaults to
+     * {@link ParallelGZIPOutputStream.Settings#DEFAULT}.
+     */
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        if (gzipSettings == null) {
+            throw new NullPointerException();
+        }
+        this.gzipSettings = gzipSettings;
+    }
+
     public StaticFileCallback(Transformer t, File staticFile) {
         this(t, staticFile, null, false);
     }
@@ -59,7 +72,7 @@ public class StaticFileCallback implements XMLReaderCallback {
             outputFilter.setParent(source.getXMLReader());
             source.setXMLReader(outputFilter);
         }
-        StreamCallback.writeToFile(source, staticFile, t, gzipOutput);
+        StreamCallback.writeToFile(source, staticFile, t, gzipOutput ? gzipSettings : null);
     }
 
     @Override
@@ -17,12 +17,12 @@
 package edu.upenn.library.xmlaminar.parallel.callback;
 
 import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.StringReader;
-import java.util.zip.GZIPOutputStream;
 import javax.xml.transform.Source;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -43,6 +43,7 @@ public class StdoutCallback implements XMLReaderCallback {
     private final Transformer t;
     private final XMLFilter outputFilter;
     private final boolean gzipOutput;
+    private ParallelGZIPOutputStream.Settings gzipSettings = ParallelGZIPOutputStream.Settings.DEFAULT;
     private OutputStream out;
 
     public StdoutCallback(Transformer t, XMLFilter outputFilter, boolean gzipOutput) {
@@ -51,6 +52,17 @@ public class StdoutCallback implements XMLReaderCallback {
         this.gzipOutput = gzipOutput;
     }
 
+    /**
+     * Compression settings applied if output is gzipped; defaults to
+     * {@link ParallelGZIPOutputStream.Settings#DEFAULT}.
+     */
+    public void setGzipSettings(ParallelGZIPOutputStream.Settings gzipSettings) {
+        if (gzipSettings == null) {
+            throw new NullPointerException();
+        }
+        this.gzipSettings = gzipSettings;
+    }
+
     public StdoutCallback(Transformer t) {
         this(t, null, false);
     }
@@ -70,7 +82,7 @@ public class StdoutCallback implements XMLReaderCallback {
             source.setXMLReader(outputFilter);
         }
         if (out == null) {
-            out = gzipOutput ? new GZIPOutputStream(System.out) : System.out;
+            out = gzipOutput ? gzipSettings.newStream(System.out) : System.out;
         }
         StreamCallback.writeToStream(source, new StreamResult(out), t);
     }
@@ -82,7 +94,7 @@ public class StdoutCallback implements XMLReaderCallback {
         }
         try {
             if (gzipOutput) {
-                ((GZIPOutputStream) out).finish();
+                ((ParallelGZIPOutputStream) out).finish();
             }
             out.flush();
         } catch (IOException ex) {
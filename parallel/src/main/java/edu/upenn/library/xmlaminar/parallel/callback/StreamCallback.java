@@ -16,6 +16,8 @@
 
 package edu.upenn.library.xmlaminar.parallel.callback;
 
+import edu.upenn.library.xmlaminar.UTF8XMLSerializer;
+import edu.upenn.library.xmlaminar.parallel.ParallelGZIPOutputStream;
 import edu.upenn.library.xmlaminar.parallel.TXMLFilter;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -23,7 +25,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Properties;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.sax.SAXSource;
@@ -31,8 +33,10 @@ import javax.xml.transform.stream.StreamResult;
 import net.sf.saxon.Controller;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
 import org.xml.sax.SAXNotRecognizedException;
 import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
 
 /**
  *
@@ -41,28 +45,73 @@ import org.xml.sax.SAXNotSupportedException;
 public class StreamCallback {
     
     private static final Logger LOG = LoggerFactory.getLogger(StreamCallback.class);
+    private static final String LEXICAL_HANDLER_PROPERTY_NAME = "http://xml.org/sax/properties/lexical-handler";
+    private static final String NAMESPACES_FEATURE_NAME = "http://xml.org/sax/features/namespaces";
+    private static final String NAMESPACE_PREFIXES_FEATURE_NAME = "http://xml.org/sax/features/namespace-prefixes";
+
+    private static final ThreadLocal<UTF8XMLSerializer> serializers = new ThreadLocal<UTF8XMLSerializer>() {
+
+        @Override
+        protected UTF8XMLSerializer initialValue() {
+            return new UTF8XMLSerializer();
+        }
+
+    };
     
-    static void writeToFile(SAXSource source, File nextFile, Transformer t, boolean gzipOutput) throws FileNotFoundException, IOException {
+    static void writeToFile(SAXSource source, File nextFile, Transformer t, ParallelGZIPOutputStream.Settings gzip) throws FileNotFoundException, IOException {
+        writeToFile(source, nextFile, t, false, gzip, false);
+    }
+
+    /**
+     * @param configured if true, t has already been configured for output
+     * (see {@link #configureOutputTransformer(SAXSource, Transformer)});
+     * otherwise it is configured via the source's XMLReader
+     * @param gzip settings for compressed output, or null for uncompressed
+     * @param fsync if true, file contents are forced to the storage device
+     * before the file is closed
+     */
+    static void writeToFile(SAXSource source, File nextFile, Transformer t, boolean configured, ParallelGZIPOutputStream.Settings gzip, boolean fsync) throws FileNotFoundException, IOException {
         File dir = nextFile.getParentFile();
         if (!dir.isDirectory()) {
             dir.mkdirs();
         }
-        OutputStream out = new FileOutputStream(nextFile);
-        if (gzipOutput) {
-            out = new GZIPOutputStream(out);
+        FileOutputStream fos = new FileOutputStream(nextFile);
+        OutputStream out;
+        if (gzip != null) {
+            out = gzip.newStream(fos);
         } else {
-            out = new BufferedOutputStream(out);
+            out = new BufferedOutputStream(fos);
         }
         StreamResult res = new StreamResult(out);
         res.setSystemId(nextFile);
         try {
-            writeToStream(source, res, t);
+            if (configured) {
+                transform(source, res, t);
+            } else {
+                writeToStream(source, res, t);
+            }
+            if (fsync) {
+                if (gzip != null) {
+                    ((ParallelGZIPOutputStream) out).finish();
+                }
+                out.flush();
+                fos.getFD().sync();
+            }
         } finally {
             out.close();
         }
     }
 
     static void writeToStream(SAXSource source, StreamResult out, Transformer t) throws FileNotFoundException, IOException {
+        configureOutputTransformer(source, t);
+        transform(source, out, t);
+    }
+
+    /**
+     * Resets t and offers it to the source's XMLReader for configuration
+     * (e.g., with the output properties of an upstream stylesheet).
+     */
+    static void configureOutputTransformer(SAXSource source, Transformer t) {
         t.reset();
         if (t instanceof Controller) {
             ((Controller)t).clearDocumentPool();
@@ -74,6 +123,17 @@ public class StreamCallback {
         } catch (SAXNotSupportedException ex) {
             LOG.trace("ignoring setProperty({}) on "+source.getXMLReader(), TXMLFilter.OUTPUT_TRANSFORMER_PROPERTY_NAME);
         }
+    }
+
+    /**
+     * Where t is an identity transformer whose output properties permit, source
+     * is serialized directly by a {@link UTF8XMLSerializer}.
+     */
+    private static void transform(SAXSource source, StreamResult out, Transformer t) throws IOException {
+        if (out.getOutputStream() != null && source.getXMLReader() != null && UTF8XMLSerializer.canReplace(t)) {
+            serialize(source, out.getOutputStream(), t.getOutputProperties());
+            return;
+        }
         try {
             t.transform(source, out);
         } catch (TransformerException ex) {
@@ -81,6 +141,36 @@ public class StreamCallback {
         }
     }
 
+    private static void serialize(SAXSource source, OutputStream out, Properties props) throws IOException {
+        UTF8XMLSerializer serializer = serializers.get();
+        serializer.setOutputProperties(props);
+        serializer.setOutputStream(out);
+        XMLReader reader = source.getXMLReader();
+        reader.setContentHandler(serializer);
+        try {
+            reader.setFeature(NAMESPACES_FEATURE_NAME, true);
+            reader.setFeature(NAMESPACE_PREFIXES_FEATURE_NAME, false);
+        } catch (SAXNotRecognizedException ex) {
+            LOG.trace("ignoring namespace features on "+reader);
+        } catch (SAXNotSupportedException ex) {
+            LOG.trace("ignoring namespace features on "+reader);
+        }
+        try {
+            reader.setProperty(LEXICAL_HANDLER_PROPERTY_NAME, serializer);
+        } catch (SAXNotRecognizedException ex) {
+            LOG.trace("ignoring setProperty({}) on "+reader, LEXICAL_HANDLER_PROPERTY_NAME);
+        } catch (SAXNotSupportedException ex) {
+            LOG.trace("ignoring setProperty({}) on "+reader, LEXICAL_HANDLER_PROPERTY_NAME);
+        }
+        try {
+            reader.parse(source.getInputSource());
+        } catch (SAXException ex) {
+            throw new RuntimeException(ex);
+        } finally {
+            serializer.setOutputStream(null);
+        }
+    }
+
     public static int extensionStartIndex(String path) {
         if (path == null) {
             return -1;
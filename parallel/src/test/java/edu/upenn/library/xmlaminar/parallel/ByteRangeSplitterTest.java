@@ -0,0 +1,233 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import javax.xml.parsers.SAXParserFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ *
+ * @author michael
+ */
+public class ByteRangeSplitterTest {
+
+    private static final String PROLOG = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<!-- leading comment with <root> -->\n"
+            + "<?pi <rec>?>\n"
+            + "<!DOCTYPE root [\n"
+            + "  <!-- ] > in a comment -->\n"
+            + "  <!ENTITY e \"ent]ity > 'quoted'\">\n"
+            + "  <!ATTLIST rec type CDATA \"default\">\n"
+            + "  <?pi ]>?>\n"
+            + "]>\n"
+            + "<!-- after doctype -->\n";
+
+    private static File write(String content, Charset charset) throws IOException {
+        File file = File.createTempFile("byte-range", ".xml");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(charset));
+        }
+        return file;
+    }
+
+    private static List<VolatileSAXSource> split(File file, long rangeBytes, int recordAlignment) {
+        VolatileSAXSource source = new VolatileSAXSource(new InputSource(file.getAbsolutePath()));
+        Iterator<VolatileSAXSource> iter = new ByteRangeSplitter(rangeBytes, recordAlignment)
+                .wrapIterator(Collections.singletonList(source).iterator());
+        List<VolatileSAXSource> ret = new ArrayList<VolatileSAXSource>();
+        while (iter.hasNext()) {
+            VolatileSAXSource next = iter.next();
+            assertEquals(file.getAbsolutePath(), next.getInputSource().getSystemId());
+            ret.add(next);
+        }
+        return ret;
+    }
+
+    /**
+     * @return a string representation of each record (depth 1 element) in
+     * the input
+     */
+    private static List<String> records(InputSource in) throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        final List<String> ret = new ArrayList<String>();
+        spf.newSAXParser().parse(in, new DefaultHandler() {
+
+            private final StringBuilder sb = new StringBuilder();
+            private int depth = 0;
+
+            @Override
+            public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+                if (depth++ > 0) {
+                    sb.append("<{").append(uri).append('}').append(localName);
+                    for (int i = 0; i < atts.getLength(); i++) {
+                        sb.append(' ').append(atts.getQName(i)).append("=\"").append(atts.getValue(i)).append('"');
+                    }
+                    sb.append('>');
+                }
+            }
+
+            @Override
+            public void endElement(String uri, String localName, String qName) throws SAXException {
+                if (--depth > 0) {
+                    sb.append("</>");
+                    if (depth == 1) {
+                        ret.add(sb.toString());
+                        sb.setLength(0);
+                    }
+                }
+            }
+
+            @Override
+            public void characters(char[] ch, int start, int length) throws SAXException {
+                if (depth > 1) {
+                    sb.append(ch, start, length);
+                }
+            }
+
+        });
+        return ret;
+    }
+
+    /**
+     * Asserts that the pieces, taken together, contain the same records as
+     * the original input.
+     *
+     * @return the number of records in each piece
+     */
+    private static List<Integer> assertSameRecords(File file, List<VolatileSAXSource> pieces) throws Exception {
+        List<String> expected = records(new InputSource(file.getAbsolutePath()));
+        List<String> actual = new ArrayList<String>();
+        List<Integer> counts = new ArrayList<Integer>();
+        for (VolatileSAXSource piece : pieces) {
+            List<String> records = records(piece.getInputSource());
+            actual.addAll(records);
+            counts.add(records.size());
+        }
+        assertEquals(expected, actual);
+        return counts;
+    }
+
+    @Test
+    public void testPrologAndDoctype() throws Exception {
+        StringBuilder sb = new StringBuilder(PROLOG);
+        sb.append("<root xmlns=\"urn:default\" xmlns:p=\"urn:p\">\n");
+        for (int i = 0; i < 20; i++) {
+            sb.append("  <rec id=\"").append(i).append("\"><p:v>&e; ").append(i).append("</p:v></rec>\n");
+        }
+        sb.append("</root>\n");
+        File file = write(sb.toString(), StandardCharsets.UTF_8);
+        assertTrue(split(file, 100, 1).size() > 1);
+        assertSameRecords(file, split(file, 100, 1));
+        String record = records(split(file, 100, 1).get(1).getInputSource()).get(0);
+        assertTrue(record.contains("type=\"default\""));
+        assertTrue(record.contains("ent]ity > 'quoted'"));
+    }
+
+    @Test
+    public void testNestedSameName() throws Exception {
+        String content = "<root>"
+                + "<rec id=\"0\"><rec>inner</rec><rec><rec/></rec></rec>"
+                + "<rec id=\"1\"/>"
+                + "<rec id=\"2\"><x><rec>deep</rec></x></rec>"
+                + "<other><rec/></other>"
+                + "<rec id=\"4\">text<rec/>tail</rec>"
+                + "</root>";
+        File file = write(content, StandardCharsets.UTF_8);
+        List<VolatileSAXSource> pieces = split(file, 1, 1);
+        assertEquals(5, pieces.size());
+        assertEquals(Collections.nCopies(5, 1), assertSameRecords(file, pieces));
+    }
+
+    @Test
+    public void testMarkupInCommentsAndCdata() throws Exception {
+        String content = "<root>\n"
+                + "<rec id=\"0\"><!-- </rec><rec> --></rec>\n"
+                + "<!-- </root> <rec> -->\n"
+                + "<rec id=\"1\"><![CDATA[</rec><rec id=\"x\">]]></rec>\n"
+                + "<?pi </rec><rec>?>\n"
+                + "<rec id=\"2\" a=\"x>y\" b='--'>after</rec>\n"
+                + "<rec id=\"3\"><![CDATA[<!-- ]]>text<!-- <![CDATA[ --></rec>\n"
+                + "</root>\n";
+        File file = write(content, StandardCharsets.UTF_8);
+        List<VolatileSAXSource> pieces = split(file, 1, 1);
+        assertEquals(4, pieces.size());
+        assertEquals(Collections.nCopies(4, 1), assertSameRecords(file, pieces));
+    }
+
+    @Test
+    public void testMultiByteCharacters() throws Exception {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><récords>");
+        for (int i = 0; i < 12; i++) {
+            sb.append("<réc n=\"日本").append(i).append("\">éè日本語𝄞")
+                    .append(i).append("𝄞</réc>");
+        }
+        sb.append("</récords>");
+        File file = write(sb.toString(), StandardCharsets.UTF_8);
+        for (long rangeBytes = 1; rangeBytes < 80; rangeBytes += 3) {
+            List<VolatileSAXSource> pieces = split(file, rangeBytes, 1);
+            assertTrue(pieces.size() > 1);
+            assertSameRecords(file, pieces);
+        }
+    }
+
+    @Test
+    public void testRecordAlignment() throws Exception {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < 10; i++) {
+            sb.append(i % 2 == 0 ? "<rec><rec/></rec>" : "<rec/>");
+        }
+        sb.append("</root>");
+        File file = write(sb.toString(), StandardCharsets.UTF_8);
+        List<Integer> expected = new ArrayList<Integer>();
+        Collections.addAll(expected, 3, 3, 3, 1);
+        assertEquals(expected, assertSameRecords(file, split(file, 1, 3)));
+        expected.clear();
+        Collections.addAll(expected, 4, 4, 2);
+        assertEquals(expected, assertSameRecords(file, split(file, 30, 2)));
+    }
+
+    @Test
+    public void testNotSplit() throws Exception {
+        String content = "<?xml version=\"1.0\" encoding=\"UTF-16\"?><root><rec/><rec/></root>";
+        File file = write(content, StandardCharsets.UTF_16);
+        List<VolatileSAXSource> pieces = split(file, 1, 1);
+        assertEquals(1, pieces.size());
+        assertSameRecords(file, pieces);
+        file = write("<root>text<rec/><rec/></root>", StandardCharsets.UTF_8);
+        assertEquals(1, split(file, 1, 1).size());
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author michael
+ */
+public class ParallelGZIPOutputStreamTest {
+
+    private static final int BLOCK_SIZE = ParallelGZIPOutputStream.BLOCK_SIZE;
+
+    private static final int[] LENGTHS = new int[]{0, 1, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1,
+        3 * BLOCK_SIZE + 32 * 1024 + 17};
+
+    /**
+     * compressible (repetitive, with back-references spanning block
+     * boundaries) but not trivially so.
+     */
+    private static byte[] data(int length, long seed) {
+        Random r = new Random(seed);
+        byte[] words = "<record id=\"\"><field>value &amp; more</field></record>\n".getBytes();
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++) {
+            ret[i] = (r.nextInt(8) == 0 ? (byte) r.nextInt(256) : words[(i + (i / 4096)) % words.length]);
+        }
+        return ret;
+    }
+
+    private static byte[] gunzip(byte[] gz) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * writes in uneven chunks (including single bytes), flushing after every
+     * flushInterval writes (never if flushInterval < 1).
+     */
+    private static void write(ParallelGZIPOutputStream out, byte[] data, int flushInterval) throws IOException {
+        Random r = new Random(data.length);
+        int pos = 0;
+        int writes = 0;
+        while (pos < data.length) {
+            if (r.nextInt(4) == 0) {
+                out.write(data[pos++]);
+            } else {
+                int n = Math.min(data.length - pos, r.nextInt(BLOCK_SIZE / 2));
+                out.write(data, pos, n);
+                pos += n;
+            }
+            if (flushInterval > 0 && ++writes % flushInterval == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    private static void roundTrip(int level, int threads, int flushInterval) throws IOException {
+        for (int length : LENGTHS) {
+            byte[] expected = data(length, level * 31 + threads);
+            ByteArrayOutputStream gz = new ByteArrayOutputStream();
+            ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(gz, level, threads);
+            write(out, expected, flushInterval);
+            out.close();
+            assertArrayEquals("level=" + level + ", threads=" + threads + ", length=" + length, expected, gunzip(gz.toByteArray()));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 1, 0);
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 4, 0);
+        roundTrip(Deflater.NO_COMPRESSION, 2, 0);
+        roundTrip(Deflater.BEST_SPEED, 3, 0);
+        roundTrip(Deflater.BEST_COMPRESSION, 2, 0);
+    }
+
+    @Test
+    public void testRoundTripWithFlush() throws IOException {
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 1, 3);
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 4, 1);
+        roundTrip(Deflater.DEFAULT_COMPRESSION, 4, 5);
+    }
+
+    /**
+     * flushed content must be decodable before the stream is finished
+     */
+    @Test
+    public void testFlushedPrefix() throws IOException {
+        byte[] expected = data(2 * BLOCK_SIZE + 1000, 7);
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        ParallelGZIPOutputStream out = new ParallelGZIPOutputStream(gz, Deflater.DEFAULT_COMPRESSION, 4);
+        out.write(expected);
+        out.flush();
+        out.flush();
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(gz.toByteArray()));
+        byte[] actual = new byte[expected.length];
+        int pos = 0;
+        int n;
+        while (pos < actual.length && (n = in.read(actual, pos, actual.length - pos)) > 0) {
+            pos += n;
+        }
+        assertArrayEquals(expected, actual);
+        out.close();
+    }
+
+    /**
+     * consecutive members (e.g., stdout output finished once per parse) are
+     * read as a single concatenated stream
+     */
+    @Test
+    public void testMultiMember() throws IOException {
+        ByteArrayOutputStream gz = new ByteArrayOutputStream();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ParallelGZIPOutputStream.Settings settings = new ParallelGZIPOutputStream.Settings(Deflater.BEST_SPEED, 3);
+        for (int i = 0; i < 4; i++) {
+            byte[] member = data(i * BLOCK_SIZE + 5000 * i, i);
+            ParallelGZIPOutputStream out = settings.newStream(gz);
+            write(out, member, i);
+            out.finish();
+            out.finish();
+            expected.write(member);
+        }
+        assertArrayEquals(expected.toByteArray(), gunzip(gz.toByteArray()));
+    }
+
+    @Test
+    public void testSettings() throws IOException {
+        ParallelGZIPOutputStream.Settings settings = new ParallelGZIPOutputStream.Settings(Deflater.BEST_SPEED, 2);
+        assertEquals(Deflater.BEST_SPEED, settings.getLevel());
+        assertEquals(2, settings.getThreads());
+        assertTrue(ParallelGZIPOutputStream.Settings.DEFAULT.getThreads() > 0);
+        for (int[] invalid : Arrays.asList(new int[]{10, 1}, new int[]{-2, 1}, new int[]{1, 0})) {
+            try {
+                new ParallelGZIPOutputStream.Settings(invalid[0], invalid[1]);
+                fail("accepted level=" + invalid[0] + ", threads=" + invalid[1]);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author michael
+ */
+public class ProcessingQueueTest {
+
+    private static final long OUTPUT_SIZE = 10;
+
+    private static class Item extends DelegatingSubdividable<ProcessingState, Item, Node<Item>> {
+
+        private int id;
+        private long delayMillis;
+        private boolean fail;
+        private CountDownLatch gate;
+        private Semaphore completions;
+
+        @Override
+        public void run() {
+            try {
+                if (gate != null) {
+                    gate.await();
+                }
+                if (delayMillis > 0) {
+                    Thread.sleep(delayMillis);
+                }
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            }
+            Semaphore c = completions;
+            setState(fail ? ProcessingState.FAILED : ProcessingState.HAS_OUTPUT);
+            if (c != null) {
+                c.release();
+            }
+        }
+
+        @Override
+        public boolean canSubdivide() {
+            return false;
+        }
+
+        @Override
+        protected long getOutputSize() {
+            return OUTPUT_SIZE;
+        }
+
+        @Override
+        protected void reset() {
+            id = -1;
+            delayMillis = 0;
+            fail = false;
+            gate = null;
+            completions = null;
+        }
+
+        @Override
+        public Item newInstance() {
+            return new Item();
+        }
+
+    }
+
+    private static ProcessingQueue<Item> newQueue(int size, boolean ordered, ExecutorService executor) {
+        ProcessingQueue<Item> pq = new ProcessingQueue<Item>(size, new Item());
+        pq.setWorkExecutor(executor);
+        pq.setOrdered(ordered);
+        pq.reset();
+        return pq;
+    }
+
+    /**
+     * Takes all output, returning items to the pool as the consumer in
+     * TXMLFilter does.
+     */
+    private static List<Integer> drain(ProcessingQueue<Item> pq) throws InterruptedException {
+        List<Integer> ret = new ArrayList<Integer>();
+        Item next;
+        while ((next = pq.nextOut()) != null) {
+            ret.add(next.id);
+            next.getParent().reset();
+        }
+        return ret;
+    }
+
+    private static void join(Thread t, Throwable[] failure) throws Throwable {
+        t.join();
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    private void testExactlyOnce(boolean ordered) throws Throwable {
+        final int n = 498;
+        final int failEvery = 7; // last chunk (497) fails, after the consumer is waiting
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final ProcessingQueue<Item> pq = newQueue(8, ordered, executor);
+            final Random random = new Random(n);
+            final Throwable[] failure = new Throwable[1];
+            Thread producer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            Item item = pq.nextIn();
+                            item.id = i;
+                            item.delayMillis = i == n - 1 ? 100 : random.nextInt(3);
+                            item.fail = i % failEvery == 0;
+                            item.setState(ProcessingState.HAS_INPUT);
+                        }
+                        pq.finished();
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            producer.start();
+            List<Integer> out = drain(pq);
+            join(producer, failure);
+            assertNull(pq.nextOut());
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < n; i++) {
+                if (i % failEvery != 0) {
+                    expected.add(i);
+                }
+            }
+            if (!ordered) {
+                Collections.sort(out);
+            }
+            assertEquals(expected, out);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testUnorderedExactlyOnce() throws Throwable {
+        testExactlyOnce(false);
+    }
+
+    @Test(timeout = 60000)
+    public void testOrderedExactlyOnce() throws Throwable {
+        testExactlyOnce(true);
+    }
+
+    @Test(timeout = 10000)
+    public void testFinishedEmpty() throws Throwable {
+        ExecutorService executor = Executors.newFixedThreadPool(1);
+        try {
+            for (boolean ordered : new boolean[] {true, false}) {
+                ProcessingQueue<Item> pq = newQueue(4, ordered, executor);
+                pq.finished();
+                assertNull(pq.nextOut());
+                assertNull(pq.nextOut());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Head-of-line chunk is held back; intake must stop once completed output
+     * behind it exceeds the reorder window, and resume once it is drained.
+     */
+    @Test(timeout = 60000)
+    public void testReorderWindow() throws Throwable {
+        final int n = 40;
+        final long window = 100;
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ProcessingQueue<Item> pq = newQueue(n, true, executor);
+            pq.setMaxReorderBytes(window);
+            final CountDownLatch gate = new CountDownLatch(1);
+            final Semaphore completions = new Semaphore(0);
+            final AtomicInteger admitted = new AtomicInteger();
+            final Throwable[] failure = new Throwable[1];
+            Thread producer = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < n; i++) {
+                            Item item = pq.nextIn();
+                            admitted.incrementAndGet();
+                            item.id = i;
+                            if (i == 0) {
+                                item.gate = gate;
+                                item.setState(ProcessingState.HAS_INPUT);
+                            } else {
+                                // one chunk at a time, so the window bound is exact
+                                item.completions = completions;
+                                item.setState(ProcessingState.HAS_INPUT);
+                                completions.acquire();
+                            }
+                        }
+                        pq.finished();
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+            producer.start();
+            while (pq.getPeakReorderBytes() <= window) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(200);
+            // head of line, plus chunks admitted while the window was not exceeded
+            assertEquals(1 + window / OUTPUT_SIZE + 1, admitted.get());
+            assertEquals(window + OUTPUT_SIZE, pq.getPeakReorderBytes());
+            gate.countDown();
+            List<Integer> out = drain(pq);
+            join(producer, failure);
+            assertEquals(n, out.size());
+            for (int i = 0; i < n; i++) {
+                assertEquals(i, out.get(i).intValue());
+            }
+            // head of line may complete on top of a full window
+            assertTrue(pq.getPeakReorderBytes() <= window + 2 * OUTPUT_SIZE);
+            assertTrue(pq.getIntakeWaitNanos() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
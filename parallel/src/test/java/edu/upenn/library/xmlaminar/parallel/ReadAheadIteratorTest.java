@@ -0,0 +1,275 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.SAXFeatures;
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.XMLFilterLexicalHandlerImpl;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.helpers.XMLFilterImpl;
+
+/**
+ *
+ * @author michael
+ */
+public class ReadAheadIteratorTest {
+
+    private static final int INPUTS = 12;
+
+    private static String content(int i) {
+        return "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE root [<!ENTITY e \"entity " + i + "\">]>\n"
+                + "<!-- comment " + i + " -->\n"
+                + "<root xmlns=\"urn:default\" xmlns:p=\"urn:p\">"
+                + "<p:rec id=\"" + i + "\"><?pi data?>&e;<![CDATA[<cdata> " + i + "]]><!-- inner --></p:rec>"
+                + "</root>";
+    }
+
+    private static List<File> inputs() throws IOException {
+        List<File> ret = new ArrayList<File>();
+        for (int i = 0; i < INPUTS; i++) {
+            File file = File.createTempFile("read-ahead", ".xml");
+            file.deleteOnExit();
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(content(i).getBytes(StandardCharsets.UTF_8));
+            }
+            ret.add(file);
+        }
+        return ret;
+    }
+
+    private static List<VolatileSAXSource> sources(XMLReader reader, List<File> files) {
+        List<VolatileSAXSource> ret = new ArrayList<VolatileSAXSource>();
+        for (File file : files) {
+            ret.add(new VolatileSAXSource(reader, new InputSource(file.getAbsolutePath())));
+        }
+        return ret;
+    }
+
+    /**
+     * records content and lexical events
+     */
+    private static class Recorder extends DefaultHandler2 {
+
+        private final StringBuilder sb = new StringBuilder();
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException {
+            sb.append("[pm ").append(prefix).append('=').append(uri).append(']');
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            sb.append('<').append(uri).append('|').append(localName).append('|').append(qName);
+            for (int i = 0; i < atts.getLength(); i++) {
+                sb.append(' ').append(atts.getQName(i)).append('=').append(atts.getValue(i));
+            }
+            sb.append('>');
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            sb.append("</").append(qName).append('>');
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            sb.append(ch, start, length);
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException {
+            sb.append("[pi ").append(target).append(' ').append(data).append(']');
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) throws SAXException {
+            sb.append("[dtd ").append(name).append(']');
+        }
+
+        @Override
+        public void endDTD() throws SAXException {
+            sb.append("[/dtd]");
+        }
+
+        @Override
+        public void startEntity(String name) throws SAXException {
+            sb.append("[entity ").append(name).append(']');
+        }
+
+        @Override
+        public void endEntity(String name) throws SAXException {
+            sb.append("[/entity ").append(name).append(']');
+        }
+
+        @Override
+        public void startCDATA() throws SAXException {
+            sb.append("[cdata]");
+        }
+
+        @Override
+        public void endCDATA() throws SAXException {
+            sb.append("[/cdata]");
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException {
+            sb.append("[comment ").append(ch, start, length).append(']');
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
+    private static XMLReader configuredReader() throws Exception {
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        XMLReader reader = spf.newSAXParser().getXMLReader();
+        // non-default, so that output differs if not respected
+        reader.setFeature(SAXFeatures.NAMESPACE_PREFIXES, true);
+        return reader;
+    }
+
+    private static String events(Iterator<VolatileSAXSource> iter, XMLReader configured) throws Exception {
+        Recorder recorder = new Recorder();
+        configured.setProperty(XMLFilterLexicalHandlerImpl.LEXICAL_HANDLER_PROPERTY_KEY, recorder);
+        while (iter.hasNext()) {
+            VolatileSAXSource next = iter.next();
+            XMLReader reader = next.getXMLReader();
+            reader.setContentHandler(recorder);
+            reader.parse(next.getInputSource());
+        }
+        return recorder.toString();
+    }
+
+    @Test
+    public void testSameEvents() throws Exception {
+        List<File> files = inputs();
+        XMLReader configured = configuredReader();
+        String expected = events(sources(configured, files).iterator(), configured);
+        assertTrue(expected.contains("[comment  inner ]"));
+        assertTrue(expected.contains("xmlns:p=urn:p"));
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (int depth : new int[]{1, 3, INPUTS + 1}) {
+                configured = configuredReader();
+                ReadAheadIterator iter = new ReadAheadIterator(sources(configured, files).iterator(), depth, executor);
+                assertEquals("depth=" + depth, expected, events(iter, configured));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testParseFailure() throws Exception {
+        List<File> files = inputs();
+        File bad = File.createTempFile("read-ahead", ".xml");
+        bad.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(bad)) {
+            out.write("<root><unclosed></root>".getBytes(StandardCharsets.UTF_8));
+        }
+        files.add(1, bad);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            XMLReader configured = configuredReader();
+            ReadAheadIterator iter = new ReadAheadIterator(sources(configured, files).iterator(), 2, executor);
+            assertNotSame(configured, iter.next().getXMLReader());
+            try {
+                iter.next();
+                fail("expected parse failure");
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause() instanceof SAXException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFilterNotReadAhead() throws Exception {
+        List<File> files = inputs();
+        XMLReader filter = new XMLFilterImpl(configuredReader());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ReadAheadIterator iter = new ReadAheadIterator(sources(filter, files).iterator(), 2, executor);
+            while (iter.hasNext()) {
+                assertSame(filter, iter.next().getXMLReader());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String join(File list, int readAhead) throws Exception {
+        JoiningXMLFilter joiner = new JoiningXMLFilter(false);
+        joiner.setInputType(QueueSourceXMLFilter.InputType.indirect);
+        joiner.setReadAhead(readAhead);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        joiner.setExecutor(executor);
+        StringWriter out = new StringWriter();
+        try {
+            TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer()
+                    .transform(new SAXSource(joiner, new InputSource(list.getAbsolutePath())), new StreamResult(out));
+        } finally {
+            executor.shutdown();
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void testJoinOutput() throws Exception {
+        File list = File.createTempFile("read-ahead", ".txt");
+        list.deleteOnExit();
+        StringBuilder sb = new StringBuilder();
+        for (File file : inputs()) {
+            sb.append(file.getAbsolutePath()).append(System.lineSeparator());
+        }
+        try (OutputStream out = new FileOutputStream(list)) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        String expected = join(list, 0);
+        assertTrue(expected.contains("<!-- inner -->"));
+        assertEquals(expected, join(list, 1));
+        assertEquals(expected, join(list, 4));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.callback.XMLReaderCallback;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ *
+ * @author michael
+ */
+public class SplittingXMLFilterTest {
+
+    private static final int RECORDS = 25;
+    private static final int CHUNK_SIZE = 2;
+
+    private static String input() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append("<rec id=\"").append(i).append("\"><v>value ").append(i).append("</v></rec>");
+        }
+        return sb.append("</root>").toString();
+    }
+
+    /**
+     * Serializes each split document; optionally fails on the document at
+     * the specified index.
+     */
+    private static class CollectingCallback implements XMLReaderCallback {
+
+        private final List<String> docs = new ArrayList<String>();
+        private final int failAt;
+        private Throwable finished;
+
+        private CollectingCallback(int failAt) {
+            this.failAt = failAt;
+        }
+
+        @Override
+        public void callback(VolatileSAXSource source) throws SAXException, IOException {
+            if (docs.size() == failAt) {
+                throw new IOException("downstream failure");
+            }
+            StringWriter sw = new StringWriter();
+            try {
+                Transformer t = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer();
+                t.transform(source, new StreamResult(sw));
+            } catch (TransformerException ex) {
+                throw new RuntimeException(ex);
+            }
+            docs.add(sw.toString());
+        }
+
+        @Override
+        public void finished(Throwable t) {
+            finished = t;
+        }
+    }
+
+    private static List<String> split(LevelSplittingXMLFilter splitter, CollectingCallback callback) throws Exception {
+        splitter.setOutputCallback(callback);
+        splitter.parse(new InputSource(new StringReader(input())));
+        return callback.docs;
+    }
+
+    private static LevelSplittingXMLFilter newSplitter(ExecutorService executor, int batchSize) {
+        LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter(1, CHUNK_SIZE);
+        splitter.setExecutor(executor);
+        splitter.setBatchSize(batchSize);
+        return splitter;
+    }
+
+    @Test
+    public void testBatchMatchesSync() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<String> expected = split(newSplitter(executor, 0), new CollectingCallback(-1));
+            assertEquals((RECORDS + CHUNK_SIZE - 1) / CHUNK_SIZE, expected.size());
+            for (int batchSize : new int[]{1, 3, RECORDS * 2}) {
+                LevelSplittingXMLFilter splitter = newSplitter(executor, batchSize);
+                assertEquals("batchSize=" + batchSize, expected, split(splitter, new CollectingCallback(-1)));
+                // reuse
+                assertEquals("batchSize=" + batchSize, expected, split(splitter, new CollectingCallback(-1)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static boolean causedBy(Throwable t, String message) {
+        for (; t != null; t = t.getCause()) {
+            if (message.equals(t.getMessage())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test(timeout = 20000)
+    public void testBatchDownstreamFailure() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            List<String> expected = split(newSplitter(executor, 0), new CollectingCallback(-1));
+            for (int batchSize : new int[]{1, 2}) {
+                LevelSplittingXMLFilter splitter = newSplitter(executor, batchSize);
+                CollectingCallback failing = new CollectingCallback(2);
+                try {
+                    // the producer fills the queue while the consumer is failing
+                    split(splitter, failing);
+                    fail("downstream failure not reported");
+                } catch (RuntimeException ex) {
+                    assertTrue(causedBy(ex, "downstream failure"));
+                }
+                assertTrue(causedBy(failing.finished, "downstream failure"));
+                assertEquals(expected.subList(0, 2), failing.docs);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import edu.upenn.library.xmlaminar.VirtualThreadExecutorService;
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.callback.XMLReaderCallback;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ *
+ * @author michael
+ */
+public class TXMLFilterTest {
+
+    private static final String IDENTITY = "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"@*|node()\"><xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    private static final int RECORDS = 200;
+
+    private static String input() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append("<rec id=\"").append(i).append("\"><v>value ").append(i).append("</v></rec>");
+        }
+        return sb.append("</root>").toString();
+    }
+
+    private static String process(ExecutorService executor, boolean workStealing) throws Exception {
+        TXMLFilter txf = new TXMLFilter(new StreamSource(new StringReader(IDENTITY)), null, false, 1);
+        txf.setParallelism(2);
+        txf.setWorkStealing(workStealing);
+        return process(executor, new LevelSplittingXMLFilter(1, 10), txf);
+    }
+
+    private static String process(ExecutorService executor, LevelSplittingXMLFilter splitter, TXMLFilter txf) throws Exception {
+        JoiningXMLFilter joiner = new JoiningXMLFilter(false);
+        txf.setParent(splitter);
+        joiner.setParent(txf);
+        splitter.setExecutor(executor);
+        txf.setExecutor(executor);
+        joiner.setExecutor(executor);
+        TransformerHandler th = ((SAXTransformerFactory) TransformerFactory.newInstance()).newTransformerHandler();
+        StringWriter sw = new StringWriter();
+        th.setResult(new StreamResult(sw));
+        joiner.setContentHandler(th);
+        joiner.parse(new InputSource(new StringReader(input())));
+        return sw.toString();
+    }
+
+    /**
+     * Counts live daemon threads (as started by TXMLFilter's dedicated pools)
+     * whose names start with the specified prefix.
+     */
+    private static int liveThreads(String namePrefix) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && t.isDaemon() && t.getName().startsWith(namePrefix)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void assertNoLiveThreads(String namePrefix, int baseline) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (liveThreads(namePrefix) > baseline && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("threads left running: " + namePrefix, baseline, liveThreads(namePrefix));
+    }
+
+    @Test
+    public void testVirtualThreadFallback() throws Exception {
+        VirtualThreadExecutorService executor = new VirtualThreadExecutorService();
+        try {
+            assertEquals(VirtualThreadExecutorService.isSupported(), executor.isVirtual());
+            Future<Boolean> daemon = executor.submit(new java.util.concurrent.Callable<Boolean>() {
+
+                @Override
+                public Boolean call() throws Exception {
+                    return Thread.currentThread().isDaemon();
+                }
+            });
+            // virtual threads are always daemon; the platform fallback runs tasks regardless.
+            assertNotNull(daemon.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testVirtualThreadExecutorOutput() throws Exception {
+        ExecutorService platform = Executors.newCachedThreadPool();
+        String expected;
+        try {
+            expected = process(platform, false);
+        } finally {
+            platform.shutdown();
+        }
+        assertEquals(RECORDS, expected.split("<rec ").length - 1);
+        int baseline = liveThreads("pool-");
+        VirtualThreadExecutorService executor = new VirtualThreadExecutorService();
+        try {
+            assertEquals(expected, process(executor, false));
+            // the dedicated platform pool for chunk transforms is shut down at the end of each parse.
+            assertNoLiveThreads("pool-", baseline);
+            assertEquals(expected, process(executor, false));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertNoLiveThreads("pool-", baseline);
+    }
+
+    /**
+     * Identity transform, failing for a single record.
+     */
+    private static final String FAIL_ONE = "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"@*|node()\"><xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy></xsl:template>"
+            + "<xsl:template match=\"rec[@id = '13']\"><xsl:sequence select=\"error()\"/></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    @Test
+    public void testRecordwiseDropsFailingRecord() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            String expected = process(executor, false);
+            TXMLFilter txf = new TXMLFilter(new StreamSource(new StringReader(FAIL_ONE)), null, false, 1);
+            txf.setParallelism(2);
+            txf.setRecordwise(true);
+            String actual = process(executor, new LevelSplittingXMLFilter(1, 10), txf);
+            String failing = "<rec id=\"13\"><v>value 13</v></rec>";
+            assertTrue(expected.contains(failing));
+            assertEquals(expected.replace(failing, ""), actual);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return the number of records in each chunk output by splitter
+     */
+    private static List<Integer> chunkRecordCounts(LevelSplittingXMLFilter splitter) throws Exception {
+        final List<Integer> counts = new ArrayList<Integer>();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            splitter.setExecutor(executor);
+            splitter.setOutputCallback(new XMLReaderCallback() {
+
+                @Override
+                public void callback(VolatileSAXSource source) throws SAXException, IOException {
+                    final int[] count = new int[1];
+                    source.getXMLReader().setContentHandler(new DefaultHandler() {
+
+                        @Override
+                        public void startElement(String uri, String localName, String qName, Attributes atts) {
+                            if ("rec".equals(localName)) {
+                                count[0]++;
+                            }
+                        }
+                    });
+                    source.getXMLReader().parse(source.getInputSource());
+                    counts.add(count[0]);
+                }
+
+                @Override
+                public void finished(Throwable t) {
+                }
+            });
+            splitter.parse(new InputSource(new StringReader(input())));
+        } finally {
+            executor.shutdown();
+        }
+        int total = 0;
+        for (int count : counts) {
+            total += count;
+        }
+        assertEquals(RECORDS, total);
+        return counts;
+    }
+
+    private static void assertChunkRecordCounts(int expected, List<Integer> counts) {
+        for (int i = 0; i < counts.size(); i++) {
+            assertEquals("chunk " + i, expected, (int) counts.get(i));
+        }
+    }
+
+    @Test
+    public void testAdaptiveChunkSizer() throws Exception {
+        // 5 events per record (plus one for the root element in the first chunk).
+        LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter(1, RECORDS);
+        splitter.setChunkSizer(new AdaptiveChunkSizer(20, 0, 0));
+        assertChunkRecordCounts(4, chunkRecordCounts(splitter));
+        // between 132 and 140 estimated bytes per record.
+        splitter.setChunkSizer(new AdaptiveChunkSizer(AdaptiveChunkSizer.DEFAULT_MAX_EVENTS, 200, 0));
+        assertChunkRecordCounts(2, chunkRecordCounts(splitter));
+        // chunkSize remains an upper bound
+        splitter.setChunkSizer(new AdaptiveChunkSizer(20, 0, 0));
+        splitter.setChunkSize(3);
+        assertChunkRecordCounts(3, chunkRecordCounts(splitter).subList(0, RECORDS / 3));
+        splitter.setChunkSize(RECORDS);
+        splitter.setChunkSizer(null);
+        assertEquals(Collections.singletonList(RECORDS), chunkRecordCounts(splitter));
+
+        // event budget adjusted toward target latency (1ms).
+        AdaptiveChunkSizer sizer = new AdaptiveChunkSizer(1000, 0, 1);
+        sizer.recordTransform(1000, 10000000);
+        assertEquals(100, sizer.getTargetEvents());
+        sizer.recordTransform(1000, 1000000);
+        assertEquals(121, sizer.getTargetEvents());
+        sizer.recordTransform(1000, 1000000000);
+        assertEquals(AdaptiveChunkSizer.DEFAULT_MIN_EVENTS, sizer.getTargetEvents());
+
+        // output is unaffected by chunk boundaries.
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            String expected = process(executor, false);
+            splitter = new LevelSplittingXMLFilter(1, RECORDS);
+            splitter.setChunkSizer(new AdaptiveChunkSizer(20, 200, 1));
+            TXMLFilter txf = new TXMLFilter(new StreamSource(new StringReader(IDENTITY)), null, false, 1);
+            txf.setParallelism(2);
+            assertEquals(expected, process(executor, splitter, txf));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testWorkStealingPoolShutdown() throws Exception {
+        int baseline = liveThreads("ForkJoinPool-");
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            String first = process(executor, true);
+            assertEquals(RECORDS, first.split("<rec ").length - 1);
+            assertEquals(first, process(executor, true));
+        } finally {
+            executor.shutdown();
+        }
+        assertNoLiveThreads("ForkJoinPool-", baseline);
+    }
+
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.upenn.library.xmlaminar.parallel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.stream.StreamSource;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author michael
+ */
+public class TemplatesCacheTest {
+
+    private static final String IDENTITY = "<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\">"
+            + "<xsl:template match=\"@*|node()\"><xsl:copy><xsl:apply-templates select=\"@*|node()\"/></xsl:copy></xsl:template>"
+            + "</xsl:stylesheet>";
+
+    private static File write(File file, String content) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    private static File stylesheet(String content) throws IOException {
+        File file = File.createTempFile("templates-cache", ".xsl");
+        file.deleteOnExit();
+        return write(file, content);
+    }
+
+    private static class TrackingInputStream extends ByteArrayInputStream {
+
+        private boolean closed = false;
+
+        private TrackingInputStream(String content) {
+            super(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+
+    @Test
+    public void testCacheHitClosesSource() throws Exception {
+        File file = stylesheet(IDENTITY);
+        String systemId = file.toURI().toString();
+        Templates templates = TemplatesCache.getTemplates(new StreamSource(systemId));
+        TrackingInputStream in = new TrackingInputStream(IDENTITY);
+        assertSame(templates, TemplatesCache.getTemplates(new StreamSource(in, systemId)));
+        assertTrue(in.closed);
+    }
+
+    @Test
+    public void testConcurrentRequests() throws Exception {
+        final String systemId = stylesheet(IDENTITY).toURI().toString();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Templates>> results = new ArrayList<>(8);
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<Templates>() {
+
+                    @Override
+                    public Templates call() throws Exception {
+                        start.await();
+                        return TemplatesCache.getTemplates(new StreamSource(systemId));
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Templates> result : results) {
+                assertSame(results.get(0).get(), result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailureNotCached() throws Exception {
+        File file = stylesheet("<xsl:stylesheet version=\"2.0\" xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\"><xsl:bogus/></xsl:stylesheet>");
+        long lastModified = file.lastModified();
+        String systemId = file.toURI().toString();
+        try {
+            TemplatesCache.getTemplates(new StreamSource(systemId));
+            fail("invalid stylesheet should not compile");
+        } catch (TransformerConfigurationException ex) {
+            // expected
+        }
+        write(file, IDENTITY);
+        assertTrue(file.setLastModified(lastModified));
+        assertNotNull(TemplatesCache.getTemplates(new StreamSource(systemId)));
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2011-2015 The Trustees of the University of Pennsylvania
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.upenn.library.xmlaminar.parallel.callback;
+
+import edu.upenn.library.xmlaminar.VolatileSAXSource;
+import edu.upenn.library.xmlaminar.parallel.LevelSplittingXMLFilter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.xml.sax.InputSource;
+
+/**
+ *
+ * @author michael
+ */
+public class IncrementingFileCallbackTest {
+
+    private static final int RECORDS = 25;
+
+    private static String input() {
+        StringBuilder sb = new StringBuilder("<root>");
+        for (int i = 0; i < RECORDS; i++) {
+            sb.append("<rec id=\"").append(i).append("\"><v>value ").append(i).append("</v></rec>");
+        }
+        return sb.append("</root>").toString();
+    }
+
+    private static IncrementingFileCallback newCallback(File dir, int writerThreads) throws Exception {
+        IncrementingFileCallback ifc = new IncrementingFileCallback(0,
+                TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", null).newTransformer(),
+                5, new File(dir, "out"), ".xml", null, false);
+        if (writerThreads > 0) {
+            ifc.setAsync(writerThreads, writerThreads + 1);
+        }
+        return ifc;
+    }
+
+    /**
+     * Splits input into one file per record.
+     */
+    private static void split(IncrementingFileCallback ifc) throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            LevelSplittingXMLFilter splitter = new LevelSplittingXMLFilter(1, 1);
+            splitter.setExecutor(executor);
+            splitter.setOutputCallback(ifc);
+            splitter.parse(new InputSource(new StringReader(input())));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static File[] list(File dir) {
+        File[] ret = dir.listFiles();
+        Arrays.sort(ret);
+        return ret;
+    }
+
+    private static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory()) {
+                delete(f);
+            } else {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testAsyncMatchesSync() throws Exception {
+        File syncDir = Files.createTempDirectory("ifc-sync").toFile();
+        File asyncDir = Files.createTempDirectory("ifc-async").toFile();
+        try {
+            split(newCallback(syncDir, 0));
+            split(newCallback(asyncDir, 3));
+            File[] expected = list(syncDir);
+            File[] actual = list(asyncDir);
+            assertEquals(RECORDS, expected.length);
+            assertEquals(RECORDS, actual.length);
+            for (int i = 0; i < RECORDS; i++) {
+                assertEquals(String.format("out-%05d.xml", i), expected[i].getName());
+                assertEquals(expected[i].getName(), actual[i].getName());
+                byte[] content = Files.readAllBytes(actual[i].toPath());
+                assertArrayEquals(Files.readAllBytes(expected[i].toPath()), content);
+                assertTrue(new String(content, "UTF-8").contains("<rec id=\"" + i + "\">"));
+            }
+        } finally {
+            delete(syncDir);
+            delete(asyncDir);
+        }
+    }
+
+    private static boolean causedBy(Throwable t, Class<? extends Throwable> type) {
+        for (; t != null; t = t.getCause()) {
+            if (type.isInstance(t)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testAsyncWriteFailure() throws Exception {
+        File dir = Files.createTempDirectory("ifc-fail").toFile();
+        try {
+            // a directory in place of the output file for one document fails its write.
+            assertTrue(new File(dir, "out-00003.xml").mkdir());
+            try {
+                split(newCallback(dir, 2));
+                fail("write failure not reported");
+            } catch (RuntimeException ex) {
+                assertTrue(causedBy(ex, IOException.class));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    public void testAsyncWriteFailureSuppressed() throws Exception {
+        File dir = Files.createTempDirectory("ifc-suppressed").toFile();
+        try {
+            assertTrue(new File(dir, "out-00000.xml").mkdir());
+            IncrementingFileCallback ifc = newCallback(dir, 1);
+            SAXParserFactory spf = SAXParserFactory.newInstance();
+            spf.setNamespaceAware(true);
+            ifc.callback(new VolatileSAXSource(spf.newSAXParser().getXMLReader(), new InputSource(new StringReader(input()))));
+            // the write fails after the last callback, while a failure is already being reported.
+            RuntimeException upstream = new RuntimeException("upstream failure");
+            ifc.finished(upstream);
+            assertEquals(1, upstream.getSuppressed().length);
+            assertTrue(causedBy(upstream.getSuppressed()[0], IOException.class));
+            // reported once only
+            ifc.finished(null);
+        } finally {
+            delete(dir);
+        }
+    }
+
+}